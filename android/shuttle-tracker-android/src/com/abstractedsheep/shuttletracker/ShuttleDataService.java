@@ -21,10 +21,7 @@
 package com.abstractedsheep.shuttletracker;
 
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
@@ -36,13 +33,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.abstractedsheep.shuttletrackerworld.Coordinate;
 import com.abstractedsheep.shuttletrackerworld.Netlink;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.json.JSONTokener;
-import org.json.JSONArray;
 
 
-import com.abstractedsheep.shuttletracker.json.MapJsonInputToArray;
+import com.abstractedsheep.shuttletracker.json.BinaryUpdateReader;
+import com.abstractedsheep.shuttletracker.json.UpdateJson;
+import com.abstractedsheep.shuttletracker.json.UpdateState;
 import com.abstractedsheep.shuttletracker.json.VehicleArray;
 import com.abstractedsheep.shuttletracker.json.VehicleJson;
 import com.abstractedsheep.shuttletracker.sql.DatabaseHelper;
@@ -56,16 +56,27 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class ShuttleDataService implements OnSharedPreferenceChangeListener {
+	// answers get_update as soon as the shuttles change, so they need not be polled for
+	private static final String DATA_SERVICE_URL = "http://shuttles.abstractedsheep.com/data_service.php";
+	private static final int CONNECT_TIMEOUT = 15000;
+	// the data service holds an update request for 30 seconds before answering 304
+	private static final int LONG_POLL_TIMEOUT = 45000;
+	
 	private final ObjectMapper mapper = new ObjectMapper();
 	private final Set<IShuttleServiceCallback> callbacks = new HashSet<IShuttleServiceCallback>();
 	public final AtomicBoolean active = new AtomicBoolean(true);
-	private World world;
+	// replaced whole when the routes are loaded, read from other threads
+	private volatile World world;
 	private boolean informedNoConnection = false;
 	private Context ctx;
+	// how long to wait before trying the data service again after it could not be reached
 	private final AtomicInteger updateRate = new AtomicInteger(5000);
+	private final UpdateState updateState = new UpdateState();
 	
 	// Private constructor prevents instantiation from other classes
 	private ShuttleDataService() {
+		// the feeds carry fields the beans have no use for, such as the icon
+		mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 	}
 
 	/**
@@ -122,16 +133,6 @@ public class ShuttleDataService implements OnSharedPreferenceChangeListener {
     	return parsedClass;
     }
     
-    public String convertStreamToString(InputStream is) throws Exception {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        StringBuilder sb = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-          sb.append(line);
-        }
-        is.close();
-        return sb.toString();
-      }
     /**
      * Uses the Jackson object mapper to read the JSON from a URL into a Java Array.
      * 
@@ -139,21 +140,34 @@ public class ShuttleDataService implements OnSharedPreferenceChangeListener {
      * @param generic The class type of the JSON in the form of a Java Bean.
      * @return The parsed JSON in a new instance of the Java Array.
      */
-    public <T> ArrayList<T> parseJsonArray(String url, Class<T> generic) {	
-    	ArrayList<T> parsedArray = new ArrayList<T>();
+    public <T> ArrayList<T> parseJsonArray(String url, Class<T> generic) {
+    	return parseJsonArray(url, generic, new ArrayList<T>());
+    }
+    
+    /**
+     * Uses the Jackson object mapper to read the JSON from a URL into a Java Array.
+     * The response is read in one pass straight off the connection, each element
+     * being bound to a bean as soon as its tokens arrive. 
+     * 
+     * @param url The URL to retrieve the JSON from.
+     * @param generic The class type of the JSON in the form of a Java Bean.
+     * @param parsedArray The array to fill, emptied first so it can be reused for every poll.
+     * @return parsedArray, holding whatever elements were read before any error.
+     */
+    public <T> ArrayList<T> parseJsonArray(String url, Class<T> generic, ArrayList<T> parsedArray) {
+    	parsedArray.clear();
+    	JsonParser parser = null;
 	
 		try {
 			URL jsonUrl = new URL(url);
 			URLConnection jsonConnection = jsonUrl.openConnection();
-			JSONTokener tokener = new JSONTokener(convertStreamToString(jsonConnection.getInputStream()));
-			JSONArray jsonArray = new JSONArray(tokener);
-			T temp;
-			InputStream instream;
+			parser = mapper.getJsonFactory().createJsonParser(jsonConnection.getInputStream());
 			
-			for(int x = 0; x< jsonArray.length(); ++x){
-				instream = new ByteArrayInputStream(jsonArray.get(x).toString().getBytes());
-				temp = mapper.readValue(instream, generic);	
-				parsedArray.add(temp);
+			if (parser.nextToken() == JsonToken.START_ARRAY) {
+				// each element is a fresh bean, so no field of one vehicle can be left over in the next
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					parsedArray.add(mapper.readValue(parser, generic));
+				}
 			}
 			informedNoConnection = false;
 		} catch (JsonParseException e) {
@@ -172,6 +186,14 @@ public class ShuttleDataService implements OnSharedPreferenceChangeListener {
 			e.printStackTrace();
 		} catch (Exception e){
 			Log.w("Tracker", e);
+		} finally {
+			try {
+				// also closes the connection's stream
+				if (parser != null)
+					parser.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
   
     	return parsedArray;
@@ -207,23 +229,72 @@ public class ShuttleDataService implements OnSharedPreferenceChangeListener {
     public final Runnable updateShuttles = new Runnable() {
 		public void run() {
 			while (active.get()) {
-				synchronized (this) {
-					ArrayList<MapJsonInputToArray> tempVehicles = parseJsonArray("http://shuttles.rpi.edu/vehicles/current.js", MapJsonInputToArray.class);
-					for (MapJsonInputToArray v : tempVehicles) {
-                        world.addOrUpdateShuttle(v.vehicle.getShuttle_id(), new Coordinate((int)(v.vehicle.getLatitude() * 1e6), 
-                        		(int)(v.vehicle.getLongitude() * 1e6)), v.vehicle.getName(), v.vehicle.getHeading(), 
-                        		v.vehicle.getCardinal_point(), v.vehicle.getSpeed(), v.vehicle.getRoute_id());
-                    }
-					
-					if (tempVehicles != null) {
-						notifyShuttlesUpdated();
-					}
-				}	
-				
-				SystemClock.sleep(updateRate.get());
+				if (!waitForUpdate())
+					SystemClock.sleep(updateRate.get());
 			}
 		}
 	};
+	
+	/**
+	 * Asks the data service for what changed since the version held, which it
+	 * answers as soon as there is a newer one, and passes the shuttles on to the world.
+	 * 
+	 * @return false if the data service could not be reached
+	 */
+	private boolean waitForUpdate() {
+		HttpURLConnection connection = null;
+		try {
+			URL url = new URL(DATA_SERVICE_URL + "?action=get_update&format=binary&epoch=" + updateState.getEpoch()
+					+ "&version=" + updateState.getVersion());
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(LONG_POLL_TIMEOUT);
+			
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// nothing changed in the time the request was held
+				informedNoConnection = false;
+				return true;
+			} else if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Data service answered " + status);
+			}
+			
+			UpdateJson update = BinaryUpdateReader.read(connection.getInputStream());
+			informedNoConnection = false;
+			// a delta that does not follow on from what is held is followed by a request for everything
+			if (updateState.apply(update))
+				updateWorld();
+			return true;
+		} catch (IOException e) {
+			if (!informedNoConnection) {
+				informedNoConnection = true;
+				notifyError(IShuttleServiceCallback.NO_CONNECTION_ERROR);
+			}
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (connection != null)
+				connection.disconnect();
+		}
+	}
+	
+	/**
+	 * Passes every shuttle the data service has to the world. Those it no longer
+	 * has expire from the world once they have not been passed on for a while.
+	 */
+	private void updateWorld() {
+		World w = world;
+		if (w == null)
+			return; // the routes are not loaded yet, the next update is passed on instead
+		
+		for (VehicleJson v : updateState.getShuttles()) {
+			w.addOrUpdateShuttle(v.getShuttle_id(), new Coordinate((int)(v.getLatitude() * 1e6), 
+					(int)(v.getLongitude() * 1e6)), v.getName(), v.getHeading(), 
+					v.getCardinal_point(), v.getSpeed(), v.getRoute_id());
+		}
+		w.removeOldShuttles();
+		notifyShuttlesUpdated();
+	}
 
 	
 	public World getWorld() {
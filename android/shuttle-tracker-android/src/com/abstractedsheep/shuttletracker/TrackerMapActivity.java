@@ -98,21 +98,20 @@ public class TrackerMapActivity extends MapActivity implements IShuttleServiceCa
         Style style;
         ArrayList<GeoPoint> points;
 
-        synchronized (world.getRouteList()) {
-            for (Route r : world.getRouteList()) {
-                style = new Style();
-                style.setColor(r.getColor());
-                style.setWidth(4);
-                routeOverlay = new PathOverlay(style);
-                points = new ArrayList<GeoPoint>();
-                for (Coordinate c: r.getCoordinates()) {
-                    points.add(new GeoPoint(c.getLatitudeE6(), c.getLongitudeE6()));
-                }
-
-                routeOverlay.setPoints(points);
-                routeOverlay.setVisiblity(true);
-                map.getOverlays().add(routeOverlay);
+        // the routes never change once the world is built, so no lock is needed
+        for (Route r : world.getRouteList()) {
+            style = new Style();
+            style.setColor(r.getColor());
+            style.setWidth(4);
+            routeOverlay = new PathOverlay(style);
+            points = new ArrayList<GeoPoint>();
+            for (Coordinate c: r.getCoordinates()) {
+                points.add(new GeoPoint(c.getLatitudeE6(), c.getLongitudeE6()));
             }
+
+            routeOverlay.setPoints(points);
+            routeOverlay.setVisiblity(true);
+            map.getOverlays().add(routeOverlay);
         }
 
         
@@ -0,0 +1,163 @@
+/* 
+ * Copyright 2011 Austin Wagner
+ *     
+ * This file is part of Mobile Shuttle Tracker.
+ *
+ *  Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package com.abstractedsheep.shuttletracker.json;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Reads an update the data service sent in its binary format, asked for with
+ * format=binary, into the same {@link UpdateJson} a JSON update is read into.
+ * The binary form is much smaller and is read without any text parsing, which
+ * saves battery on slow phones. The layout is described in the server's
+ * BinaryUpdateWriter.
+ */
+public class BinaryUpdateReader {
+	// the version of the layout this reader understands
+	public static final int FORMAT_VERSION = 2;
+	
+	private final InputStream in;
+	private final SimpleDateFormat updateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private String[] stopIds;
+	private String[] stopNames;
+	
+	private BinaryUpdateReader(InputStream in) {
+		this.in = in;
+	}
+	
+	/**
+	 * @throws IOException if the stream cannot be read or is not in a format this reader understands
+	 */
+	public static UpdateJson read(InputStream in) throws IOException {
+		return new BinaryUpdateReader(new BufferedInputStream(in)).readUpdate();
+	}
+	
+	private UpdateJson readUpdate() throws IOException {
+		if (readByte() != 'S' || readByte() != 'T')
+			throw new IOException("Not a binary update");
+		int format = readByte();
+		if (format != FORMAT_VERSION)
+			throw new IOException("Unknown binary update format " + format);
+		
+		UpdateJson update = new UpdateJson();
+		update.setEpoch(readVarint());
+		update.setVersion(readVarint());
+		long since = readVarint() - 1;
+		update.setSince(since);
+		update.setFull(since < 0);
+		
+		int stopCount = (int) readVarint();
+		stopIds = new String[stopCount];
+		stopNames = new String[stopCount];
+		for (int i = 0; i < stopCount; i++) {
+			stopIds[i] = readString();
+			stopNames[i] = readString();
+		}
+		
+		int shuttleCount = (int) readVarint();
+		for (int i = 0; i < shuttleCount; i++) {
+			VehicleJson vehicle = new VehicleJson();
+			vehicle.setShuttle_id((int) readSignedVarint());
+			vehicle.setLatitude(readSignedVarint() / 1E6);
+			vehicle.setLongitude(readSignedVarint() / 1E6);
+			vehicle.setHeading((int) readVarint());
+			vehicle.setSpeed((int) readVarint());
+			vehicle.setRoute_id((int) readSignedVarint());
+			vehicle.setUpdate_time(updateTimeFormat.format(new Date(readVarint() * 1000)));
+			vehicle.setCardinal_point(readString());
+			vehicle.setName(readString());
+			update.getShuttles().add(vehicle);
+		}
+		
+		int etaCount = (int) readVarint();
+		for (int i = 0; i < etaCount; i++) {
+			EtaJson eta = readEtaKey();
+			eta.setEta((int) readVarint());
+			eta.setArrival_time(readVarint());
+			update.getEtas().add(eta);
+		}
+		
+		if (!update.isFull()) {
+			int removedCount = (int) readVarint();
+			for (int i = 0; i < removedCount; i++)
+				update.getRemoved_shuttles().add((int) readSignedVarint());
+			removedCount = (int) readVarint();
+			for (int i = 0; i < removedCount; i++)
+				update.getRemoved_etas().add(readEtaKey());
+		}
+		return update;
+	}
+	
+	private EtaJson readEtaKey() throws IOException {
+		EtaJson eta = new EtaJson();
+		eta.setShuttle_id((int) readSignedVarint());
+		int stop = (int) readVarint();
+		if (stop >= stopIds.length)
+			throw new IOException("Stop " + stop + " is not in the dictionary");
+		eta.setStop_id(stopIds[stop]);
+		eta.setName(stopNames[stop]);
+		eta.setRoute((int) readSignedVarint());
+		eta.setEta_id((int) readVarint());
+		return eta;
+	}
+	
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException();
+		return b;
+	}
+	
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Varint is too long");
+	}
+	
+	private long readSignedVarint() throws IOException {
+		long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private String readString() throws IOException {
+		int length = (int) readVarint() - 1;
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(bytes, read, length - read);
+			if (n == -1)
+				throw new EOFException();
+			read += n;
+		}
+		return new String(bytes, "UTF-8");
+	}
+}
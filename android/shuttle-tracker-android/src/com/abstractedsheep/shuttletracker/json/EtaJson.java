@@ -26,6 +26,10 @@ public class EtaJson {
 	private int shuttle_id;
 	private int eta;
 	private int route;
+	// which of a shuttle's etas to the stop this is, 0 for the next one
+	private int eta_id;
+	// seconds since 1970, only sent in updates, which leave out etas that only count down
+	private long arrival_time;
 	
 	public String getStop_id() {
 		return stop_id;
@@ -57,5 +61,17 @@ public class EtaJson {
 	public void setEta(int eta) {
 		this.eta = eta;
 	}
+	public long getArrival_time() {
+		return arrival_time;
+	}
+	public void setArrival_time(long arrival_time) {
+		this.arrival_time = arrival_time;
+	}
+	public int getEta_id() {
+		return eta_id;
+	}
+	public void setEta_id(int eta_id) {
+		this.eta_id = eta_id;
+	}
 }
 	
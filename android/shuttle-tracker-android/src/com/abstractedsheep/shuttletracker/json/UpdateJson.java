@@ -0,0 +1,90 @@
+/* 
+ * Copyright 2011 Austin Wagner
+ *     
+ * This file is part of Mobile Shuttle Tracker.
+ *
+ *  Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package com.abstractedsheep.shuttletracker.json;
+
+import java.util.ArrayList;
+
+/**
+ * One response of the data service's get_update action. A full update holds
+ * every shuttle and eta, a delta only those that changed since the version the
+ * client asked with, plus those that were removed.
+ */
+public class UpdateJson {
+	// the versions of a server start again from 0 when it restarts, each time with a new epoch
+	private long epoch;
+	private long version;
+	private long since = -1;
+	private boolean full;
+	private ArrayList<VehicleJson> shuttles = new ArrayList<VehicleJson>();
+	private EtaArray etas = new EtaArray();
+	private ArrayList<Integer> removed_shuttles = new ArrayList<Integer>();
+	// only the shuttle_id, stop_id, route and eta_id are set
+	private EtaArray removed_etas = new EtaArray();
+	
+	public long getEpoch() {
+		return epoch;
+	}
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	public long getSince() {
+		return since;
+	}
+	public void setSince(long since) {
+		this.since = since;
+	}
+	public boolean isFull() {
+		return full;
+	}
+	public void setFull(boolean full) {
+		this.full = full;
+	}
+	public ArrayList<VehicleJson> getShuttles() {
+		return shuttles;
+	}
+	public void setShuttles(ArrayList<VehicleJson> shuttles) {
+		this.shuttles = shuttles;
+	}
+	public EtaArray getEtas() {
+		return etas;
+	}
+	public void setEtas(EtaArray etas) {
+		this.etas = etas;
+	}
+	public ArrayList<Integer> getRemoved_shuttles() {
+		return removed_shuttles;
+	}
+	public void setRemoved_shuttles(ArrayList<Integer> removed_shuttles) {
+		this.removed_shuttles = removed_shuttles;
+	}
+	public EtaArray getRemoved_etas() {
+		return removed_etas;
+	}
+	public void setRemoved_etas(EtaArray removed_etas) {
+		this.removed_etas = removed_etas;
+	}
+}
@@ -0,0 +1,100 @@
+/* 
+ * Copyright 2011 Austin Wagner
+ *     
+ * This file is part of Mobile Shuttle Tracker.
+ *
+ *  Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ *  
+ */
+
+package com.abstractedsheep.shuttletracker.json;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * The shuttles and etas a client has, kept up to date by applying each
+ * {@link UpdateJson} from the data service. The version is sent back with the
+ * next request, so the data service only has to send what changed.
+ */
+public class UpdateState {
+	private long epoch;
+	private long version = -1;
+	private LinkedHashMap<Integer, VehicleJson> shuttles = new LinkedHashMap<Integer, VehicleJson>();
+	private LinkedHashMap<String, EtaJson> etas = new LinkedHashMap<String, EtaJson>();
+	
+	/**
+	 * @return the epoch of the version held, sent back along with it
+	 */
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+	
+	/**
+	 * @return the version to ask the data service for changes since, -1 for everything
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Applies an update to what is held. A delta made from a version other than
+	 * the one held, or by a server that has restarted since, cannot be applied,
+	 * so everything is dropped and the next request asks for a full update.
+	 * 
+	 * @return true if the update was applied
+	 */
+	public synchronized boolean apply(UpdateJson update) {
+		if (update.isFull()) {
+			shuttles.clear();
+			etas.clear();
+		} else if (update.getEpoch() != epoch || update.getSince() != version) {
+			clear();
+			return false;
+		}
+		
+		for (Integer id : update.getRemoved_shuttles())
+			shuttles.remove(id);
+		for (EtaJson eta : update.getRemoved_etas())
+			etas.remove(key(eta));
+		
+		for (VehicleJson vehicle : update.getShuttles())
+			shuttles.put(vehicle.getShuttle_id(), vehicle);
+		for (EtaJson eta : update.getEtas())
+			etas.put(key(eta), eta);
+		
+		epoch = update.getEpoch();
+		version = update.getVersion();
+		return true;
+	}
+	
+	public synchronized void clear() {
+		epoch = 0;
+		version = -1;
+		shuttles.clear();
+		etas.clear();
+	}
+	
+	public synchronized ArrayList<VehicleJson> getShuttles() {
+		return new ArrayList<VehicleJson>(shuttles.values());
+	}
+	
+	public synchronized EtaArray getEtas() {
+		return new EtaArray(etas.values());
+	}
+	
+	private static String key(EtaJson eta) {
+		return eta.getShuttle_id() + "|" + eta.getStop_id() + "|" + eta.getRoute() + "|" + eta.getEta_id();
+	}
+}
@@ -30,12 +30,14 @@ public class VehicleJson {
 	private int id = 0;
 	private String name = "";
 	private MapJsonInputToClass latest_position = new MapJsonInputToClass();
+	// only sent by the data service, 0 when read from the rpi feed
+	private int route_id = 0;
 	
 	public int getRoute_id() {
-		return 0;
+		return route_id;
 	}
 	public void setRoute_id(int route_id) {
-
+		this.route_id = route_id;
 	}
 	
 	public int getHeading() {
@@ -83,6 +85,14 @@ public class VehicleJson {
 		this.id = shuttle_id;
 	}
 	
+	// id and latest_position are how current.js names them, only ever read
+	public void setId(int id) {
+		this.id = id;
+	}
+	public void setLatest_position(MapJsonInputToClass latest_position) {
+		this.latest_position = latest_position;
+	}
+	
 	public DirectionalOverlayItem toOverlayItem() {
 		return new DirectionalOverlayItem(new GeoPoint((int)(Double.parseDouble(this.latest_position.latitude) * 1e6), (int)(Double.parseDouble(this.latest_position.longitude) * 1e6)), this.latest_position.heading, "", "");
 	}
@@ -24,9 +24,7 @@ public class Route
 {
     final List<Double> distanceToNextCoord;
     final List<Coordinate> coordinates;
-    final Map<Integer, Shuttle> shuttles;
     final Map<String, Stop> stops;
-    final List<Shuttle> shuttleList;
     final List<Stop> stopList;
 	private final String name;
     private double length;
@@ -35,9 +33,7 @@ public class Route
     
     private final List<Double> ro_distanceToNextCoord;
     private final List<Coordinate> ro_coordinates;
-    private final Map<Integer, Shuttle> ro_shuttles;
     private final Map<String, Stop> ro_stops;
-    private final List<Shuttle> ro_shuttleList;
     private final List<Stop> ro_stopList;
     
     
@@ -49,15 +45,11 @@ public class Route
         this.coordinates = new ArrayList<Coordinate>(coords);
         this.stops = Collections.synchronizedMap(new HashMap<String, Stop>());
 		this.distanceToNextCoord = new ArrayList<Double>();
-        this.shuttles = Collections.synchronizedMap(new HashMap<Integer, Shuttle>());
         this.ro_distanceToNextCoord = Collections.unmodifiableList(distanceToNextCoord);
         this.ro_coordinates = Collections.unmodifiableList(coordinates);
-        this.ro_shuttles = Collections.unmodifiableMap(shuttles);
         this.ro_stops = Collections.unmodifiableMap(stops);
         
-        this.shuttleList = Collections.synchronizedList(new ArrayList<Shuttle>());
         this.stopList = Collections.synchronizedList(new ArrayList<Stop>());
-        this.ro_shuttleList = Collections.unmodifiableList(shuttleList);
         this.ro_stopList = Collections.unmodifiableList(stopList);
 		
 		for(int i = 0; i < this.coordinates.size(); i++)
@@ -94,18 +86,10 @@ public class Route
 		return ro_coordinates;
 	}
 
-	public Map<Integer, Shuttle> getShuttles() {
-		return ro_shuttles;
-	}
-
 	public Map<String, Stop> getStops() {
 		return ro_stops;
 	}
 	
-	public List<Shuttle> getShuttleList() {
-		return ro_shuttleList;
-	}
-	
 	public List<Stop> getStopList() {
 		return ro_stopList;
 	}
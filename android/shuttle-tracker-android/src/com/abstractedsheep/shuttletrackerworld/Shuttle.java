@@ -24,7 +24,7 @@ import java.util.List;
 public class Shuttle
 {
     private int speed;
-    private final List<Integer> pastSpeeds;
+    private final SpeedFilter pastSpeeds;
 
     public int nextRouteCoordinate;
     public int bearing;
@@ -46,10 +46,29 @@ public class Shuttle
         this.lastUpdateTime = -1;
         this.name = "";
         this.speed = -1;
-        this.pastSpeeds = new ArrayList<Integer>(10);
+        this.pastSpeeds = new SpeedFilter(SpeedFilter.MEAN);
         this.averageSpeed = -1;
     }
 
+    /// <summary>
+    /// Copies a shuttle so the copy can be updated while the original is still read.
+    /// </summary>
+    Shuttle(Shuttle s)
+    {
+        this.speed = s.speed;
+        this.pastSpeeds = new SpeedFilter(s.pastSpeeds);
+        this.nextRouteCoordinate = s.nextRouteCoordinate;
+        this.bearing = s.bearing;
+        this.cardinalPoint = s.cardinalPoint;
+        this.id = s.id;
+        this.location = s.location;
+        this.lastUpdateTime = s.lastUpdateTime;
+        this.name = s.name;
+        this.averageSpeed = s.averageSpeed;
+        this.currentRoute = s.currentRoute;
+        this.snappedCoordinate = s.snappedCoordinate;
+    }
+
     void snapToRoute()
     {
         if (this.currentRoute != null && this.location != null)
@@ -90,18 +109,14 @@ public class Shuttle
 		return speed;
 	}
 
+	/// <summary>
+	/// Sets the speed just reported and smooths it with the ones reported before,
+	/// keeping the last smoothed speed if the reading is dropped as a GPS error.
+	/// </summary>
 	void setSpeed(int speed) {
 		this.speed = speed;
-        if (this.pastSpeeds.size() == 10)
-            this.pastSpeeds.remove(0);
-
-        this.pastSpeeds.add(speed);
-
-        int sum = 0;
-        for (int i = 0; i < pastSpeeds.size(); i++)
-        	sum += pastSpeeds.get(i);
-        
-        this.averageSpeed = sum / this.pastSpeeds.size();
+		if (this.pastSpeeds.add(speed))
+			this.averageSpeed = this.pastSpeeds.get();
 	}
 
 	public int getBearing() {
@@ -160,8 +175,12 @@ public class Shuttle
 		this.currentRoute = currentRoute;
 	}
 
+	/// <returns>A copy of the speeds the average is taken over, oldest first.</returns>
 	public List<Integer> getPastSpeeds() {
-		return pastSpeeds;
+		List<Integer> speeds = new ArrayList<Integer>(pastSpeeds.getCount());
+		for (int i = 0; i < pastSpeeds.getCount(); i++)
+			speeds.add(pastSpeeds.getReading(i));
+		return speeds;
 	}
 
 	public int getNextRouteCoordinate() {
@@ -0,0 +1,168 @@
+/* Copyright 2011 Austin Wagner
+ *     
+ * This file is part of Mobile Shuttle Tracker.
+ *
+ *  Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.  
+ */
+
+package com.abstractedsheep.shuttletrackerworld;
+
+/// <summary>
+/// Smooths the speeds a shuttle reports. The last few readings are kept in a ring
+/// buffer with their running sum and a sorted copy, so adding a reading never walks
+/// more than the window and reading the mean, median or weighted mean sums nothing.
+/// Readings no shuttle could reach are dropped, and so is a reading far from the
+/// median unless the next one is far from it too, so GPS spikes are ignored but
+/// real changes of speed come through.
+/// </summary>
+public class SpeedFilter
+{
+	/// <summary>The mean of the window, what shuttles have always shown.</summary>
+	public static final int MEAN = 0;
+	/// <summary>Each reading moves the speed part of the way toward it.</summary>
+	public static final int EWMA = 1;
+	/// <summary>The median of the window, which one bad reading does not move.</summary>
+	public static final int MEDIAN = 2;
+
+	public static final int WINDOW = 10;
+	private static final double EWMA_WEIGHT = 0.3;
+	// in miles per hour
+	private static final int MAX_SPEED = 80;
+	private static final int MAX_JUMP = 25;
+	// the window needs this many readings before a reading can be a spike
+	private static final int MIN_READINGS = 3;
+	private static final int CONFIRMATIONS = 2;
+
+	private final int mode;
+	private final int[] readings;
+	private final int[] sorted;
+	private int start;
+	private int count;
+	private long sum;
+	private double ewma;
+	private int spikes;
+
+	SpeedFilter(int mode)
+	{
+		this.mode = mode;
+		this.readings = new int[WINDOW];
+		this.sorted = new int[WINDOW];
+	}
+
+	/// <summary>
+	/// Copies a filter so the copy can be updated while the original is still read.
+	/// </summary>
+	SpeedFilter(SpeedFilter f)
+	{
+		this.mode = f.mode;
+		this.readings = f.readings.clone();
+		this.sorted = f.sorted.clone();
+		this.start = f.start;
+		this.count = f.count;
+		this.sum = f.sum;
+		this.ewma = f.ewma;
+		this.spikes = f.spikes;
+	}
+
+	/// <summary>
+	/// Adds a reading in miles per hour.
+	/// </summary>
+	/// <returns>False if the reading was dropped as an error.</returns>
+	boolean add(int speed)
+	{
+		if (speed < 0 || speed > MAX_SPEED)
+			return false;
+		// once a spike has been confirmed, readings far from the median are taken
+		// until the median has caught up with them
+		if (count >= MIN_READINGS && Math.abs(speed - median()) > MAX_JUMP)
+		{
+			if (++spikes < CONFIRMATIONS)
+				return false;
+		}
+		else
+		{
+			spikes = 0;
+		}
+
+		if (count == WINDOW)
+		{
+			int oldest = readings[start];
+			readings[start] = speed;
+			start = (start + 1) % WINDOW;
+			sum -= oldest;
+			removeSorted(oldest);
+		}
+		else
+		{
+			readings[(start + count) % WINDOW] = speed;
+			count++;
+		}
+		sum += speed;
+		insertSorted(speed);
+		ewma = (count == 1) ? speed : ewma + EWMA_WEIGHT * (speed - ewma);
+		return true;
+	}
+
+	/// <returns>The smoothed speed in miles per hour, or -1 if no reading has been kept.</returns>
+	public int get()
+	{
+		if (count == 0)
+			return -1;
+		switch (mode)
+		{
+			case EWMA:
+				return (int)Math.round(ewma);
+			case MEDIAN:
+				return median();
+			default:
+				return (int)(sum / count);
+		}
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	/// <param name="i">0 for the oldest reading kept, up to getCount() - 1 for the newest.</param>
+	public int getReading(int i)
+	{
+		return readings[(start + i) % WINDOW];
+	}
+
+	private int median()
+	{
+		int middle = count / 2;
+		return (count % 2 == 1) ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+	}
+
+	private void insertSorted(int speed)
+	{
+		int i = count - 1;
+		while (i > 0 && sorted[i - 1] > speed)
+		{
+			sorted[i] = sorted[i - 1];
+			i--;
+		}
+		sorted[i] = speed;
+	}
+
+	private void removeSorted(int speed)
+	{
+		int i = 0;
+		while (sorted[i] != speed)
+			i++;
+		System.arraycopy(sorted, i + 1, sorted, i, count - 1 - i);
+	}
+}
@@ -19,7 +19,6 @@
 package com.abstractedsheep.shuttletrackerworld;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 import com.abstractedsheep.shuttletrackerworld.Netlink.RouteJson;
 import com.abstractedsheep.shuttletrackerworld.Netlink.StopJson;
@@ -27,39 +26,40 @@ import com.abstractedsheep.shuttletrackerworld.Netlink.RouteJson.RouteCoordinate
 import com.abstractedsheep.shuttletrackerworld.Netlink.StopJson.StopRouteJson;
 
 
+/// <summary>
+/// Routes and stops are built once by generateWorld() and never change afterwards.
+/// Shuttles are copied on write: every update publishes a new WorldSnapshot, so
+/// readers never lock and never see a shuttle half updated.
+/// </summary>
 public class World
 {
     private static final long SHUTTLE_EXPIRATION_TIME = 60000;
 
-    private final Map<Integer, Shuttle> shuttles;
     private final Map<Integer, Route> routes;
     private final Map<String, Stop> stops;
-    private final List<Shuttle> shuttleList;
     private final List<Route> routeList;
     private final List<Stop> stopList;
     
-    private final Map<Integer, Shuttle> ro_shuttles;
     private final Map<Integer, Route> ro_routes;
     private final Map<String, Stop> ro_stops;
-    private final List<Shuttle> ro_shuttleList;
     private final List<Route> ro_routeList;
     private final List<Stop> ro_stopList;
 
+    private volatile WorldSnapshot snapshot;
+
     private World()
     {
-        this.shuttles = Collections.synchronizedMap(new HashMap<Integer, Shuttle>());
-        this.routes = Collections.synchronizedMap(new HashMap<Integer, Route>());
-        this.stops = Collections.synchronizedMap(new HashMap<String, Stop>());
-        this.ro_shuttles = Collections.unmodifiableMap(shuttles);
+        this.routes = new HashMap<Integer, Route>();
+        this.stops = new HashMap<String, Stop>();
         this.ro_routes = Collections.unmodifiableMap(routes);
         this.ro_stops = Collections.unmodifiableMap(stops);
         
-        this.shuttleList = Collections.synchronizedList(new ArrayList<Shuttle>());
-        this.routeList = Collections.synchronizedList(new ArrayList<Route>());
-        this.stopList = Collections.synchronizedList(new ArrayList<Stop>());
-        this.ro_shuttleList = Collections.unmodifiableList(shuttleList);
+        this.routeList = new ArrayList<Route>();
+        this.stopList = new ArrayList<Stop>();
         this.ro_routeList = Collections.unmodifiableList(routeList);
         this.ro_stopList = Collections.unmodifiableList(stopList);
+
+        this.snapshot = WorldSnapshot.EMPTY;
     }
 
     /// <summary>
@@ -87,21 +87,24 @@ public class World
 	/// <summary>
 	/// Removes all shuttles older than SHUTTLE_EXPIRATION_TIME
 	/// </summary>
-	public void removeOldShuttles()
+	public synchronized void removeOldShuttles()
 	{
-        Set<Entry<Integer, Shuttle>> tempEntrySet = shuttles.entrySet();
-
-        synchronized (shuttleList) {
-            for (Entry<Integer, Shuttle> e : tempEntrySet)
-            {
-                if (System.currentTimeMillis() - e.getValue().getLastUpdateTime() > SHUTTLE_EXPIRATION_TIME)
-                    shuttleList.remove(shuttles.remove(e.getKey()));
-            }
+        WorldSnapshot last = this.snapshot;
+        Map<Integer, Shuttle> tempShuttles = new HashMap<Integer, Shuttle>();
+
+        for (Shuttle s : last.getShuttleList())
+        {
+            if (System.currentTimeMillis() - s.getLastUpdateTime() <= SHUTTLE_EXPIRATION_TIME)
+                tempShuttles.put(s.id, s);
         }
+
+        if (tempShuttles.size() != last.getShuttles().size())
+            this.snapshot = new WorldSnapshot(tempShuttles, last.getVersion() + 1);
 	}
 	
 	/// <summary>
 	/// Adds a shuttle to the world or updates the position of an existing shuttle.
+	/// The shuttle is copied rather than changed, and published in a new snapshot.
 	/// </summary>
 	/// <param name="shuttleId">The ID number of the shuttle.</param>
 	/// <param name="location">The shuttle's current location.</param>
@@ -110,64 +113,25 @@ public class World
 	/// <param name="cardinalPoint">The heading of the shuttle as a cardinal direcation (e.g. Northwest).</param>
 	/// <param name="speed">The speed of the shuttle in miles per hour.</param>
 	/// <param name="route">The id of the shuttle route. -1 indicates that the shuttle is not on a route.</param>
-    public void addOrUpdateShuttle(int shuttleId, Coordinate location, String name, int bearing, String cardinalPoint, int speed, int route)
+    public synchronized void addOrUpdateShuttle(int shuttleId, Coordinate location, String name, int bearing, String cardinalPoint, int speed, int route)
     {
-        Shuttle s = this.shuttles.get(shuttleId);
-        Route r = this.routes.get(route);
-
-        if (s == null)
-        {     
-            s = new Shuttle();
-            s.id = shuttleId;
-            s.location = location;
-            s.name = name;
-            s.bearing = bearing;
-            s.cardinalPoint = cardinalPoint;
-            s.setSpeed(speed);
-            s.lastUpdateTime = System.currentTimeMillis();
-                           
-            this.shuttles.put(s.id, s);
-            this.shuttleList.add(s);
-
-            if (r != null)
-            {
-                s.currentRoute = r;
-                r.shuttles.put(s.id, s);
-                r.shuttleList.add(s);
-            }
-			
-			s.snapToRoute();
-        }
-        else
-        {
-            s.lastUpdateTime = System.currentTimeMillis();
-            s.location = location;
-            s.setSpeed(speed);
-            s.bearing = bearing;
-            s.cardinalPoint = cardinalPoint;
-            s.name = name;
-
-            if (r == null && s.currentRoute != null)
-            {
-                s.currentRoute.shuttleList.remove(s.currentRoute.shuttles.remove(s.id));
-                s.currentRoute = null;
-            }
-            else if (r != null && s.currentRoute != null && s.currentRoute != r)
-            {
-                s.currentRoute.shuttleList.remove(s.currentRoute.shuttles.remove(s.id));
-                s.currentRoute = r;
-                r.shuttles.put(s.id, s);
-                r.shuttleList.add(s);
-            }
-            else if (r != null && s.currentRoute == null)
-            {
-                s.currentRoute = r;
-                r.shuttles.put(s.id, s);
-                r.shuttleList.add(s);
-            }
-			
-			s.snapToRoute();
-        }
+        WorldSnapshot last = this.snapshot;
+        Shuttle current = last.getShuttles().get(shuttleId);
+        Shuttle s = (current == null) ? new Shuttle() : new Shuttle(current);
+
+        s.id = shuttleId;
+        s.lastUpdateTime = System.currentTimeMillis();
+        s.location = location;
+        s.name = name;
+        s.bearing = bearing;
+        s.cardinalPoint = cardinalPoint;
+        s.setSpeed(speed);
+        s.currentRoute = this.routes.get(route);
+        s.snapToRoute();
+
+        Map<Integer, Shuttle> tempShuttles = new HashMap<Integer, Shuttle>(last.getShuttles());
+        tempShuttles.put(s.id, s);
+        this.snapshot = new WorldSnapshot(tempShuttles, last.getVersion() + 1);
     }
 
     private void addRoute(RouteJson route)
@@ -215,8 +179,13 @@ public class World
     }
     
 
+    /// <returns>The shuttles as of the latest update, which never changes once returned.</returns>
+    public WorldSnapshot getSnapshot() {
+		return snapshot;
+	}
+
     public Map<Integer, Shuttle> getShuttles() {
-		return ro_shuttles;
+		return snapshot.getShuttles();
 	}
 
 	public Map<Integer, Route> getRoutes() {
@@ -228,7 +197,7 @@ public class World
 	}
 	
 	public List<Shuttle> getShuttleList() {
-		return ro_shuttleList;
+		return snapshot.getShuttleList();
 	}
 	
 	public List<Route> getRouteList() {
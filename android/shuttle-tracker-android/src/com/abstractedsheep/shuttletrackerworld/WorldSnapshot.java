@@ -0,0 +1,57 @@
+/* Copyright 2011 Austin Wagner
+ *     
+ * This file is part of Mobile Shuttle Tracker.
+ *
+ *  Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.  
+ */
+
+package com.abstractedsheep.shuttletrackerworld;
+
+import java.util.*;
+
+/// <summary>
+/// The shuttles in the world after one update. A snapshot and the shuttles in it
+/// are never changed once published, so overlays and adapters can read it from
+/// any thread without locking.
+/// </summary>
+public final class WorldSnapshot
+{
+    static final WorldSnapshot EMPTY = new WorldSnapshot(new HashMap<Integer, Shuttle>(), 0);
+
+    private final Map<Integer, Shuttle> shuttles;
+    private final List<Shuttle> shuttleList;
+    private final long version;
+
+    /// <param name="shuttles">The shuttles keyed by ID, must not be modified afterwards.</param>
+    /// <param name="version">The number of updates applied to the world so far.</param>
+    WorldSnapshot(Map<Integer, Shuttle> shuttles, long version)
+    {
+        this.shuttles = Collections.unmodifiableMap(shuttles);
+        this.shuttleList = Collections.unmodifiableList(new ArrayList<Shuttle>(shuttles.values()));
+        this.version = version;
+    }
+
+    public Map<Integer, Shuttle> getShuttles() {
+		return shuttles;
+	}
+
+	public List<Shuttle> getShuttleList() {
+		return shuttleList;
+	}
+
+	/// <returns>The number of updates applied to the world when this snapshot was taken.</returns>
+	public long getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep;
+
+import com.abstractedsheep.extractor.Netlink;
+import com.abstractedsheep.world.RouteGraph;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * What the benchmarks share for timing their kernels. There is no build to hang
+ * JMH off, so each benchmark is a class with a main method, run from server/java
+ * with:
+ * <pre>
+ *   javac -cp "lib/*" -d out $(find src bench -name '*.java')
+ *   java -cp "out:lib/*" com.abstractedsheep.world.GeometryBench
+ * </pre>
+ * Each kernel is warmed up for a few rounds and then timed for several more, and
+ * the mean and spread of the time per operation are printed. Where the JVM can
+ * count the bytes a thread allocates, the bytes per operation are printed too.
+ *
+ * @author saiumesh
+ */
+public final class Bench {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    private static final long ROUND_NANOS = 200L * 1000 * 1000;
+
+    // Results are summed here so that the JIT cannot throw the work away
+    private static volatile double sink;
+
+    /**
+     * The work being timed. Each call performs some number of operations and
+     * returns a value that depends on all of them.
+     */
+    public interface Op {
+        double run();
+    }
+
+    private Bench() {
+    }
+
+    /**
+     * Times a kernel and prints a line for it.
+     *
+     * @param name - what to call the kernel in the output
+     * @param opsPerCall - how many operations each call of op performs
+     * @param op - the kernel
+     * @return the mean time per operation, in nanoseconds
+     */
+    public static double run(String name, int opsPerCall, Op op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            round(op);
+
+        double[] nanos = new double[ROUNDS];
+        long calls = 0;
+        long allocated = allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            long[] round = round(op);
+            nanos[i] = (double) round[1] / (round[0] * opsPerCall);
+            calls += round[0];
+        }
+        allocated = allocatedBytes() - allocated;
+
+        double mean = 0;
+        for (double n : nanos)
+            mean += n;
+        mean /= ROUNDS;
+        double variance = 0;
+        for (double n : nanos)
+            variance += (n - mean) * (n - mean);
+        double deviation = Math.sqrt(variance / (ROUNDS - 1));
+
+        String line = String.format(Locale.US, "%-40s %10.1f ns/op  +- %6.1f", name, mean, deviation);
+        if (allocated >= 0)
+            line += String.format(Locale.US, "  %8.1f B/op", (double) allocated / (calls * opsPerCall));
+        System.out.println(line);
+        return mean;
+    }
+
+    /**
+     * @return the number of calls made and the nanoseconds they took
+     */
+    private static long[] round(Op op) {
+        double sum = 0;
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sum += op.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ROUND_NANOS);
+        sink += sum;
+        return new long[] { calls, elapsed };
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM does
+     *         not count them
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled())
+                return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Builds a graph of loop routes around the campus, in the format of
+     * netlink.js, much larger than the real one so that the kernels have work
+     * to do.
+     *
+     * @param routes - the number of routes
+     * @param points - the number of points on each route
+     * @param stops - the number of stops on each route
+     * @return a new graph, built the way the server builds netlink.js
+     */
+    public static RouteGraph graph(int routes, int points, int stops) {
+        StringBuilder stopJson = new StringBuilder();
+        StringBuilder routeJson = new StringBuilder();
+        for (int r = 0; r < routes; r++) {
+            int id = r + 1;
+            // Each route is an ellipse of its own size, a mile or two around
+            double radius = 0.01 + 0.002 * r;
+            if (r > 0)
+                routeJson.append(',');
+            routeJson.append("{\"color\":\"#E1501B\",\"id\":").append(id)
+                    .append(",\"name\":\"Route ").append(id).append("\",\"width\":4,\"coords\":[");
+            for (int p = 0; p <= points; p++) {
+                if (p > 0)
+                    routeJson.append(',');
+                routeJson.append('{');
+                appendCoordinate(routeJson, radius, (double) (p % points) / points);
+                routeJson.append('}');
+            }
+            routeJson.append("]}");
+
+            for (int s = 0; s < stops; s++) {
+                if (stopJson.length() > 0)
+                    stopJson.append(',');
+                stopJson.append('{');
+                // Halfway between two route points, so that stops do not sit on them
+                appendCoordinate(stopJson, radius, (double) s / stops + 0.5 / points);
+                stopJson.append(",\"name\":\"Stop ").append(id).append('-').append(s)
+                        .append("\",\"short_name\":\"s").append(id).append('_').append(s)
+                        .append("\",\"routes\":[{\"id\":").append(id)
+                        .append(",\"name\":\"Route ").append(id).append("\"}]}");
+            }
+        }
+        String json = "{\"stops\":[" + stopJson + "],\"routes\":[" + routeJson + "]}";
+        try {
+            Netlink link = new ObjectMapper().readValue(json, Netlink.class);
+            return RouteGraph.build(link.getRoutes(), link.getStops());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param fraction - how far around the ellipse, from 0 to 1
+     */
+    private static void appendCoordinate(StringBuilder json, double radius, double fraction) {
+        double angle = 2 * Math.PI * fraction;
+        json.append("\"latitude\":\"").append(42.7302 + radius * Math.sin(angle))
+                .append("\",\"longitude\":\"").append(-73.6765 + 1.4 * radius * Math.cos(angle))
+                .append('"');
+    }
+}
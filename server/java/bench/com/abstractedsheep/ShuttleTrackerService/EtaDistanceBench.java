@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Bench;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.Stop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the distance from every shuttle to every stop on its route, the way
+ * ETACalculator used to find it, by walking the route points between them,
+ * against the way it finds it now, by subtracting their offsets along the
+ * route. Run with no arguments for a graph about the size of the campus and a
+ * much larger one, or with the number of routes, points per route, stops per
+ * route and shuttles per route.
+ *
+ * @author saiumesh
+ */
+public class EtaDistanceBench {
+    private static final long SEED = 42;
+
+    private final List<Shuttle> shuttles = new ArrayList<Shuttle>();
+
+    private EtaDistanceBench(int routes, int points, int stops, int shuttlesPerRoute) {
+        RouteGraph graph = Bench.graph(routes, points, stops);
+        Random random = new Random(SEED);
+        for (Route route : graph.getRouteList().values()) {
+            ArrayList<Coordinate> coordinates = route.getCoordinateList();
+            for (int i = 0; i < shuttlesPerRoute; i++) {
+                // Somewhere along a random segment, a little off the road
+                int segment = random.nextInt(coordinates.size() - 1);
+                Coordinate from = coordinates.get(segment);
+                Coordinate to = coordinates.get(segment + 1);
+                double t = random.nextDouble();
+                Coordinate location = new Coordinate(
+                        from.getLatitude() + t * (to.getLatitude() - from.getLatitude()) + 0.00002,
+                        from.getLongitude() + t * (to.getLongitude() - from.getLongitude()) - 0.00002);
+
+                Shuttle shuttle = new Shuttle(shuttles.size() + 1, null);
+                shuttle.setCurrentLocation(location);
+                shuttle.setCurrentRoute(route);
+                shuttles.add(shuttle);
+            }
+        }
+    }
+
+    /**
+     * The loop ETACalculator ran before it used offsets, without the ETAs. The
+     * old loop wrapped j only when i reached the size of the route, which it
+     * never did, so this one wraps it at the last point instead.
+     */
+    private static double walk(Shuttle shuttle, Stop stop) {
+        Route rt = shuttle.getCurrentRoute();
+        int size = rt.getCoordinateList().size();
+        int i = shuttle.getNextRouteCoordinate();
+        int j;
+        double distance;
+        int stopPrecedingCoordinate = stop.getPrecedingCoordinate(rt.getIdNum());
+
+        if ((shuttle.getNextRouteCoordinate() == 0 && stopPrecedingCoordinate == size - 1)
+                || (shuttle.getNextRouteCoordinate() == stopPrecedingCoordinate + 1)) {
+            distance = shuttle.getCurrentLocation().distanceFromCoordiante(shuttle.getClosestPoint());
+        } else {
+            distance = shuttle.getCurrentLocation().distanceFromCoordiante(
+                    rt.getCoordinateList().get(shuttle.getNextRouteCoordinate()));
+
+            while (i != stopPrecedingCoordinate) {
+                if (i == size - 1)
+                    j = 0;
+                else
+                    j = i + 1;
+
+                Coordinate c1 = rt.getCoordinateList().get(i);
+                Coordinate c2 = rt.getCoordinateList().get(j);
+                distance += c1.distanceFromCoordiante(c2);
+
+                i++;
+                if (i == size)
+                    i = 0;
+            }
+
+            distance += stop.getPrecedingCoordinateDistance(rt.getIdNum());
+        }
+        return distance;
+    }
+
+    /**
+     * What ETACalculator does now.
+     */
+    private static double offsets(Shuttle shuttle, Stop stop) {
+        Route rt = shuttle.getCurrentRoute();
+        return rt.getDistanceBetween(shuttle.getDistanceAlongRoute(),
+                stop.getDistanceAlongRoute(rt.getIdNum()));
+    }
+
+    private int pairs() {
+        int pairs = 0;
+        for (Shuttle shuttle : shuttles)
+            pairs += shuttle.getCurrentRoute().getStopCount();
+        return pairs;
+    }
+
+    private double walkAll() {
+        double sum = 0;
+        for (Shuttle shuttle : shuttles) {
+            Route rt = shuttle.getCurrentRoute();
+            for (int s = 0; s < rt.getStopCount(); s++)
+                sum += walk(shuttle, rt.getStop(s));
+        }
+        return sum;
+    }
+
+    private double offsetsAll() {
+        double sum = 0;
+        for (Shuttle shuttle : shuttles) {
+            Route rt = shuttle.getCurrentRoute();
+            for (int s = 0; s < rt.getStopCount(); s++)
+                sum += offsets(shuttle, rt.getStop(s));
+        }
+        return sum;
+    }
+
+    /**
+     * @return the largest difference between the two ways, in feet. They differ
+     *         a little because the walk starts from the shuttle itself rather
+     *         than from its snapped point, and differ a lot when the shuttle has
+     *         just passed a stop on the same segment, which the walk measured as
+     *         the distance to the road.
+     */
+    private double largestDifference() {
+        double largest = 0;
+        for (Shuttle shuttle : shuttles) {
+            Route rt = shuttle.getCurrentRoute();
+            for (int s = 0; s < rt.getStopCount(); s++) {
+                Stop stop = rt.getStop(s);
+                int preceding = stop.getPrecedingCoordinate(rt.getIdNum());
+                if (shuttle.getNextRouteCoordinate() == preceding + 1)
+                    continue;
+                largest = Math.max(largest, Math.abs(walk(shuttle, stop) - offsets(shuttle, stop)));
+            }
+        }
+        return largest * 5280;
+    }
+
+    private static void run(int routes, int points, int stops, int shuttlesPerRoute) {
+        final EtaDistanceBench bench = new EtaDistanceBench(routes, points, stops, shuttlesPerRoute);
+        System.out.println(String.format(Locale.US,
+                "%d routes of %d points, %d stops and %d shuttles each: %d pairs, differing by up to %.1f ft",
+                routes, points, stops, shuttlesPerRoute, bench.pairs(), bench.largestDifference()));
+        double walk = Bench.run("segment walk", bench.pairs(), new Bench.Op() {
+            public double run() {
+                return bench.walkAll();
+            }
+        });
+        double offsets = Bench.run("route offsets", bench.pairs(), new Bench.Op() {
+            public double run() {
+                return bench.offsetsAll();
+            }
+        });
+        System.out.println(String.format(Locale.US, "route offsets are %.1fx faster", walk / offsets));
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 4) {
+            run(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]));
+        } else {
+            run(2, 60, 8, 4);
+            run(8, 500, 30, 12);
+        }
+    }
+}
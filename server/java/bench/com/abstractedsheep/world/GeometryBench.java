@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.Bench;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the geometry that snapping and ETAs spend their time in, the way
+ * Coordinate used to do it, copied below, against the way it does it now. The
+ * end points are built once, like the points of a route; the point being
+ * located is built on every call, like the position of a shuttle, so both ways
+ * pay for creating it.
+ *
+ * @author saiumesh
+ */
+public class GeometryBench {
+    private static final int POINTS = 1024;
+    private static final long SEED = 42;
+    private static final double RADIUS_OF_EARTH = 3956;
+
+    private final Coordinate[] points = new Coordinate[POINTS];
+    private final double[] latitudes = new double[POINTS];
+    private final double[] longitudes = new double[POINTS];
+
+    private GeometryBench() {
+        // A couple of miles around the campus
+        Random random = new Random(SEED);
+        for (int i = 0; i < POINTS; i++) {
+            points[i] = new Coordinate(42.73 + 0.03 * (random.nextDouble() - 0.5),
+                    -73.68 + 0.04 * (random.nextDouble() - 0.5));
+            latitudes[i] = 42.73 + 0.03 * (random.nextDouble() - 0.5);
+            longitudes[i] = -73.68 + 0.04 * (random.nextDouble() - 0.5);
+        }
+    }
+
+    // Coordinate.distanceFromCoordiante() before it cached anything
+    static double oldDistance(Coordinate from, Coordinate c) {
+        double dLong = Math.toRadians((c.getLongitude() - from.getLongitude()));
+        double dLat = Math.toRadians((c.getLatitude() - from.getLatitude()));
+        double lat1 = Math.toRadians(from.getLatitude());
+        double lat2 = Math.toRadians(c.getLatitude());
+
+        double a = Math.pow(Math.sin(dLat / 2.0), 2)
+                + Math.pow(Math.sin(dLong / 2.0), 2) * Math.cos(lat1)
+                * Math.cos(lat2);
+        double b = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1.0 - a));
+
+        return RADIUS_OF_EARTH * b;
+    }
+
+    // Coordinate.getBearing() before it moved to Geometry
+    static double oldBearing(Coordinate from, Coordinate c) {
+        double delta = Math.toRadians((from.getLongitude() - c.getLongitude()));
+        double lat1 = Math.toRadians(c.getLatitude());
+        double lat2 = Math.toRadians(from.getLatitude());
+
+        double y = Math.sin(delta) * Math.cos(lat1);
+        double x = Math.cos(lat2) * Math.sin(lat1) - Math.sin(lat2)
+                * Math.cos(lat1) * Math.cos(delta);
+
+        return Math.toDegrees(Math.atan2(y, x));
+    }
+
+    // Coordinate.closestPoint() before it cached the cartesian points
+    static Coordinate oldClosestPoint(Coordinate from, Coordinate endPoint1, Coordinate endPoint2) {
+        final int R = 3956;
+
+        Point3D pt1 = new Point3D(R
+                * Math.cos(Math.toRadians(endPoint1.getLatitude()))
+                * Math.cos(Math.toRadians(endPoint1.getLongitude())), R
+                * Math.cos(Math.toRadians(endPoint1.getLatitude()))
+                * Math.sin(Math.toRadians(endPoint1.getLongitude())), R
+                * Math.sin(Math.toRadians(endPoint1.getLatitude())));
+        Point3D pt2 = new Point3D(R
+                * Math.cos(Math.toRadians(endPoint2.getLatitude()))
+                * Math.cos(Math.toRadians(endPoint2.getLongitude())), R
+                * Math.cos(Math.toRadians(endPoint2.getLatitude()))
+                * Math.sin(Math.toRadians(endPoint2.getLongitude())), R
+                * Math.sin(Math.toRadians(endPoint2.getLatitude())));
+        Point3D pt3 = new Point3D(R
+                * Math.cos(Math.toRadians(from.getLatitude()))
+                * Math.cos(Math.toRadians(from.getLongitude())), R
+                * Math.cos(Math.toRadians(from.getLatitude()))
+                * Math.sin(Math.toRadians(from.getLongitude())), R
+                * Math.sin(Math.toRadians(from.getLatitude())));
+
+        Point3D origin = new Point3D();
+
+        Point3D delta2 = Point3D.subtract(pt3, pt1);
+        Point3D delta3 = Point3D.subtract(pt2, pt1);
+
+        double length = delta3.getMagnitude();
+        if (length == 0)
+            return new Coordinate(endPoint1.getLatitude(), endPoint1.getLongitude());
+
+        // Point3D.dotProduct() went away with the old kernel
+        double adj = (delta2.getX() * delta3.getX() + delta2.getY() * delta3.getY()
+                + delta2.getZ() * delta3.getZ()) / length;
+        adj = Math.max(0, Math.min(length, adj));
+
+        Point3D closestPt = pt1.moveTowards(pt2, adj);
+        Point3D surfacePt = origin.moveTowards(closestPt, R);
+
+        return new Coordinate(
+                (Math.toDegrees((Math.asin(surfacePt.getZ() / R)))),
+                (Math.toDegrees((Math.atan2(surfacePt.getY(), surfacePt.getX())))));
+    }
+
+    /**
+     * @return the largest difference between the old and new results of each
+     *         kernel, for every pair of points and every point against a segment
+     */
+    private String differences() {
+        double distance = 0, bearing = 0, closest = 0, line = 0;
+        for (int i = 0; i < POINTS; i++) {
+            Coordinate a = points[i];
+            Coordinate b = points[(i + 1) % POINTS];
+            Coordinate c = new Coordinate(latitudes[i], longitudes[i]);
+            distance = Math.max(distance, Math.abs(oldDistance(a, b) - a.distanceFromCoordiante(b)));
+            bearing = Math.max(bearing, Math.abs(oldBearing(a, b) - a.getBearing(b)));
+            closest = Math.max(closest, oldClosestPoint(c, a, b).distanceFromCoordiante(c.closestPoint(a, b)));
+            line = Math.max(line, Math.abs(oldClosestPoint(c, a, b).distanceFromCoordiante(c)
+                    - c.distanceToLine(a, b)));
+        }
+        return String.format(Locale.US,
+                "largest differences: distance %.2g ft, bearing %.2g deg, closest point %.2g ft, distance to line %.2g ft",
+                distance * 5280, bearing, closest * 5280, line * 5280);
+    }
+
+    private static void compare(String name, Bench.Op old, Bench.Op current) {
+        double before = Bench.run(name + ", old", POINTS, old);
+        double after = Bench.run(name + ", new", POINTS, current);
+        System.out.println(String.format(Locale.US, "%s is %.1fx faster", name, before / after));
+        System.out.println();
+    }
+
+    public static void main(String[] args) {
+        final GeometryBench bench = new GeometryBench();
+        final Coordinate[] points = bench.points;
+        final double[] latitudes = bench.latitudes;
+        final double[] longitudes = bench.longitudes;
+        System.out.println(bench.differences());
+        System.out.println();
+
+        compare("distanceFromCoordiante", new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++)
+                    sum += oldDistance(points[i], points[(i + 1) % POINTS]);
+                return sum;
+            }
+        }, new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++)
+                    sum += points[i].distanceFromCoordiante(points[(i + 1) % POINTS]);
+                return sum;
+            }
+        });
+
+        compare("getBearing", new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++)
+                    sum += oldBearing(points[i], points[(i + 1) % POINTS]);
+                return sum;
+            }
+        }, new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++)
+                    sum += points[i].getBearing(points[(i + 1) % POINTS]);
+                return sum;
+            }
+        });
+
+        compare("closestPoint", new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++) {
+                    Coordinate c = new Coordinate(latitudes[i], longitudes[i]);
+                    sum += oldClosestPoint(c, points[i], points[(i + 1) % POINTS]).getLatitude();
+                }
+                return sum;
+            }
+        }, new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++) {
+                    Coordinate c = new Coordinate(latitudes[i], longitudes[i]);
+                    sum += c.closestPoint(points[i], points[(i + 1) % POINTS]).getLatitude();
+                }
+                return sum;
+            }
+        });
+
+        // What Route.findClosestSegment() does for every segment of the route
+        compare("distance to a segment", new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++) {
+                    Coordinate c = new Coordinate(latitudes[i], longitudes[i]);
+                    sum += oldClosestPoint(c, points[i], points[(i + 1) % POINTS]).distanceFromCoordiante(c);
+                }
+                return sum;
+            }
+        }, new Bench.Op() {
+            public double run() {
+                double sum = 0;
+                for (int i = 0; i < POINTS; i++) {
+                    Coordinate c = new Coordinate(latitudes[i], longitudes[i]);
+                    sum += c.distanceToLine(points[i], points[(i + 1) % POINTS]);
+                }
+                return sum;
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerServer;
+
+import com.abstractedsheep.ShuttleTrackerService.ETACalculator;
+import com.abstractedsheep.ShuttleTrackerService.SegmentSpeedModel;
+import com.abstractedsheep.dataservice.DataService;
+import com.abstractedsheep.dataservice.UpdateChannel;
+import com.abstractedsheep.extractor.DynamicJSONExtractor;
+import com.abstractedsheep.extractor.StaticJSONExtractor;
+import com.abstractedsheep.history.PositionHistory;
+import com.abstractedsheep.world.World;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the server keeps for one source of shuttle positions, such as one
+ * campus: its world, eta calculator, pipeline, data service and history. Feeds
+ * share nothing but the threads of the {@link WorkerPool}, so one feed failing
+ * or falling behind leaves the others as they were.
+ *
+ * @author saiumesh
+ */
+public class Feed {
+    // how often the speed model is learned again from the history, and from how far back
+    private static final long SPEED_MODEL_INTERVAL = (1000L * 60 * 60 * 6);
+    private static final long SPEED_MODEL_HISTORY = (1000L * 60 * 60 * 24 * 28);
+
+    private final String name;
+    private final WorkerPool pool;
+    private final World world;
+    private final ETACalculator calc;
+    private final PollingPipeline pipeline;
+    private final DataService dataService;
+    private final UpdateChannel updateChannel;
+    private final PositionHistory history;
+    private final SerialTask speedModelTask;
+    // set on the io thread that generates the world
+    private volatile ScheduledFuture<?> speedModelSchedule;
+
+    /**
+     * @param name        - name the feed is served under
+     * @param routesURL   - netlink.js of the feed
+     * @param vehiclesURL - current.js of the feed
+     * @param tableName   - database table the etas are written to, or null
+     * @param historyDir  - directory the shuttle positions are kept in, or null
+     *                    to keep none
+     * @param period      - time between fetches in milliseconds
+     * @param routePeriod - time between reloads of the routes and stops in milliseconds
+     * @param pool        - threads shared with the other feeds
+     */
+    public Feed(String name, URL routesURL, URL vehiclesURL, String tableName, File historyDir,
+                int period, int routePeriod, WorkerPool pool) {
+        this.name = name;
+        this.pool = pool;
+        DynamicJSONExtractor dynamicExtractor = new DynamicJSONExtractor(vehiclesURL);
+        // a fetch that takes longer than a period is abandoned rather than
+        // holding up the next one
+        dynamicExtractor.setTimeout(period);
+        StaticJSONExtractor staticExtractor = new StaticJSONExtractor(routesURL);
+        staticExtractor.setTimeout(period);
+        this.world = new World(staticExtractor, dynamicExtractor);
+        this.calc = new ETACalculator();
+        this.calc.setExecutor(pool.getCompute(), pool.getParallelism());
+        this.pipeline = new PollingPipeline(name, world, calc, tableName, period, routePeriod, pool);
+
+        this.dataService = new DataService();
+        this.updateChannel = new UpdateChannel(dataService, pool.getIo());
+        // the channel pushes what the service has written, so it must hear second
+        this.pipeline.addListener(dataService);
+        this.pipeline.addListener(updateChannel);
+
+        if (historyDir != null) {
+            this.history = new PositionHistory(historyDir);
+            this.pipeline.addListener(history);
+        } else {
+            this.history = null;
+        }
+        this.speedModelTask = new SerialTask(pool.getIo(), new Runnable() {
+            public void run() {
+                learnSpeeds();
+            }
+        });
+        if (history != null) {
+            // a route whose length changed is not known to the model learned before
+            this.pipeline.addRouteListener(new Runnable() {
+                public void run() {
+                    speedModelTask.signal();
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the routes and starts tracking, without waiting on the feed's server.
+     */
+    public void start() {
+        if (history != null)
+            history.start();
+        pool.getIo().execute(new Runnable() {
+            public void run() {
+                boolean generated = false;
+                try {
+                    world.generateWorld();
+                    generated = true;
+                } catch (RuntimeException e) {
+                    // the routes are read again on the next reload
+                    e.printStackTrace();
+                }
+                if (history != null)
+                    scheduleSpeedModel(generated);
+                pipeline.start();
+            }
+        });
+    }
+
+    /**
+     * Learns the speed model now if there are routes to learn it against, and
+     * again every SPEED_MODEL_INTERVAL after that. Without routes it is learned
+     * once a reload has read them.
+     */
+    private void scheduleSpeedModel(boolean hasRoutes) {
+        if (hasRoutes)
+            speedModelTask.signal();
+        speedModelSchedule = pool.getTimer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                speedModelTask.signal();
+            }
+        }, SPEED_MODEL_INTERVAL, SPEED_MODEL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops tracking and writes out the positions still held in memory.
+     */
+    public void stop() {
+        pipeline.stop();
+        if (speedModelSchedule != null)
+            speedModelSchedule.cancel(false);
+        if (history != null)
+            history.stop();
+    }
+
+    /**
+     * Learns the speed model from the history against the current routes.
+     */
+    private void learnSpeeds() {
+        long now = System.currentTimeMillis();
+        SegmentSpeedModel model = SegmentSpeedModel.learn(history,
+                world.getRouteGraph(), now - SPEED_MODEL_HISTORY, now);
+        calc.setSpeedModel(model);
+        System.out.println(name + ": learned speeds for " + model.getRouteCount() + " routes");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DataService getDataService() {
+        return dataService;
+    }
+
+    public UpdateChannel getUpdateChannel() {
+        return updateChannel;
+    }
+
+    public PollingPipeline getPipeline() {
+        return pipeline;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerServer;
+
+import com.abstractedsheep.ShuttleTrackerService.ETACalculator;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.db.DatabaseWriter;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.World;
+import com.abstractedsheep.world.WorldSnapshot;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work for one feed as three stages, so that a slow stage never delays
+ * the others:
+ * <ol>
+ * <li>fetch - downloads the shuttle positions at a fixed rate, without parsing
+ * them if they have not changed</li>
+ * <li>update - applies the newest positions to the world and calculates the etas</li>
+ * <li>persist - writes the newest etas to the database, if there is one</li>
+ * </ol>
+ * Listeners are handed each new snapshot of the world and its etas as soon as the
+ * update stage has finished with them.
+ * The routes and stops are reloaded on another thread every routePeriod and
+ * swapped into the world whole, so the stages never wait on them.
+ * Stages hand their results to the next stage through queues that hold a single
+ * item. When a stage falls behind, the result it has not started on is replaced by
+ * the newer one, since only the latest shuttle positions matter.
+ * <p>
+ * The stages run on threads shared with every other feed, from a {@link WorkerPool}.
+ * Each stage is a {@link SerialTask}, so it never runs twice at once for the same
+ * feed but different feeds are worked on in parallel. Fetches, reloads and
+ * database writes run on the pool's io threads, so a feed whose server is slow
+ * only holds up its own stages.
+ *
+ * @author saiumesh
+ */
+public class PollingPipeline {
+    // results older than this many periods are thrown away instead of processed
+    private static final int MAX_SNAPSHOT_AGE = 2;
+
+    private final String name;
+    private final World world;
+    private final ETACalculator calc;
+    private final String tableName;
+    private final long period;
+    private final long routePeriod;
+    private final BlockingQueue<Snapshot<HashMap<Integer, Shuttle>>> fetchQueue;
+    private final BlockingQueue<Snapshot<EtaTable>> persistQueue;
+    private final WorkerPool pool;
+    private final SerialTask fetchTask;
+    private final SerialTask updateTask;
+    private final SerialTask persistTask;
+    private final SerialTask routeTask;
+    private ScheduledFuture<?> fetchSchedule;
+    private ScheduledFuture<?> routeSchedule;
+
+    private final StageTimer fetchTimer = new StageTimer("fetch");
+    private final StageTimer worldTimer = new StageTimer("world update");
+    private final StageTimer etaTimer = new StageTimer("eta");
+    private final StageTimer persistTimer = new StageTimer("persist");
+    private final StageTimer publishTimer = new StageTimer("publish");
+    private final List<WorldUpdateListener> listeners = new CopyOnWriteArrayList<WorldUpdateListener>();
+    private final List<Runnable> routeListeners = new CopyOnWriteArrayList<Runnable>();
+    // the shuttles of the last payload that was read, only used by the fetch stage
+    private HashMap<Integer, Shuttle> lastShuttles = new HashMap<Integer, Shuttle>();
+
+    /**
+     * A stage's result along with the time its data was fetched.
+     */
+    private static class Snapshot<T> {
+        final T data;
+        final long fetchTime;
+        // false if the feed sent the same data as for the last snapshot
+        final boolean changed;
+
+        Snapshot(T data, long fetchTime) {
+            this(data, fetchTime, true);
+        }
+
+        Snapshot(T data, long fetchTime, boolean changed) {
+            this.data = data;
+            this.fetchTime = fetchTime;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * Keeps the running time of one stage and reports any run that takes longer
+     * than the polling period.
+     */
+    public class StageTimer {
+        private final String name;
+        private long count;
+        private long totalTime;
+        private long maxTime;
+        private long start;
+
+        StageTimer(String name) {
+            this.name = name;
+        }
+
+        void start() {
+            start = System.nanoTime();
+        }
+
+        synchronized void stop() {
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            count++;
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+            if (time > period)
+                System.err.println(String.format("%s %s took %d ms, longer than the %d ms period",
+                        new Object[]{PollingPipeline.this.name, name, time, period}));
+        }
+
+        public synchronized long getAverageTime() {
+            return (count == 0) ? 0 : totalTime / count;
+        }
+
+        public synchronized long getMaxTime() {
+            return maxTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %d runs, %d ms average, %d ms max",
+                    new Object[]{name, count, this.getAverageTime(), maxTime});
+        }
+    }
+
+    /**
+     * @param name        - name of the feed, used when reporting slow stages
+     * @param world       - a world that has already been generated
+     * @param calc        - calculator used to find the etas for the world
+     * @param tableName   - database table the etas are written to, or null to keep
+     *                    the etas out of the database
+     * @param period      - time between fetches in milliseconds
+     * @param routePeriod - time between reloads of the routes and stops in milliseconds
+     * @param pool        - threads the stages run on, shared with other feeds
+     */
+    public PollingPipeline(String name, World world, ETACalculator calc, String tableName, long period,
+                           long routePeriod, WorkerPool pool) {
+        this.name = name;
+        this.world = world;
+        this.calc = calc;
+        this.tableName = tableName;
+        this.period = period;
+        this.routePeriod = routePeriod;
+        this.fetchQueue = new ArrayBlockingQueue<Snapshot<HashMap<Integer, Shuttle>>>(1);
+        this.persistQueue = new ArrayBlockingQueue<Snapshot<EtaTable>>(1);
+        this.pool = pool;
+        this.fetchTask = new SerialTask(pool.getIo(), new Runnable() {
+            public void run() {
+                fetch();
+            }
+        });
+        this.updateTask = new SerialTask(pool.getCompute(), new Runnable() {
+            public void run() {
+                Snapshot<HashMap<Integer, Shuttle>> snapshot = pollLatest(fetchQueue);
+                if (snapshot != null)
+                    update(snapshot);
+            }
+        });
+        this.persistTask = new SerialTask(pool.getIo(), new Runnable() {
+            public void run() {
+                Snapshot<EtaTable> snapshot = pollLatest(persistQueue);
+                if (snapshot != null)
+                    persist(snapshot);
+            }
+        });
+        this.routeTask = new SerialTask(pool.getIo(), new Runnable() {
+            public void run() {
+                reloadRoutes();
+            }
+        });
+    }
+
+    public void start() {
+        // the timer only signals, so a fetch that hangs never holds up another feed
+        fetchSchedule = pool.getTimer().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                fetchTask.signal();
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+
+        routeSchedule = pool.getTimer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                routeTask.signal();
+            }
+        }, routePeriod, routePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops scheduling work for this feed. Work already running is left to
+     * finish, the pool belongs to the server.
+     */
+    public void stop() {
+        if (fetchSchedule != null)
+            fetchSchedule.cancel(false);
+        if (routeSchedule != null)
+            routeSchedule.cancel(false);
+    }
+
+    private void fetch() {
+        try {
+            long fetchTime = System.currentTimeMillis();
+            fetchTimer.start();
+            HashMap<Integer, Shuttle> shuttles = world.fetchShuttles();
+            fetchTimer.stop();
+            // nothing has moved, but the etas still have to count down, so the world
+            // is updated with the shuttles of the last payload, which are all still in
+            // the feed. A fetch that failed reads no shuttles at all, so those are
+            // the ones the world ages out.
+            boolean changed = (shuttles != null);
+            if (changed)
+                lastShuttles = shuttles;
+            offerLatest(fetchQueue, new Snapshot<HashMap<Integer, Shuttle>>(lastShuttles, fetchTime, changed));
+            updateTask.signal();
+        } catch (RuntimeException e) {
+            // an exception would cancel every future fetch
+            e.printStackTrace();
+        }
+    }
+
+    private void reloadRoutes() {
+        try {
+            if (world.reloadRouteGraph()) {
+                for (Runnable listener : routeListeners)
+                    listener.run();
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel every future reload
+            e.printStackTrace();
+        }
+    }
+
+    private void update(Snapshot<HashMap<Integer, Shuttle>> snapshot) {
+        if (isStale(snapshot))
+            return;
+
+        try {
+            worldTimer.start();
+            world.updateWorld(snapshot.data, snapshot.changed);
+            worldTimer.stop();
+
+            etaTimer.start();
+            calc.updateWorld(world);
+            EtaTable etas = calc.getEtaTable();
+            etaTimer.stop();
+
+            publishTimer.start();
+            WorldSnapshot worldSnapshot = world.getSnapshot();
+            for (WorldUpdateListener listener : listeners)
+                listener.worldUpdated(worldSnapshot, etas);
+            publishTimer.stop();
+
+            if (tableName != null) {
+                offerLatest(persistQueue, new Snapshot<EtaTable>(etas, snapshot.fetchTime));
+                persistTask.signal();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void persist(Snapshot<EtaTable> snapshot) {
+        if (isStale(snapshot))
+            return;
+
+        try {
+            persistTimer.start();
+            DatabaseWriter.saveToDatabase(snapshot.data, tableName);
+            persistTimer.stop();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isStale(Snapshot<?> snapshot) {
+        return System.currentTimeMillis() - snapshot.fetchTime > MAX_SNAPSHOT_AGE * period;
+    }
+
+    /**
+     * Puts the item in the queue, replacing the item already waiting there if
+     * the next stage has not picked it up yet.
+     */
+    private static <T> void offerLatest(BlockingQueue<T> queue, T item) {
+        while (!queue.offer(item))
+            queue.poll();
+    }
+
+    /**
+     * @return the newest item available, or null if the queue is empty.
+     */
+    private static <T> T pollLatest(BlockingQueue<T> queue) {
+        T item = queue.poll();
+        T newer;
+        while ((newer = queue.poll()) != null)
+            item = newer;
+        return item;
+    }
+
+    /**
+     * @param listener - told about every update from now on
+     */
+    public void addListener(WorldUpdateListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener - run on the reloading thread each time the routes or
+     *                 stops are found to have changed
+     */
+    public void addRouteListener(Runnable listener) {
+        routeListeners.add(listener);
+    }
+
+    public StageTimer[] getStageTimers() {
+        return new StageTimer[]{fetchTimer, worldTimer, etaTimer, publishTimer, persistTimer};
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerServer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a piece of work on a shared executor each time it is signalled, never
+ * more than one run at a time. Signals that arrive while the work is running
+ * are folded into a single run after it, so a stage that falls behind catches
+ * up with one run rather than a backlog. Between runs the task gives its
+ * thread back to the executor, so many feeds can share a few threads fairly.
+ *
+ * @author saiumesh
+ */
+public class SerialTask implements Runnable {
+    private final Executor executor;
+    private final Runnable work;
+    // signals not yet answered by a run, the task is queued or running while above 0
+    private final AtomicInteger signals = new AtomicInteger();
+
+    /**
+     * @param executor - shared executor the work runs on
+     * @param work     - the work, anything it throws is printed
+     */
+    public SerialTask(Executor executor, Runnable work) {
+        this.executor = executor;
+        this.work = work;
+    }
+
+    /**
+     * Runs the work soon, unless a run is already queued that has not started.
+     */
+    public void signal() {
+        if (signals.getAndIncrement() == 0)
+            executor.execute(this);
+    }
+
+    public void run() {
+        int seen = signals.get();
+        try {
+            work.run();
+        } catch (RuntimeException e) {
+            // the signals must still be counted down, or the task never runs again
+            e.printStackTrace();
+        }
+        if (signals.addAndGet(-seen) > 0)
+            executor.execute(this);
+    }
+}
@@ -19,14 +19,16 @@
 
 package com.abstractedsheep.ShuttleTrackerServer;
 
-import com.abstractedsheep.ShuttleTrackerService.ETACalculator;
-import com.abstractedsheep.db.DatabaseWriter;
-import com.abstractedsheep.extractor.DynamicJSONExtractor;
-import com.abstractedsheep.extractor.StaticJSONExtractor;
-import com.abstractedsheep.world.World;
+import com.abstractedsheep.config.STSProperties;
+import com.abstractedsheep.dataservice.DataServiceServer;
+import com.abstractedsheep.history.PositionHistory;
+import com.abstractedsheep.world.SpeedFilter;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 
 /**
  * This is the main class that will run all of the server code. This class
@@ -35,49 +37,97 @@ import java.net.URL;
  * {@linkplain JSONExtractor.readShuttleData()} every five seconds. The shuttle
  * data then undergoes some processing in order to determine the arrival times
  * to each stop on each shuttle's route, after which this arrival time data is
- * written to MySQL database.
+ * written to MySQL database and served over HTTP by a {@link DataServiceServer},
+ * and every shuttle position is kept in a {@link PositionHistory}.
+ * Each of these steps runs as a stage of a {@link PollingPipeline}.
+ * <p>
+ * Any number of feeds, such as several campuses, can be tracked at once. Each
+ * is a {@link Feed} of its own, named in the feeds setting, and all of them
+ * share the threads of one {@link WorkerPool}.
  *
  * @author saiumesh
  */
 public class ShuttleTrackerServer {
 
     private static final int SLEEP_INTERVAL = (1000 * 5);
-    private final URL staticDataURL;
-    private final URL dynamicDataURL;
-    private final World world;
-    private ETACalculator calc;
+    // how often netlink.js is checked for route and stop changes
+    private static final int ROUTE_RELOAD_INTERVAL = (1000 * 60 * 10);
+    // where the first feed is read from unless its settings say otherwise
+    private static final String DEFAULT_ROUTES_URL = "http://shuttles.rpi.edu/displays/netlink.js";
+    private static final String DEFAULT_VEHICLES_URL = "http://shuttles.rpi.edu/vehicles/current.js";
+    private static final String DEFAULT_TABLE = "extra_eta";
+    private final WorkerPool pool;
+    private final ArrayList<Feed> feeds;
+    private DataServiceServer dataServiceServer;
 
     public ShuttleTrackerServer() throws MalformedURLException {
-        this.staticDataURL = new URL(
-                "http://shuttles.rpi.edu/displays/netlink.js");
-        dynamicDataURL = new URL("http://shuttles.rpi.edu/vehicles/current.js");
-        this.world = new World(new StaticJSONExtractor(staticDataURL),
-                new DynamicJSONExtractor(dynamicDataURL));
-        this.calc = new ETACalculator();
+        this.pool = new WorkerPool();
+        this.feeds = new ArrayList<Feed>();
+        boolean enableDB = Boolean.parseBoolean(STSProperties.ENABLE_DB.toString());
+        String historyPath = STSProperties.HISTORY_PATH.toString();
+        SpeedFilter.setDefaultMode(SpeedFilter.parseMode(STSProperties.SPEED_FILTER.toString()));
+
+        for (String name : STSProperties.FEEDS.toString().split(",")) {
+            name = name.trim();
+            if (name.length() == 0)
+                continue;
+            // the first feed keeps the urls, table and history directory a server
+            // tracking a single feed has always used
+            boolean first = feeds.isEmpty();
+            URL routesURL, vehiclesURL;
+            try {
+                routesURL = new URL(STSProperties.feedProperty(name, "routes",
+                        first ? DEFAULT_ROUTES_URL : null).toString());
+                vehiclesURL = new URL(STSProperties.feedProperty(name, "vehicles",
+                        first ? DEFAULT_VEHICLES_URL : null).toString());
+            } catch (MalformedURLException e) {
+                // one badly set up feed should not keep the others from running
+                System.err.println("Skipping feed " + name + ", its urls are not set: ");
+                e.printStackTrace();
+                continue;
+            }
+            // the database is optional now that the etas are served directly
+            String tableName = enableDB ? STSProperties.feedProperty(name, "table",
+                    first ? DEFAULT_TABLE : null).toString() : null;
+            File historyDir = (historyPath.length() == 0) ? null
+                    : first ? new File(historyPath) : new File(historyPath, name);
+            feeds.add(new Feed(name, routesURL, vehiclesURL, tableName, historyDir,
+                    SLEEP_INTERVAL, ROUTE_RELOAD_INTERVAL, pool));
+        }
         executeWorld();
     }
 
     private void executeWorld() {
         // XXX All updates and modifications to the world are accomplished
-        // within it.
-        this.world.generateWorld();
-        while (true) {
-            updateWorld();
-            DatabaseWriter.saveToDatabase(calc, "extra_eta");
-            try {
-                Thread.sleep(SLEEP_INTERVAL);
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        // within each feed.
+        if (feeds.isEmpty()) {
+            System.err.println("No feeds to track");
+            return;
+        }
+        // write out the samples still held in memory when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                for (Feed feed : feeds)
+                    feed.stop();
             }
+        });
+
+        Feed first = feeds.get(0);
+        try {
+            this.dataServiceServer = new DataServiceServer(Integer.parseInt(STSProperties.HTTP_PORT.toString()),
+                    first.getDataService(), first.getUpdateChannel());
+            for (Feed feed : feeds)
+                this.dataServiceServer.addFeed(feed.getName(), feed.getDataService(), feed.getUpdateChannel());
+            this.dataServiceServer.start();
+        } catch (IOException e) {
+            // keep tracking, the etas still reach the database if it is enabled
+            System.err.println("Could not start the data service: ");
+            e.printStackTrace();
         }
-    }
 
-    private void updateWorld() {
-        this.world.updateWorld();
-        // update calculator's instance of the world before calculating the
-        // etas.
-        this.calc.updateWorld(world);
+        for (Feed feed : feeds)
+            feed.start();
     }
 
     public static void initServer(String[] args) {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerServer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The threads shared by every feed the server tracks. Work that waits on the
+ * network or the database runs on threads apart from the work that computes,
+ * so a feed whose server hangs ties up only threads of its own and never the
+ * ones the other feeds need to update their worlds and etas.
+ * <ul>
+ * <li>timer - a single thread that only signals work at the right time</li>
+ * <li>io - grows a thread for each blocking call; each feed has at most one
+ * fetch, one route reload and one database write in flight</li>
+ * <li>compute - one thread per core, for world updates and etas</li>
+ * </ul>
+ *
+ * @author saiumesh
+ */
+public class WorkerPool {
+    private final ScheduledExecutorService timer;
+    private final ExecutorService io;
+    private final ExecutorService compute;
+    private final int parallelism;
+
+    public WorkerPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads - number of threads computing at once
+     */
+    public WorkerPool(int threads) {
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.io = Executors.newCachedThreadPool();
+        this.compute = Executors.newFixedThreadPool(threads);
+        this.parallelism = threads;
+    }
+
+    public ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    public ExecutorService getIo() {
+        return io;
+    }
+
+    public ExecutorService getCompute() {
+        return compute;
+    }
+
+    /**
+     * @return the number of compute threads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        io.shutdownNow();
+        compute.shutdownNow();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerServer;
+
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.WorldSnapshot;
+
+/**
+ * Receives the world and its etas each time the {@link PollingPipeline} updates
+ * them.
+ *
+ * @author saiumesh
+ */
+public interface WorldUpdateListener {
+    /**
+     * Called on the pipeline's update thread, so it should return quickly.
+     *
+     * @param world - the snapshot the etas were calculated from
+     * @param etas  - the etas, which are not modified afterwards
+     */
+    void worldUpdated(WorldSnapshot world, EtaTable etas);
+}
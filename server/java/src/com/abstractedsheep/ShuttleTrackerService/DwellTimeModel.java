@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.Stop;
+import com.abstractedsheep.world.WorldSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long shuttles wait at each stop, learned as the world is updated. A
+ * shuttle is at a stop while the point it is snapped to on its route is close
+ * to where the stop is snapped to the same route, and the time between the
+ * first and last update seen there is one visit. Each stop keeps streaming
+ * estimates of the median and 90th percentile visit, so the memory used for a
+ * stop stays the same however many visits it sees and recording a visit takes
+ * constant time.
+ * <p>
+ * Stops are looked up by their index in the graph of the last update, and
+ * shuttles by their id without boxing it. Stops are only looked up by name when
+ * the routes are reloaded, so that what was learned carries over to the new graph.
+ * <p>
+ * There is no locking. update() is only called from the thread that calculates
+ * the etas, and the getters are called from that thread and from the tasks
+ * ETACalculator splits a large fleet into, which only read. update() finishes
+ * before the tasks are handed to the executor, which happens-before they run,
+ * and the calculating thread waits on each task's monitor until it is done
+ * before the next update(), so the tasks always see a finished update and the
+ * next update never changes the model under a task still reading it.
+ *
+ * @author saiumesh
+ */
+public class DwellTimeModel {
+    // a shuttle snapped within this of a stop is at the stop, in miles
+    public static final double DWELL_RADIUS = 0.02;
+    // visits longer than this in milliseconds are a shuttle parked, not waiting
+    private static final long MAX_DWELL = 10 * 60 * 1000;
+    // a stop needs this many visits before its dwell time is used
+    private static final int MIN_VISITS = 5;
+
+    // keyed by stop short name, every stop ever seen
+    private final HashMap<String, StopDwell> stopsByName;
+    // the same, indexed by Stop.getIndex() in the graph of the last update
+    private StopDwell[] stops = new StopDwell[0];
+    private RouteGraph graph;
+    // the stop each shuttle is at, keyed by shuttle id
+    private final IntMap<Visit> visits;
+    // ids of shuttles that have disappeared, kept from one update to the next
+    private int[] gone = new int[0];
+    private long lastVersion = -1;
+
+    public DwellTimeModel() {
+        this.stopsByName = new HashMap<String, StopDwell>();
+        this.visits = new IntMap<Visit>();
+    }
+
+    /**
+     * Checks every shuttle against the stops on its route, recording a visit for
+     * each shuttle that has left the stop it was at. A shuttle standing at a stop
+     * reports the same position over and over, so visits are timed by when the
+     * snapshots were taken rather than when the shuttles last moved. Shuttles that
+     * have disappeared have their visits forgotten, since when they left is not known.
+     */
+    public void update(WorldSnapshot snapshot) {
+        if (snapshot.getVersion() == lastVersion)
+            return;
+        lastVersion = snapshot.getVersion();
+        long time = snapshot.getTime();
+
+        if (snapshot.getRouteGraph() != graph)
+            setGraph(snapshot.getRouteGraph());
+
+        Map<Integer, Shuttle> shuttles = snapshot.getShuttleList();
+        int goneCount = 0;
+        for (int slot = visits.nextSlot(0); slot != -1; slot = visits.nextSlot(slot + 1)) {
+            if (!shuttles.containsKey(visits.keyAt(slot)))
+                goneCount = addGone(goneCount, visits.keyAt(slot));
+        }
+        for (int i = 0; i < goneCount; i++)
+            visits.remove(gone[i]);
+
+        for (Shuttle shuttle : shuttles.values()) {
+            Visit visit = visits.get(shuttle.getShuttleId());
+            Stop stop = findStop(shuttle);
+            if (visit != null && stop != null && visit.stop == stops[stop.getIndex()]) {
+                visit.lastSeen = time;
+                continue;
+            }
+            if (visit != null) {
+                record(visit);
+                visits.remove(shuttle.getShuttleId());
+            }
+            if (stop != null)
+                visits.put(shuttle.getShuttleId(), new Visit(stops[stop.getIndex()], stop.getIndex(), time));
+        }
+    }
+
+    /**
+     * Lines up the dwell times learned so far with the stops of a new graph,
+     * matching stops by short name. Shuttles waiting at a stop that is no longer
+     * in the graph have their visits forgotten.
+     */
+    private void setGraph(RouteGraph newGraph) {
+        StopDwell[] newStops = new StopDwell[newGraph.getStopCount()];
+        for (int i = 0; i < newStops.length; i++) {
+            String name = newGraph.getStop(i).getShortName();
+            StopDwell stop = stopsByName.get(name);
+            if (stop == null) {
+                stop = new StopDwell();
+                stopsByName.put(name, stop);
+            }
+            newStops[i] = stop;
+        }
+        this.stops = newStops;
+        this.graph = newGraph;
+
+        int goneCount = 0;
+        for (int slot = visits.nextSlot(0); slot != -1; slot = visits.nextSlot(slot + 1)) {
+            Visit visit = visits.valueAt(slot);
+            visit.stopIndex = -1;
+            for (int i = 0; i < newStops.length; i++) {
+                if (newStops[i] == visit.stop)
+                    visit.stopIndex = i;
+            }
+            if (visit.stopIndex == -1)
+                goneCount = addGone(goneCount, visits.keyAt(slot));
+        }
+        for (int i = 0; i < goneCount; i++)
+            visits.remove(gone[i]);
+    }
+
+    /**
+     * Notes a shuttle whose visit is to be forgotten once the visits have been
+     * walked, since removing one while walking them would move the others.
+     *
+     * @return the number of shuttles noted
+     */
+    private int addGone(int count, int shuttleId) {
+        if (count == gone.length)
+            gone = Arrays.copyOf(gone, count * 2 + 4);
+        gone[count] = shuttleId;
+        return count + 1;
+    }
+
+    /**
+     * @return the stop on the shuttle's route it is snapped within DWELL_RADIUS
+     *         of, or null if it is not at a stop.
+     */
+    private static Stop findStop(Shuttle shuttle) {
+        Route rt = shuttle.getCurrentRoute();
+        Coordinate position = shuttle.getClosestPoint();
+        if (position == null)
+            return null;
+        for (int i = 0; i < rt.getStopCount(); i++) {
+            Stop stop = rt.getStop(i);
+            Coordinate snapped = stop.getSnappedCoordinate(rt.getIdNum());
+            if (snapped != null && position.distanceFromCoordiante(snapped) <= DWELL_RADIUS)
+                return stop;
+        }
+        return null;
+    }
+
+    private void record(Visit visit) {
+        long dwell = visit.lastSeen - visit.arrival;
+        if (dwell > MAX_DWELL)
+            return;
+        visit.stop.median.add(dwell);
+        visit.stop.p90.add(dwell);
+    }
+
+    /**
+     * @param stopIndex - from {@link Stop#getIndex()} in the graph of the last update
+     * @return the median time in milliseconds shuttles wait at the stop, or 0 if
+     *         too few visits have been seen to tell.
+     */
+    public long getExpectedDwell(int stopIndex) {
+        return getExpectedDwell(stops[stopIndex]);
+    }
+
+    private static long getExpectedDwell(StopDwell stop) {
+        if (stop.median.getCount() < MIN_VISITS)
+            return 0;
+        return (long) stop.median.get();
+    }
+
+    /**
+     * @param stopIndex - from {@link Stop#getIndex()} in the graph of the last update
+     * @return the time in milliseconds nine in ten shuttles have left the stop
+     *         within, or 0 if too few visits have been seen to tell.
+     */
+    public long getLongDwell(int stopIndex) {
+        StopDwell stop = stops[stopIndex];
+        if (stop.p90.getCount() < MIN_VISITS)
+            return 0;
+        return (long) stop.p90.get();
+    }
+
+    /**
+     * @return the index of the stop the shuttle is waiting at in the graph of the
+     *         last update, or -1.
+     */
+    public int getCurrentStop(int shuttleId) {
+        Visit visit = visits.get(shuttleId);
+        return (visit == null) ? -1 : visit.stopIndex;
+    }
+
+    /**
+     * @return how much longer in milliseconds the shuttle can be expected to wait
+     *         at the stop it is at, 0 if it is not at a stop or has waited longer
+     *         than most shuttles do.
+     */
+    public long getRemainingDwell(int shuttleId) {
+        Visit visit = visits.get(shuttleId);
+        if (visit == null)
+            return 0;
+        return Math.max(0, getExpectedDwell(visit.stop) - (visit.lastSeen - visit.arrival));
+    }
+
+    private static class StopDwell {
+        final StreamingQuantile median = new StreamingQuantile(0.5);
+        final StreamingQuantile p90 = new StreamingQuantile(0.9);
+    }
+
+    private static class Visit {
+        final StopDwell stop;
+        int stopIndex;
+        final long arrival;
+        long lastSeen;
+
+        Visit(StopDwell stop, int stopIndex, long arrival) {
+            this.stop = stop;
+            this.stopIndex = stopIndex;
+            this.arrival = arrival;
+            this.lastSeen = arrival;
+        }
+    }
+}
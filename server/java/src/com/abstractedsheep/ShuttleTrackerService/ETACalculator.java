@@ -22,118 +22,286 @@ package com.abstractedsheep.ShuttleTrackerService;
 import com.abstractedsheep.world.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ETACalculator {
-    private World world;
-    private ArrayList<Eta> etaList;
-
-    public class Eta {
-        public int shuttleId;
-        public int routeId;
-        public int time;
-        public long arrivalTime;
-        public String stopId;
-        public String stopName;
-        public int Id;
+    // distances are in miles and speeds in miles per hour
+    private static final int MILLISECONDS_PER_HOUR = (1000 * 60 * 60);
+    // how many times each shuttle's arrival at each stop is predicted, one per
+    // trip around the route, numbered from 0 in the eta's id
+    public static final int ARRIVALS_PER_STOP = 12;
+    // fewer shuttles than this are not worth handing to another thread
+    private static final int SHUTTLES_PER_TASK = 8;
 
-        /**
-         * @param shuttleId
-         * @param routeId
-         * @param time
-         * @param stopId
-         */
-        public Eta(int shuttleId, int routeId, int time, String stopId,
-                   String stopName, int etaId) {
-            this.shuttleId = shuttleId;
-            this.stopName = stopName;
-            this.Id = etaId;
-            this.routeId = routeId;
-            this.time = time;
-            this.stopId = stopId;
-            this.arrivalTime = (System.currentTimeMillis() + time) / 1000L;
+    private static final Comparator<Shuttle> BY_ID = new Comparator<Shuttle>() {
+        public int compare(Shuttle s1, Shuttle s2) {
+            return (s1.getShuttleId() < s2.getShuttleId()) ? -1
+                    : (s1.getShuttleId() == s2.getShuttleId()) ? 0 : 1;
         }
+    };
 
-    }
+    private WorldSnapshot world;
+    // replaced by a new table with every update, since listeners keep the old one
+    private volatile EtaTable etaTable = EtaTable.EMPTY;
+    // replaced from the thread that learns it
+    private volatile SegmentSpeedModel speedModel = SegmentSpeedModel.EMPTY;
+    private final DwellTimeModel dwellModel;
+    // runs the etas of large fleets in parallel, null to calculate them all here
+    private volatile Executor executor;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    // kept from one update to the next so that calculating allocates nothing per eta
+    private final ArrayList<Shuttle> shuttles = new ArrayList<Shuttle>();
+    private EtaTask[] tasks = new EtaTask[0];
 
     public ETACalculator() {
         world = null;
-        etaList = new ArrayList<Eta>();
+        dwellModel = new DwellTimeModel();
     }
 
-    public ArrayList<Eta> getETAs() {
-        return this.etaList;
+    /**
+     * @param model - used for every eta from now on
+     */
+    public void setSpeedModel(SegmentSpeedModel model) {
+        this.speedModel = model;
+    }
+
+    /**
+     * Spreads the etas of large fleets over several threads. The etas come out
+     * the same, in the same order, as when they are calculated on one thread.
+     *
+     * @param executor    - threads to use, or null to calculate every eta on
+     *                    the thread updating the world
+     * @param parallelism - the most tasks to split the shuttles into
+     */
+    public void setExecutor(Executor executor, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = executor;
+    }
+
+    /**
+     * @return how long shuttles wait at each stop, learned from every world update
+     */
+    public DwellTimeModel getDwellModel() {
+        return dwellModel;
+    }
+
+    /**
+     * @return the etas of the last update, which are never changed afterwards
+     */
+    public EtaTable getEtaTable() {
+        return this.etaTable;
     }
 
     public void updateWorld(World world2) {
-        this.world = world2;
+        this.updateWorld(world2.getSnapshot());
+    }
+
+    /**
+     * Calculates the etas for one snapshot of the world, which stays the same
+     * however the world changes while the etas are being calculated.
+     */
+    public void updateWorld(WorldSnapshot snapshot) {
+        this.world = snapshot;
+        this.dwellModel.update(snapshot);
         this.calculatateETAs();
     }
 
+    /**
+     * Computes the time for every shuttle to reach each stop on its route. Both the
+     * shuttle and the stops are stored as offsets along the route, so the distance
+     * between the two is a subtraction rather than a walk over every route point.
+     * The time is what the speed model has learned shuttles take at this hour, or
+     * if it has learned nothing for the route, the distance over the shuttle's speed.
+     * <p>
+     * The stops are visited in the order the shuttle will reach them, and the time
+     * it is expected to wait at each stop is added to the etas of every stop after
+     * it, starting with what is left of its wait at the stop it is at now.
+     * <p>
+     * Each later arrival at a stop is one more trip around the route, so it is
+     * the first arrival plus a multiple of the time a trip takes, driving and
+     * waiting at every stop. All of a shuttle's arrivals come from the same
+     * offsets, with no more geometry than the first.
+     * <p>
+     * Each shuttle's etas depend on nothing but the shuttle, so a large fleet is
+     * split into runs of shuttles that are calculated on the executor's threads
+     * into tables of their own and then joined in order.
+     */
     private void calculatateETAs() {
-        this.etaList.clear();
+        SegmentSpeedModel model = this.speedModel;
+        long now = System.currentTimeMillis();
+        int bucket = SegmentSpeedModel.getBucket(now);
+        RouteGraph graph = world.getRouteGraph();
+        // shuttles are taken in order of id, so that the etas come out in the same
+        // order however many tasks they are split into
+        shuttles.clear();
+        shuttles.addAll(world.getShuttleList().values());
+        Collections.sort(shuttles, BY_ID);
+
+        Executor executor = this.executor;
+        int count = (executor == null) ? 1
+                : Math.max(1, Math.min(parallelism, (shuttles.size() + SHUTTLES_PER_TASK - 1) / SHUTTLES_PER_TASK));
+        if (tasks.length < count) {
+            EtaTask[] grown = Arrays.copyOf(tasks, count);
+            for (int i = tasks.length; i < count; i++)
+                grown[i] = new EtaTask();
+            tasks = grown;
+        }
+        for (int i = 0; i < count; i++)
+            tasks[i].prepare(graph, model, bucket, now, i * shuttles.size() / count,
+                    (i + 1) * shuttles.size() / count);
+
+        for (int i = 1; i < count; i++) {
+            try {
+                executor.execute(tasks[i]);
+            } catch (RejectedExecutionException e) {
+                // the task is run here instead
+            }
+        }
+        // this thread runs every task no other thread has started, so it never
+        // waits on a task stuck behind it in a busy executor
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            tasks[i].run();
+            size += tasks[i].getEtas().size();
+        }
+        EtaTable table = new EtaTable(graph, size);
+        for (int i = 0; i < count; i++)
+            table.addAll(tasks[i].getEtas());
+        this.etaTable = table;
+    }
+
+    /**
+     * The etas of a run of shuttles, along with room to work them out in that is
+     * kept from one update to the next. Whichever thread gets to it first runs it.
+     */
+    private class EtaTask implements Runnable {
+        private final EtaTable etas = new EtaTable(RouteGraph.EMPTY, 0);
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private RouteGraph graph;
+        private SegmentSpeedModel model;
+        private int bucket;
+        private long now;
+        private int from, to;
+        private boolean done;
+        private RuntimeException failure;
+        // the stops of the current shuttle's route, in the order it reaches them
+        private Stop[] stops = new Stop[0];
+        private double[] stopDistances = new double[0];
+        private double[] distances = new double[0];
+
+        /**
+         * Sets the task up for the shuttles from index from up to index to.
+         */
+        void prepare(RouteGraph graph, SegmentSpeedModel model, int bucket, long now, int from, int to) {
+            this.graph = graph;
+            this.model = model;
+            this.bucket = bucket;
+            this.now = now;
+            this.from = from;
+            this.to = to;
+            this.done = false;
+            this.failure = null;
+            this.claimed.set(false);
+        }
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true))
+                return;
+            try {
+                etas.reset(graph);
+                for (int i = from; i < to; i++)
+                    calculateETAs(shuttles.get(i));
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the task to finish, which it is already doing on another thread.
+         */
+        synchronized EtaTable getEtas() {
+            try {
+                while (!done)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while calculating etas", e);
+            }
+            if (failure != null)
+                throw failure;
+            return etas;
+        }
 
-        for (Shuttle shuttle : world.getShuttleList().values()) {
+        private void calculateETAs(Shuttle shuttle) {
             Route rt = shuttle.getCurrentRoute();
-            int size = rt.getCoordinateList().size();
-            for (Stop stop : rt.getStopList().values()) {
-                int i = shuttle.getNextRouteCoordinate();
-                int j;
-                double distance;
-                int stopPrecedingCoordinate = stop.getPrecedingCoordinate()
-                        .get(rt.getIdNum());
-
-                // If the shuttle and stop are between the same two route
-                // points, the distance is
-                // simply the distance from the shuttle to the stop
-                if ((shuttle.getNextRouteCoordinate() == 0 && stopPrecedingCoordinate == size - 1)
-                        || (shuttle.getNextRouteCoordinate() == stopPrecedingCoordinate + 1)) {
-                    distance = shuttle.getCurrentLocation()
-                            .distanceFromCoordiante(shuttle.getClosestPoint());
-                } else {
-                    // Start with the distance from the shuttle to the next
-                    // route point
-                    distance = shuttle.getCurrentLocation()
-                            .distanceFromCoordiante(
-                                    (rt.getCoordinateList().get(shuttle
-                                            .getNextRouteCoordinate())));
-
-                    // Go through each route point until we reach the one just
-                    // before
-                    // the stop and sum the distances
-                    while (i != stopPrecedingCoordinate) {
-
-                        if (i == size)
-                            j = 0;
-                        else
-                            j = i + 1;
-
-                        // TODO: use the nextStopDistance map to remove the need
-                        // to recalculate
-                        // the distance each time. Check execution times for
-                        // both. Dictionary lookup
-                        // may actually be slower than recalculating
-                        Coordinate c1 = rt.getCoordinateList().get(i);
-                        Coordinate c2 = rt.getCoordinateList().get(j);
-
-                        distance += c1.distanceFromCoordiante(c2);
-
-                        i++;
-                        if (i == size)
-                            i = 0;
-                    }
-
-                    // Finish by adding the distance from the stop to the last
-                    // route point that the shuttle
-                    // will go through
-                    distance += stop.getPrecedingCoordinateDistance().get(
-                            rt.getIdNum());
+            double shuttleDistance = shuttle.getDistanceAlongRoute();
+            int count = rt.getStopCount();
+            if (stops.length < count) {
+                stops = new Stop[count];
+                stopDistances = new double[count];
+                distances = new double[count];
+            }
+            double loopDwell = 0;
+            for (int i = 0; i < count; i++) {
+                Stop stop = rt.getStop(i);
+                double stopDistance = stop.getDistanceAlongRoute(rt.getIdNum());
+                insert(i, stop, stopDistance, rt.getDistanceBetween(shuttleDistance, stopDistance));
+                loopDwell += dwellModel.getExpectedDwell(stop.getIndex());
+            }
+
+            long learnedLoop = model.getLoopTime(rt, bucket);
+            double loopTime = ((learnedLoop >= 0) ? learnedLoop
+                    : rt.getRoundTripDistance() / shuttle.getSpeed() * MILLISECONDS_PER_HOUR) + loopDwell;
+
+            int currentStop = dwellModel.getCurrentStop(shuttle.getShuttleId());
+            long dwell = dwellModel.getRemainingDwell(shuttle.getShuttleId());
+            for (int i = 0; i < count; i++) {
+                Stop stop = stops[i];
+                long learnedTime = model.getTravelTime(rt, shuttleDistance, stopDistances[i], bucket);
+                double time = (learnedTime >= 0) ? learnedTime
+                        : distances[i] / shuttle.getSpeed() * MILLISECONDS_PER_HOUR;
+                // the shuttle is waiting at this stop right now
+                boolean waiting = stop.getIndex() == currentStop
+                        && distances[i] <= DwellTimeModel.DWELL_RADIUS;
+                if (!waiting) {
+                    time += dwell;
+                    dwell += dwellModel.getExpectedDwell(stop.getIndex());
+                }
+                for (int arrival = 0; arrival < ARRIVALS_PER_STOP; arrival++) {
+                    int eta = (int) (time + arrival * loopTime);
+                    etas.add(shuttle.getShuttleId(), rt.getIdNum(), stop.getIndex(), arrival, eta,
+                            (now + eta) / 1000L);
                 }
-                int time = (int) (distance / shuttle.getSpeed());
-                this.etaList.add(new Eta(shuttle.getShuttleId(), shuttle
-                        .getCurrentRoute().getIdNum(), time, stop
-                        .getShortName(), stop.getName(), 0));
             }
         }
+
+        /**
+         * Inserts a stop among the first count stops, keeping them ordered by how
+         * far ahead of the shuttle they are. Routes have few stops, so moving the
+         * ones further ahead up a place is quicker than sorting.
+         */
+        private void insert(int count, Stop stop, double stopDistance, double distance) {
+            int i = count;
+            while (i > 0 && distances[i - 1] > distance) {
+                stops[i] = stops[i - 1];
+                stopDistances[i] = stopDistances[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            stops[i] = stop;
+            stopDistances[i] = stopDistance;
+            distances[i] = distance;
+        }
     }
 
 }
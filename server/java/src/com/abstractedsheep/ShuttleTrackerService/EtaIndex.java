@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+/**
+ * Finds the row of an eta in an {@link EtaTable} by what identifies it from one
+ * update to the next: the shuttle, route, stop and eta id. The rows are kept in
+ * one int array probed from a hash of those fields, and compared field by field,
+ * so building the index or looking an eta up allocates nothing per eta.
+ * <p>
+ * Etas from a table calculated against the same graph are matched by stop index.
+ * After the routes are reloaded the stop indices may differ, so etas from a table
+ * of another graph are matched by stop id instead.
+ *
+ * @author saiumesh
+ */
+public final class EtaIndex {
+    private final EtaTable table;
+    // the row of each eta plus one, 0 for an empty slot
+    private final int[] rows;
+    private final int mask;
+
+    public EtaIndex(EtaTable table) {
+        this.table = table;
+        int capacity = 4;
+        // kept at most half full, so probes stay short
+        while (capacity < table.size() * 2)
+            capacity <<= 1;
+        this.rows = new int[capacity];
+        this.mask = capacity - 1;
+        for (int row = 0; row < table.size(); row++) {
+            int slot = hash(table, row) & mask;
+            while (rows[slot] != 0)
+                slot = (slot + 1) & mask;
+            rows[slot] = row + 1;
+        }
+    }
+
+    /**
+     * @return the row of the same eta in the indexed table, or -1 if it has none
+     */
+    public int find(EtaTable other, int row) {
+        boolean sameGraph = other.getRouteGraph() == table.getRouteGraph();
+        int slot = hash(other, row) & mask;
+        while (rows[slot] != 0) {
+            int candidate = rows[slot] - 1;
+            if (table.getShuttleId(candidate) == other.getShuttleId(row)
+                    && table.getRouteId(candidate) == other.getRouteId(row)
+                    && table.getEtaId(candidate) == other.getEtaId(row)
+                    && (sameGraph ? table.getStopIndex(candidate) == other.getStopIndex(row)
+                    : table.getStopId(candidate).equals(other.getStopId(row))))
+                return candidate;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes the stop by its id, which strings keep once worked out, so that the
+     * same eta hashes the same in tables of different graphs.
+     */
+    private static int hash(EtaTable table, int row) {
+        int h = table.getShuttleId(row);
+        h = h * 31 + table.getRouteId(row);
+        h = h * 31 + table.getStopId(row).hashCode();
+        h = h * 31 + table.getEtaId(row);
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Stop;
+
+import java.util.Arrays;
+
+/**
+ * The etas of one update, stored as a column of numbers per field rather than
+ * as an object per eta, so that filling or reading a table allocates nothing
+ * per eta. Stops are stored as their index in the {@link RouteGraph} the etas
+ * were calculated against, and their ids and names are looked up from it.
+ * <p>
+ * A table is filled by one thread and is never changed once it has been handed
+ * to the listeners of an update, so it can then be read from any thread.
+ *
+ * @author saiumesh
+ */
+public final class EtaTable {
+    public static final EtaTable EMPTY = new EtaTable(RouteGraph.EMPTY, 0);
+
+    private RouteGraph graph;
+    private int size;
+    private int[] shuttleIds;
+    private int[] routeIds;
+    private int[] stopIndices;
+    private int[] etaIds;
+    // milliseconds from the time the etas were calculated
+    private int[] times;
+    // seconds since the epoch
+    private long[] arrivalTimes;
+
+    /**
+     * @param graph    - the graph the stop indices refer to
+     * @param capacity - number of etas the table holds before it has to grow
+     */
+    public EtaTable(RouteGraph graph, int capacity) {
+        this.graph = graph;
+        this.shuttleIds = new int[capacity];
+        this.routeIds = new int[capacity];
+        this.stopIndices = new int[capacity];
+        this.etaIds = new int[capacity];
+        this.times = new int[capacity];
+        this.arrivalTimes = new long[capacity];
+    }
+
+    /**
+     * Empties the table, keeping its arrays, to be filled against the given graph.
+     */
+    public void reset(RouteGraph graph) {
+        this.graph = graph;
+        this.size = 0;
+    }
+
+    /**
+     * @param stopIndex   - from {@link Stop#getIndex()}
+     * @param etaId       - which of the shuttle's arrivals at the stop, 0 for the next
+     * @param time        - milliseconds until the shuttle arrives
+     * @param arrivalTime - the time the shuttle arrives in seconds
+     */
+    public void add(int shuttleId, int routeId, int stopIndex, int etaId, int time, long arrivalTime) {
+        if (size == times.length)
+            grow(size + 1);
+        shuttleIds[size] = shuttleId;
+        routeIds[size] = routeId;
+        stopIndices[size] = stopIndex;
+        etaIds[size] = etaId;
+        times[size] = time;
+        arrivalTimes[size] = arrivalTime;
+        size++;
+    }
+
+    /**
+     * Appends every eta of another table filled against the same graph.
+     */
+    public void addAll(EtaTable other) {
+        if (size + other.size > times.length)
+            grow(size + other.size);
+        System.arraycopy(other.shuttleIds, 0, shuttleIds, size, other.size);
+        System.arraycopy(other.routeIds, 0, routeIds, size, other.size);
+        System.arraycopy(other.stopIndices, 0, stopIndices, size, other.size);
+        System.arraycopy(other.etaIds, 0, etaIds, size, other.size);
+        System.arraycopy(other.times, 0, times, size, other.size);
+        System.arraycopy(other.arrivalTimes, 0, arrivalTimes, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Appends one eta of another table filled against the same graph.
+     */
+    public void addRow(EtaTable other, int row) {
+        add(other.shuttleIds[row], other.routeIds[row], other.stopIndices[row], other.etaIds[row],
+                other.times[row], other.arrivalTimes[row]);
+    }
+
+    private void grow(int needed) {
+        int capacity = Math.max(needed, times.length * 2);
+        shuttleIds = Arrays.copyOf(shuttleIds, capacity);
+        routeIds = Arrays.copyOf(routeIds, capacity);
+        stopIndices = Arrays.copyOf(stopIndices, capacity);
+        etaIds = Arrays.copyOf(etaIds, capacity);
+        times = Arrays.copyOf(times, capacity);
+        arrivalTimes = Arrays.copyOf(arrivalTimes, capacity);
+    }
+
+    /**
+     * @return a copy of this table with the etas ordered soonest first, etas
+     *         with the same time keeping the order they had.
+     */
+    public EtaTable sortedByTime() {
+        // the time in the high half and the row in the low half sorts by time then row
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++)
+            keys[i] = ((long) times[i] << 32) | i;
+        Arrays.sort(keys);
+
+        EtaTable sorted = new EtaTable(graph, size);
+        for (long key : keys) {
+            int i = (int) key;
+            sorted.add(shuttleIds[i], routeIds[i], stopIndices[i], etaIds[i], times[i], arrivalTimes[i]);
+        }
+        return sorted;
+    }
+
+    public RouteGraph getRouteGraph() {
+        return graph;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getShuttleId(int row) {
+        return shuttleIds[row];
+    }
+
+    public int getRouteId(int row) {
+        return routeIds[row];
+    }
+
+    public int getStopIndex(int row) {
+        return stopIndices[row];
+    }
+
+    /**
+     * @return the short name of the stop
+     */
+    public String getStopId(int row) {
+        return graph.getStop(stopIndices[row]).getShortName();
+    }
+
+    public String getStopName(int row) {
+        return graph.getStop(stopIndices[row]).getName();
+    }
+
+    public int getEtaId(int row) {
+        return etaIds[row];
+    }
+
+    public int getTime(int row) {
+        return times[row];
+    }
+
+    public long getArrivalTime(int row) {
+        return arrivalTimes[row];
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to values that stores the keys unboxed, in one array
+ * probed from the key's hash, so looking a key up allocates nothing. Null values
+ * are not allowed, since a null value marks an empty slot.
+ * <p>
+ * The entries are visited by slot:
+ * <pre>
+ * for (int slot = map.nextSlot(0); slot != -1; slot = map.nextSlot(slot + 1))
+ *     use(map.keyAt(slot), map.valueAt(slot));
+ * </pre>
+ * Not thread safe.
+ *
+ * @author saiumesh
+ */
+public class IntMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public IntMap() {
+        this(8);
+    }
+
+    /**
+     * @param expected - number of entries the map holds before it has to grow
+     */
+    public IntMap(int expected) {
+        int capacity = 4;
+        // kept at most half full, so probes stay short
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot it would go in
+     */
+    private int find(int key) {
+        int slot = slotOf(key);
+        while (values[slot] != null && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[find(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return values[find(key)] != null;
+    }
+
+    /**
+     * @return the value the key had before, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null)
+            throw new NullPointerException("IntMap does not hold null values");
+        int slot = find(key);
+        V old = (V) values[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        if (old == null && ++size * 2 > keys.length)
+            grow();
+        return old;
+    }
+
+    /**
+     * @return the value the key had, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = find(key);
+        V old = (V) values[slot];
+        if (old == null)
+            return null;
+        values[slot] = null;
+        size--;
+        // moves back the entries after it that would no longer be found past the gap
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int home = slotOf(keys[next]);
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                values[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return the first slot from the given one on that holds an entry, or -1
+     */
+    public int nextSlot(int slot) {
+        for (int i = slot; i < values.length; i++) {
+            if (values[i] != null)
+                return i;
+        }
+        return -1;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.history.PositionHistory;
+import com.abstractedsheep.history.PositionSample;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * How long shuttles have taken to travel along each route, by hour of the day,
+ * learned from the {@link PositionHistory}. Each route is cut into short
+ * stretches and the speed over each stretch is learned separately, since a
+ * shuttle crawls past a crosswalk and speeds along an open road. Weekdays and
+ * weekends are learned separately as well.
+ * <p>
+ * For each route and hour the model keeps a single array of the time taken to
+ * reach each stretch from the start of the route. The travel time between any
+ * two points is then two lookups and a subtraction, however far apart they are.
+ * A model is built on its own thread every few hours and never changes after.
+ * <p>
+ * Time spent standing at a stop is not counted as travel, since how long a
+ * shuttle waits there has nothing to do with how fast it drives. Waiting is
+ * learned stop by stop in the {@link DwellTimeModel} instead.
+ *
+ * @author saiumesh
+ */
+public final class SegmentSpeedModel {
+    public static final SegmentSpeedModel EMPTY = new SegmentSpeedModel(new IntMap<RouteTimes>());
+
+    // length of the stretches speeds are learned for, in miles
+    private static final double BIN_LENGTH = 0.05;
+    // the hours of a weekday, then the hours of a weekend day
+    private static final int BUCKETS = 48;
+    private static final int MILLISECONDS_PER_HOUR = (1000 * 60 * 60);
+    private static final long MILLISECONDS_PER_DAY = 24L * MILLISECONDS_PER_HOUR;
+    // a stretch needs this many miles of travel seen on it to get a speed of its
+    // own, otherwise it gets the average speed of the route
+    private static final double MIN_BIN_DISTANCE = 0.25;
+    // a route needs this many miles of travel seen in an hour to be learned at all
+    private static final double MIN_ROUTE_DISTANCE = 5;
+    // learned speeds are kept within these, in miles per hour
+    private static final double MIN_SPEED = 2;
+    private static final double MAX_SPEED = 45;
+    // samples further apart than this in milliseconds are not compared
+    private static final long MAX_SAMPLE_GAP = 60 * 1000;
+    // a sample further than this from every route is off route, in miles
+    private static final double SNAP_DISTANCE = 0.05;
+    // a shuttle that moved less than this between samples was standing still
+    private static final double MIN_MOVEMENT = 0.003;
+    // standing still within this of a stop is waiting at the stop
+    private static final double STOP_RADIUS = 0.02;
+    // the hours of the buckets are the hours of the day here
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    // keyed by route id
+    private final IntMap<RouteTimes> routes;
+
+    /**
+     * The learned times of one route.
+     */
+    private static class RouteTimes {
+        final double length;
+        final int bins;
+        // for each bucket, the time in milliseconds from the start of the route to
+        // the start of each stretch and finally to the end, or null if not learned
+        final float[][] cumulativeTimes;
+
+        RouteTimes(double length, int bins, float[][] cumulativeTimes) {
+            this.length = length;
+            this.bins = bins;
+            this.cumulativeTimes = cumulativeTimes;
+        }
+
+        /**
+         * @return the time to travel from the start of the route to the distance
+         */
+        double timeTo(float[] cumulative, double distance) {
+            int bin = Math.max(0, Math.min(bins - 1, (int) (distance / BIN_LENGTH)));
+            double start = bin * BIN_LENGTH;
+            double end = Math.min(start + BIN_LENGTH, length);
+            double fraction = (end > start) ? (distance - start) / (end - start) : 0;
+            fraction = Math.max(0, Math.min(1, fraction));
+            return cumulative[bin] + fraction * (cumulative[bin + 1] - cumulative[bin]);
+        }
+    }
+
+    private SegmentSpeedModel(IntMap<RouteTimes> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * Learns a model from the samples taken between the two times, reading a day
+     * of samples at a time so that no more than that is held at once.
+     */
+    public static SegmentSpeedModel learn(PositionHistory history, RouteGraph graph, long from, long to) {
+        Builder builder = new Builder(graph);
+        for (long start = from; start < to; start += MILLISECONDS_PER_DAY)
+            builder.add(history.getAllSamples(start, Math.min(start + MILLISECONDS_PER_DAY, to)));
+        return builder.build();
+    }
+
+    /**
+     * @return the bucket of the model that applies at the time
+     */
+    public static int getBucket(long time) {
+        return getBucket(time, ZONE);
+    }
+
+    /**
+     * Works the bucket out from the time and the zone's offset at that time
+     * rather than through a Calendar, as it is done for every sample learned from.
+     */
+    static int getBucket(long time, TimeZone zone) {
+        long local = time + zone.getOffset(time);
+        long day = local / MILLISECONDS_PER_DAY;
+        long millis = local % MILLISECONDS_PER_DAY;
+        if (millis < 0) {
+            day--;
+            millis += MILLISECONDS_PER_DAY;
+        }
+        // day 0, 1 January 1970, was a Thursday, so days 2 and 3 of each week
+        // counted from it are a Saturday and a Sunday
+        long dayOfWeek = ((day % 7) + 7) % 7;
+        boolean weekend = dayOfWeek == 2 || dayOfWeek == 3;
+        return (weekend ? 24 : 0) + (int) (millis / MILLISECONDS_PER_HOUR);
+    }
+
+    /**
+     * @param route  - the route traveled
+     * @param from   - distance along the route of the starting position
+     * @param to     - distance along the route of the destination
+     * @param bucket - from {@link #getBucket(long)}
+     * @return the time in milliseconds shuttles have taken to travel forward along
+     *         the route from one position to the other, or -1 if nothing has been
+     *         learned about the route at that time.
+     */
+    public long getTravelTime(Route route, double from, double to, int bucket) {
+        RouteTimes times = routes.get(route.getIdNum());
+        // a route whose points have changed since the model was built is not known
+        if (times == null || Math.abs(times.length - route.getRoundTripDistance()) > 1E-6)
+            return -1;
+        float[] cumulative = times.cumulativeTimes[bucket];
+        if (cumulative == null)
+            return -1;
+        double time = times.timeTo(cumulative, to) - times.timeTo(cumulative, from);
+        if (time < 0)
+            time += cumulative[times.bins];
+        return Math.round(time);
+    }
+
+    /**
+     * @return the time in milliseconds shuttles have taken to travel once around
+     *         the route, or -1 if nothing has been learned about the route at that time.
+     */
+    public long getLoopTime(Route route, int bucket) {
+        RouteTimes times = routes.get(route.getIdNum());
+        if (times == null || Math.abs(times.length - route.getRoundTripDistance()) > 1E-6)
+            return -1;
+        float[] cumulative = times.cumulativeTimes[bucket];
+        return (cumulative == null) ? -1 : Math.round(cumulative[times.bins]);
+    }
+
+    /**
+     * @return the number of routes something has been learned about
+     */
+    public int getRouteCount() {
+        return routes.size();
+    }
+
+    /**
+     * Collects how far and for how long shuttles traveled over each stretch of
+     * each route, one batch of samples at a time.
+     */
+    public static class Builder {
+        // keyed by route id
+        private final IntMap<Observations> observations = new IntMap<Observations>();
+        // where each shuttle was at its last sample, keyed by shuttle id
+        private final IntMap<Track> tracks = new IntMap<Track>();
+
+        /**
+         * @param graph - the routes to learn about
+         */
+        public Builder(RouteGraph graph) {
+            for (Route route : graph.getRouteList().values()) {
+                if (route.getRoundTripDistance() > 0)
+                    observations.put(route.getIdNum(), new Observations(route));
+            }
+        }
+
+        /**
+         * @param samples - samples of any shuttles, earliest first and later than
+         *                any added before
+         */
+        public void add(List<PositionSample> samples) {
+            for (PositionSample sample : samples) {
+                Coordinate location = new Coordinate(sample.getLatitude(), sample.getLongitude());
+                Track last = tracks.get(sample.getShuttleId());
+                Observations route = snap(location, (last == null) ? null : last.route);
+                if (route == null) {
+                    tracks.remove(sample.getShuttleId());
+                    continue;
+                }
+                double position = route.route.getDistanceAlongRoute(location);
+                if (last != null && last.route == route)
+                    route.observe(last.position, position, last.time, sample.getTime());
+                tracks.put(sample.getShuttleId(), new Track(route, position, sample.getTime()));
+            }
+        }
+
+        /**
+         * @param last - the route the shuttle was on, kept if it is still close
+         *             enough where routes overlap
+         * @return the route closest to the location, or null if it is off route
+         */
+        private Observations snap(Coordinate location, Observations last) {
+            if (last != null && last.route.getDistanceToRoute(location) <= SNAP_DISTANCE)
+                return last;
+            Observations closest = null;
+            double closestDistance = SNAP_DISTANCE;
+            for (int slot = observations.nextSlot(0); slot != -1; slot = observations.nextSlot(slot + 1)) {
+                Observations route = observations.valueAt(slot);
+                double distance = route.route.getDistanceToRoute(location);
+                if (distance <= closestDistance) {
+                    closest = route;
+                    closestDistance = distance;
+                }
+            }
+            return closest;
+        }
+
+        public SegmentSpeedModel build() {
+            IntMap<RouteTimes> routes = new IntMap<RouteTimes>(observations.size());
+            for (int slot = observations.nextSlot(0); slot != -1; slot = observations.nextSlot(slot + 1)) {
+                RouteTimes times = observations.valueAt(slot).toRouteTimes();
+                if (times != null)
+                    routes.put(observations.keyAt(slot), times);
+            }
+            return new SegmentSpeedModel(routes);
+        }
+    }
+
+    private static class Track {
+        final Observations route;
+        final double position;
+        final long time;
+
+        Track(Observations route, double position, long time) {
+            this.route = route;
+            this.position = position;
+            this.time = time;
+        }
+    }
+
+    /**
+     * The miles traveled and the milliseconds taken over each stretch of one
+     * route, for each bucket.
+     */
+    private static class Observations {
+        final Route route;
+        final double length;
+        final int bins;
+        // distance along the route of each stop
+        final double[] stops;
+        // indexed by bucket * bins + bin
+        final double[] distances;
+        final double[] times;
+
+        Observations(Route route) {
+            this.route = route;
+            this.length = route.getRoundTripDistance();
+            this.bins = Math.max(1, (int) Math.ceil(length / BIN_LENGTH));
+            double[] stopDistances = new double[route.getStopCount()];
+            int count = 0;
+            for (int i = 0; i < route.getStopCount(); i++) {
+                double distance = route.getStop(i).getDistanceAlongRoute(route.getIdNum());
+                if (distance >= 0)
+                    stopDistances[count++] = distance;
+            }
+            this.stops = Arrays.copyOf(stopDistances, count);
+            this.distances = new double[BUCKETS * bins];
+            this.times = new double[BUCKETS * bins];
+        }
+
+        /**
+         * Spreads the time between two samples over the stretches the shuttle
+         * crossed, in proportion to how much of each it crossed.
+         */
+        void observe(double from, double to, long fromTime, long toTime) {
+            long time = toTime - fromTime;
+            if (time <= 0 || time > MAX_SAMPLE_GAP)
+                return;
+            double distance = route.getDistanceBetween(from, to);
+            // faster than a shuttle goes, or a small step backwards
+            if (distance > MAX_SPEED * time / MILLISECONDS_PER_HOUR || distance > length / 2)
+                return;
+
+            int offset = getBucket(fromTime) * bins;
+            int bin = Math.max(0, Math.min(bins - 1, (int) (from / BIN_LENGTH)));
+            if (distance < MIN_MOVEMENT) {
+                if (!isAtStop(from))
+                    times[offset + bin] += time;
+                return;
+            }
+
+            double position = from;
+            double remaining = distance;
+            while (remaining > 0) {
+                double end = Math.min((bin + 1) * BIN_LENGTH, length);
+                double step = Math.min(remaining, Math.max(0, end - position));
+                distances[offset + bin] += step;
+                times[offset + bin] += time * step / distance;
+                remaining -= step;
+                bin = (bin + 1) % bins;
+                position = bin * BIN_LENGTH;
+            }
+        }
+
+        private boolean isAtStop(double position) {
+            for (double stop : stops) {
+                double distance = Math.abs(stop - position);
+                if (Math.min(distance, length - distance) <= STOP_RADIUS)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the learned times, or null if too little travel was seen at any hour
+         */
+        RouteTimes toRouteTimes() {
+            float[][] cumulativeTimes = new float[BUCKETS][];
+            boolean learned = false;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                int offset = bucket * bins;
+                double routeDistance = 0;
+                double routeTime = 0;
+                for (int bin = 0; bin < bins; bin++) {
+                    routeDistance += distances[offset + bin];
+                    routeTime += times[offset + bin];
+                }
+                if (routeDistance < MIN_ROUTE_DISTANCE)
+                    continue;
+
+                double averageSpeed = clampSpeed(routeDistance / (routeTime / MILLISECONDS_PER_HOUR));
+                float[] cumulative = new float[bins + 1];
+                for (int bin = 0; bin < bins; bin++) {
+                    double speed = (distances[offset + bin] >= MIN_BIN_DISTANCE)
+                            ? clampSpeed(distances[offset + bin] / (times[offset + bin] / MILLISECONDS_PER_HOUR))
+                            : averageSpeed;
+                    double binLength = Math.min((bin + 1) * BIN_LENGTH, length) - bin * BIN_LENGTH;
+                    cumulative[bin + 1] = (float) (cumulative[bin] + binLength / speed * MILLISECONDS_PER_HOUR);
+                }
+                cumulativeTimes[bucket] = cumulative;
+                learned = true;
+            }
+            return learned ? new RouteTimes(length, bins, cumulativeTimes) : null;
+        }
+
+        private static double clampSpeed(double speed) {
+            return Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import java.util.Arrays;
+
+/**
+ * Estimates one quantile of a stream of values without keeping the values,
+ * using the P-square algorithm of Jain and Chlamtac. Five markers are kept
+ * at the minimum, the maximum, the quantile and halfway to it from each side,
+ * and nudged toward where they should be as each value arrives. Memory and the
+ * time to add a value are constant however many values are added.
+ *
+ * @author saiumesh
+ */
+public class StreamingQuantile {
+    private final double quantile;
+    // marker heights, their actual positions, their desired positions, and how
+    // far each desired position moves with every value
+    private final double[] heights = new double[5];
+    private final int[] positions = new int[5];
+    private final double[] desired = new double[5];
+    private final double[] increments = new double[5];
+    private long count;
+
+    /**
+     * @param quantile - the quantile to estimate, between 0 and 1
+     */
+    public StreamingQuantile(double quantile) {
+        this.quantile = quantile;
+        increments[0] = 0;
+        increments[1] = quantile / 2;
+        increments[2] = quantile;
+        increments[3] = (1 + quantile) / 2;
+        increments[4] = 1;
+    }
+
+    public void add(double value) {
+        // the first five values become the markers
+        if (count < 5) {
+            heights[(int) count++] = value;
+            if (count == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++)
+                    positions[i] = i + 1;
+                desired[0] = 1;
+                desired[1] = 1 + 2 * quantile;
+                desired[2] = 1 + 4 * quantile;
+                desired[3] = 3 + 2 * quantile;
+                desired[4] = 5;
+            }
+            return;
+        }
+        count++;
+
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = value;
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1])
+                cell++;
+        }
+        for (int i = cell + 1; i < 5; i++)
+            positions[i]++;
+        for (int i = 0; i < 5; i++)
+            desired[i] += increments[i];
+
+        for (int i = 1; i <= 3; i++) {
+            double offset = desired[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int step = (offset >= 0) ? 1 : -1;
+                double height = parabolic(i, step);
+                if (heights[i - 1] < height && height < heights[i + 1])
+                    heights[i] = height;
+                else
+                    heights[i] = heights[i] + step * (heights[i + step] - heights[i])
+                            / (positions[i + step] - positions[i]);
+                positions[i] += step;
+            }
+        }
+    }
+
+    private double parabolic(int i, int step) {
+        return heights[i] + (double) step / (positions[i + 1] - positions[i - 1])
+                * ((positions[i] - positions[i - 1] + step) * (heights[i + 1] - heights[i])
+                / (positions[i + 1] - positions[i])
+                + (positions[i + 1] - positions[i] - step) * (heights[i] - heights[i - 1])
+                / (positions[i] - positions[i - 1]));
+    }
+
+    /**
+     * @return the estimated quantile, or 0 if no values have been added
+     */
+    public double get() {
+        if (count == 0)
+            return 0;
+        if (count < 5) {
+            double[] values = Arrays.copyOf(heights, (int) count);
+            Arrays.sort(values);
+            return values[(int) Math.round(quantile * (count - 1))];
+        }
+        return heights[2];
+    }
+
+    /**
+     * @return how many values have been added
+     */
+    public long getCount() {
+        return count;
+    }
+}
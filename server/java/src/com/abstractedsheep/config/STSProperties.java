@@ -30,4 +30,18 @@ public class STSProperties extends AbstractProperties {
     public static final Property LOG_PATH = new Property("logPath", "../logs");
     public static final Property DB_PATH = new Property("dbPath",
             "/Users/ujonnalagadda/Shuttle-Tracker/server/java/conf/db.properties");
+    public static final Property HTTP_PORT = new Property("httpPort", "8080");
+    public static final Property ENABLE_DB = new Property("enableDB", "true");
+    public static final Property HISTORY_PATH = new Property("historyPath", "../history");
+    // names of the feeds to track, separated by commas, each configured by feedProperty()
+    public static final Property FEEDS = new Property("feeds", "rpi");
+    // how shuttle speeds are smoothed: mean, ewma or median
+    public static final Property SPEED_FILTER = new Property("speedFilter", "mean");
+
+    /**
+     * @return the setting of one feed, named feed.&lt;feed&gt;.&lt;name&gt;
+     */
+    public static Property feedProperty(String feed, String name, String val) {
+        return new Property("feed." + feed + "." + name, val);
+    }
 }
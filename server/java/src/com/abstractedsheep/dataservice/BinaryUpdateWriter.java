@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.Shuttle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Writes an update in a compact binary form for mobile clients, which is a
+ * fraction of the size of the JSON and needs no text parsing to read.
+ * <p>
+ * Whole numbers are written as varints, seven bits to a byte with the high bit
+ * set on every byte but the last. Numbers that can be negative, such as the -1
+ * of a shuttle with no id, are zigzag encoded first, so small negative numbers
+ * stay short. Coordinates are written
+ * as integer millionths of a degree, like the E6 coordinates on Android.
+ * Strings are written as their UTF-8 length plus one followed by the bytes,
+ * with a length of 0 meaning null. Each stop is written once, in a dictionary
+ * at the start, and referred to by its index in it after that.
+ * <pre>
+ * 'S' 'T' FORMAT_VERSION
+ * epoch                varint, changes when the server restarts and versions start again
+ * version              varint
+ * since + 1            varint, 0 for a full update
+ * stop count           varint, then for each stop: id string, name string
+ * shuttle count        varint, then for each shuttle:
+ *     shuttle id zigzag, latitude E6 zigzag, longitude E6 zigzag,
+ *     heading varint, speed varint, route id zigzag,
+ *     update time varint (seconds since 1970), cardinal point string, name string
+ * eta count            varint, then for each eta:
+ *     shuttle id zigzag, stop index varint, route id zigzag, eta id varint, eta varint (ms),
+ *     arrival time varint (seconds since 1970)
+ * only in a delta:
+ * removed shuttle count varint, then each shuttle id zigzag
+ * removed eta count     varint, then for each eta:
+ *     shuttle id zigzag, stop index varint, route id zigzag, eta id varint
+ * </pre>
+ *
+ * @author saiumesh
+ */
+public final class BinaryUpdateWriter {
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    // bumped whenever the layout above changes
+    public static final int FORMAT_VERSION = 2;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // the stops in the dictionary, in the order they are written
+    private final ArrayList<String> stopIds = new ArrayList<String>();
+    private final ArrayList<String> stopNames = new ArrayList<String>();
+    // position in the dictionary of each stop of the graph the etas, and the
+    // removed etas, were calculated against, by stop index, -1 if not in it
+    private int[] etaStops;
+    private int[] removedStops;
+
+    private BinaryUpdateWriter() {
+    }
+
+    /**
+     * @param epoch           - the epoch the versions belong to
+     * @param since           - the version the delta was made from, or -1 for a full update
+     * @param removedShuttles - ids of the shuttles removed since then, ignored in a full update
+     * @param removedEtas     - etas removed since then, ignored in a full update
+     */
+    public static byte[] write(long epoch, long version, long since, Collection<Shuttle> shuttles, EtaTable etas,
+                               Collection<Integer> removedShuttles, EtaTable removedEtas) {
+        BinaryUpdateWriter w = new BinaryUpdateWriter();
+        boolean full = since < 0;
+        w.out.write('S');
+        w.out.write('T');
+        w.out.write(FORMAT_VERSION);
+        w.writeVarint(epoch);
+        w.writeVarint(version);
+        w.writeVarint(since + 1);
+
+        // every stop an eta refers to, in the order they are first seen
+        w.etaStops = w.addStops(etas, null);
+        if (!full) {
+            boolean sameGraph = removedEtas.getRouteGraph() == etas.getRouteGraph();
+            w.removedStops = w.addStops(removedEtas, sameGraph ? w.etaStops : null);
+        }
+        w.writeVarint(w.stopIds.size());
+        for (int i = 0; i < w.stopIds.size(); i++) {
+            w.writeString(w.stopIds.get(i));
+            w.writeString(w.stopNames.get(i));
+        }
+
+        w.writeVarint(shuttles.size());
+        for (Shuttle s : shuttles) {
+            w.writeSignedVarint(s.getShuttleId());
+            w.writeSignedVarint(Math.round(s.getCurrentLocation().getLatitude() * 1E6));
+            w.writeSignedVarint(Math.round(s.getCurrentLocation().getLongitude() * 1E6));
+            w.writeVarint(s.getHeading());
+            w.writeVarint(s.getSpeed());
+            w.writeSignedVarint(s.getRouteId());
+            w.writeVarint(s.getLastUpdateTime() / 1000);
+            w.writeString(s.getCardinalPoint());
+            w.writeString(s.getName());
+        }
+
+        w.writeVarint(etas.size());
+        for (int i = 0; i < etas.size(); i++) {
+            w.writeEtaKey(etas, i, w.etaStops);
+            w.writeVarint(etas.getTime(i));
+            w.writeVarint(etas.getArrivalTime(i));
+        }
+
+        if (!full) {
+            w.writeVarint(removedShuttles.size());
+            for (Integer id : removedShuttles)
+                w.writeSignedVarint(id);
+            w.writeVarint(removedEtas.size());
+            for (int i = 0; i < removedEtas.size(); i++)
+                w.writeEtaKey(removedEtas, i, w.removedStops);
+        }
+        return w.out.toByteArray();
+    }
+
+    /**
+     * Adds the stops of the etas to the dictionary that are not already in it.
+     * A stop already added from a table of another graph is found by its id.
+     *
+     * @param positions - positions of the stops already added from a table of the
+     *                  same graph, or null if there is none
+     * @return the position in the dictionary of each stop of the etas' graph
+     */
+    private int[] addStops(EtaTable etas, int[] positions) {
+        if (positions == null) {
+            positions = new int[etas.getRouteGraph().getStopCount()];
+            Arrays.fill(positions, -1);
+        }
+        for (int i = 0; i < etas.size(); i++) {
+            int stop = etas.getStopIndex(i);
+            if (positions[stop] != -1)
+                continue;
+            String stopId = etas.getStopId(i);
+            positions[stop] = stopIds.indexOf(stopId);
+            if (positions[stop] == -1) {
+                positions[stop] = stopIds.size();
+                stopIds.add(stopId);
+                stopNames.add(etas.getStopName(i));
+            }
+        }
+        return positions;
+    }
+
+    private void writeEtaKey(EtaTable etas, int row, int[] stops) {
+        writeSignedVarint(etas.getShuttleId(row));
+        writeVarint(stops[etas.getStopIndex(row)]);
+        writeSignedVarint(etas.getRouteId(row));
+        writeVarint(etas.getEtaId(row));
+    }
+
+    /**
+     * Writes the number as unsigned, so it should never be negative. Numbers
+     * that can be are written with writeSignedVarint().
+     */
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeString(String s) {
+        if (s == null) {
+            writeVarint(0);
+            return;
+        }
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            writeVarint(bytes.length + 1);
+            out.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+}
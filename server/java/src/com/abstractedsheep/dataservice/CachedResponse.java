@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One response of the {@link DataService}, written once per update and then
+ * handed to every client that asks for it. The gzipped body is made at the same
+ * time, so compressing costs nothing per request either.
+ *
+ * @author saiumesh
+ */
+public final class CachedResponse {
+    private final byte[] body;
+    private final byte[] gzippedBody;
+    private final String contentType;
+    private final String etag;
+    private final String gzippedEtag;
+    private final long version;
+
+    /**
+     * @param body        - the response body, must not be modified afterwards
+     * @param contentType - the Content-Type header to send the body with
+     * @param etag        - tag that changes whenever the body may have changed
+     * @param version     - version of the world the body was written from
+     */
+    CachedResponse(byte[] body, String contentType, String etag, long version) {
+        this.body = body;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.version = version;
+        byte[] gzipped = gzip(body);
+        // small bodies can come out larger once compressed
+        this.gzippedBody = (gzipped.length < body.length) ? gzipped : null;
+        // the gzipped body is a different entity, so it needs a strong tag of its own
+        this.gzippedEtag = (gzippedBody == null) ? null
+                : etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    private static byte[] gzip(byte[] body) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 32);
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            gzip.write(body);
+            gzip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // only thrown if the stream fails, which a byte array never does
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the body compressed with gzip, or null if compressing does not
+     *         make it any smaller.
+     */
+    public byte[] getGzippedBody() {
+        return gzippedBody;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the entity tag of the uncompressed body, quoted as it is sent in the header
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the entity tag of the gzipped body, quoted, or null if there is
+     *         no gzipped body.
+     */
+    public String getGzippedETag() {
+        return gzippedEtag;
+    }
+
+    /**
+     * @return the version of the world the body was written from
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.ShuttleTrackerServer.WorldUpdateListener;
+import com.abstractedsheep.ShuttleTrackerService.EtaIndex;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.WorldSnapshot;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers the same queries as webinterface/data_service.php, in the same JSON
+ * format, straight from the latest snapshot of the world instead of from MySQL.
+ * Each update is kept as one immutable {@link State}, so a request always sees
+ * etas and shuttle positions from the same update and never waits on one.
+ * <p>
+ * Each response is written, gzipped and tagged at most once per update and then
+ * served from a cache to every client that asks for it. The unfiltered responses
+ * are written as soon as the update arrives, filtered ones on the first request.
+ * <p>
+ * The last few updates are remembered, so a client that names the version it
+ * already has is sent only what changed since then instead of everything.
+ * Versions start again from 0 when the server restarts, so they are only
+ * meaningful along with the epoch of the process that made them.
+ *
+ * @author saiumesh
+ */
+public class DataService implements WorldUpdateListener {
+    public static final String GET_NEXT_ETA = "get_next_eta";
+    public static final String GET_ALL_ETA = "get_all_eta";
+    public static final String GET_ALL_EXTRA_ETA = "get_all_extra_eta";
+    public static final String GET_SHUTTLE_POSITIONS = "get_shuttle_positions";
+    public static final String GET_UPDATE = "get_update";
+    // value of the format parameter that asks for the binary form of an update
+    public static final String BINARY = "binary";
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // same format as the update_time column of shuttle_coords
+    private static final ThreadLocal<SimpleDateFormat> UPDATE_TIME_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                }
+            };
+
+    // the most filtered responses kept for one update, the rest are written per request
+    private static final int MAX_CACHED_RESPONSES = 256;
+    // how many earlier updates a delta can be made from, older clients get everything
+    private static final int HISTORY_LENGTH = 12;
+    // an eta is only sent again once its arrival time has moved to another step of this many seconds
+    private static final int ARRIVAL_RESOLUTION = 20;
+    // tells the versions of this process apart from those of one before a restart
+    private static final long EPOCH = System.currentTimeMillis();
+
+    private volatile State state;
+
+    /**
+     * The etas and shuttles of one update, with the etas indexed so that each can
+     * be matched against another update's.
+     */
+    private static class Frame {
+        final WorldSnapshot world;
+        // sorted by time, soonest first
+        final EtaTable etas;
+        final EtaIndex etaIndex;
+
+        Frame(WorldSnapshot world, EtaTable etas) {
+            this.world = world;
+            this.etas = etas;
+            this.etaIndex = new EtaIndex(etas);
+        }
+
+        long getVersion() {
+            return world.getVersion();
+        }
+    }
+
+    /**
+     * The latest update and the few before it, along with every response written
+     * from them so far, keyed by action and filter. A new update starts a new
+     * cache, so the version is part of every key without being written into it.
+     */
+    private static class State {
+        final Frame frame;
+        final WorldSnapshot world;
+        final EtaTable etas;
+        // earlier updates, newest first
+        final Frame[] history;
+        final ConcurrentHashMap<String, CachedResponse> responses;
+
+        State(Frame frame, Frame[] history) {
+            this.frame = frame;
+            this.world = frame.world;
+            this.etas = frame.etas;
+            this.history = history;
+            this.responses = new ConcurrentHashMap<String, CachedResponse>();
+            // the unfiltered responses are asked for the most, so write them now
+            cache(GET_NEXT_ETA, renderNextEta(etas, null, null));
+            cache(GET_ALL_ETA, renderAllEta(etas, null, null, null));
+            cache(GET_SHUTTLE_POSITIONS, renderShuttlePositions(world));
+            cache(GET_UPDATE, renderUpdate(new Changes(frame, null)));
+        }
+
+        /**
+         * @return the frame of the given version, or null if it is not remembered
+         */
+        Frame findFrame(long version) {
+            for (Frame f : history) {
+                if (f.getVersion() == version)
+                    return f;
+            }
+            return null;
+        }
+
+        /**
+         * @return this state's frame followed by its history, minus the oldest
+         *         frame if the history is full
+         */
+        Frame[] nextHistory() {
+            Frame[] next = new Frame[Math.min(history.length + 1, HISTORY_LENGTH)];
+            next[0] = frame;
+            System.arraycopy(history, 0, next, 1, next.length - 1);
+            return next;
+        }
+
+        CachedResponse cache(String key, byte[] body) {
+            return cache(key, body, JSON_CONTENT_TYPE);
+        }
+
+        CachedResponse cache(String key, byte[] body, String contentType) {
+            CachedResponse response = new CachedResponse(body, contentType, etag(body), world.getVersion());
+            if (responses.size() >= MAX_CACHED_RESPONSES)
+                return response;
+            CachedResponse existing = responses.putIfAbsent(key, response);
+            return (existing == null) ? response : existing;
+        }
+    }
+
+    public DataService() {
+        this.state = new State(new Frame(WorldSnapshot.EMPTY, EtaTable.EMPTY), new Frame[0]);
+    }
+
+    public void worldUpdated(WorldSnapshot world, EtaTable etas) {
+        Frame frame = new Frame(world, etas.sortedByTime());
+        // only called from the update thread, so the history cannot change meanwhile
+        this.state = new State(frame, state.nextHistory());
+    }
+
+    /**
+     * @return the epoch of the versions this process hands out
+     */
+    public long getEpoch() {
+        return EPOCH;
+    }
+
+    /**
+     * @return the version of the world the responses are currently made from
+     */
+    public long getVersion() {
+        return state.world.getVersion();
+    }
+
+    /**
+     * The soonest eta to each stop.
+     *
+     * @param routeId - only include this route, null for every route
+     * @param stopIds - only include these stops, null or empty for every stop
+     */
+    public CachedResponse getNextEta(String routeId, Collection<String> stopIds) {
+        State current = this.state;
+        String key = key(GET_NEXT_ETA, routeId, null, stopIds);
+        CachedResponse response = current.responses.get(key);
+        if (response == null)
+            response = current.cache(key, renderNextEta(current.etas, routeId, stopIds));
+        return response;
+    }
+
+    /**
+     * Every eta of every shuttle, soonest first.
+     *
+     * @param routeId   - only include this route, null for every route
+     * @param shuttleId - only include this shuttle, null for every shuttle
+     * @param stopIds   - only include these stops, null or empty for every stop
+     */
+    public CachedResponse getAllEta(String routeId, String shuttleId, Collection<String> stopIds) {
+        State current = this.state;
+        String key = key(GET_ALL_ETA, routeId, shuttleId, stopIds);
+        CachedResponse response = current.responses.get(key);
+        if (response == null)
+            response = current.cache(key, renderAllEta(current.etas, routeId, shuttleId, stopIds));
+        return response;
+    }
+
+    /**
+     * Every predicted arrival at a stop, not just the next one of each shuttle,
+     * soonest first, for a client showing the next few times a shuttle comes.
+     * Like data_service.php, the shuttle is not used to filter.
+     *
+     * @param routeId - only include this route, null for every route
+     * @param stopIds - only include these stops, null or empty for every stop
+     */
+    public CachedResponse getAllExtraEta(String routeId, Collection<String> stopIds) {
+        State current = this.state;
+        String key = key(GET_ALL_EXTRA_ETA, routeId, null, stopIds);
+        CachedResponse response = current.responses.get(key);
+        if (response == null)
+            response = current.cache(key, renderAllExtraEta(current.etas, routeId, stopIds));
+        return response;
+    }
+
+    /**
+     * The current position of every shuttle.
+     */
+    public CachedResponse getShuttlePositions() {
+        return state.responses.get(GET_SHUTTLE_POSITIONS);
+    }
+
+    /**
+     * Everything that changes with an update in one response: the version, the
+     * shuttle positions and every eta. This is what the {@link UpdateChannel}
+     * pushes to clients.
+     * <p>
+     * A client that already has an earlier version is sent a delta instead, with
+     * "full" set to false: only the shuttles and etas that were added or changed
+     * since that version, and the ids of those that were removed. A client with
+     * no version, or one too old to be remembered, is sent everything with "full"
+     * set to true and should replace what it has. Every update carries the epoch
+     * its versions belong to, and a client must not apply a delta of another epoch.
+     *
+     * @param since  - the last version the client has, or -1 if it has none
+     * @param binary - write the update as described in {@link BinaryUpdateWriter}
+     *               instead of as JSON
+     */
+    public CachedResponse getUpdate(long since, boolean binary) {
+        State current = this.state;
+        Frame from = (since < 0) ? null : current.findFrame(since);
+        // a client that is up to date is sent an empty delta
+        if (from == null && since == current.frame.getVersion())
+            from = current.frame;
+
+        String key = (from == null) ? GET_UPDATE : GET_UPDATE + "&since=" + since;
+        if (binary)
+            key += "&format=" + BINARY;
+        CachedResponse response = current.responses.get(key);
+        if (response == null) {
+            Changes changes = new Changes(current.frame, from);
+            if (binary) {
+                byte[] body = BinaryUpdateWriter.write(EPOCH, changes.version, changes.since, changes.shuttles,
+                        changes.etas, changes.removedShuttles, changes.removedEtas);
+                response = current.cache(key, body, BinaryUpdateWriter.CONTENT_TYPE);
+            } else {
+                response = current.cache(key, renderUpdate(changes));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return the cache key of a request, the same for every order the stops
+     *         could be given in. Unfiltered requests are keyed by the action alone.
+     */
+    private static String key(String action, String routeId, String shuttleId, Collection<String> stopIds) {
+        if (routeId == null && shuttleId == null && isEmpty(stopIds))
+            return action;
+        StringBuilder key = new StringBuilder(action);
+        key.append("&rt=").append((routeId == null) ? "" : routeId);
+        key.append("&sh=").append((shuttleId == null) ? "" : shuttleId);
+        if (!isEmpty(stopIds)) {
+            for (String stopId : new TreeSet<String>(stopIds))
+                key.append("&st=").append(stopId);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a tag made from the body itself, so it only changes when the body
+     *         does and stays valid across restarts.
+     */
+    private static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+            StringBuilder tag = new StringBuilder("\"");
+            for (byte b : digest)
+                tag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return tag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isEmpty(Collection<String> c) {
+        return c == null || c.isEmpty();
+    }
+
+    private static boolean matches(EtaTable etas, int row, String routeId, String shuttleId,
+                                   Collection<String> stopIds) {
+        return (routeId == null || routeId.equals(String.valueOf(etas.getRouteId(row))))
+                && (shuttleId == null || shuttleId.equals(String.valueOf(etas.getShuttleId(row))))
+                && (isEmpty(stopIds) || stopIds.contains(etas.getStopId(row)));
+    }
+
+    private static byte[] renderNextEta(EtaTable etas, String routeId, Collection<String> stopIds) {
+        // etas are sorted, so the first one seen for a stop is the soonest
+        LinkedHashMap<String, Integer> next = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < etas.size(); i++) {
+            if (etas.getEtaId(i) == 0 && !next.containsKey(etas.getStopId(i))
+                    && matches(etas, i, routeId, null, stopIds))
+                next.put(etas.getStopId(i), i);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            g.writeStartArray();
+            for (int row : next.values()) {
+                g.writeStartObject();
+                g.writeStringField("stop_id", etas.getStopId(row));
+                g.writeStringField("stop_name", etas.getStopName(row));
+                g.writeNumberField("eta", etas.getTime(row));
+                g.writeNumberField("route", etas.getRouteId(row));
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            // only thrown if the stream fails, which a byte array never does
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] renderAllEta(EtaTable etas, String routeId, String shuttleId,
+                                       Collection<String> stopIds) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            g.writeStartArray();
+            for (int i = 0; i < etas.size(); i++) {
+                // later arrivals are only served by get_all_extra_eta
+                if (etas.getEtaId(i) == 0 && matches(etas, i, routeId, shuttleId, stopIds))
+                    writeEta(g, etas, i, false);
+            }
+            g.writeEndArray();
+            g.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] renderAllExtraEta(EtaTable etas, String routeId, Collection<String> stopIds) {
+        String name = null;
+        ArrayList<Integer> times = new ArrayList<Integer>();
+        for (int i = 0; i < etas.size(); i++) {
+            if (matches(etas, i, routeId, null, stopIds)) {
+                if (name == null)
+                    name = etas.getStopName(i);
+                times.add(etas.getTime(i));
+            }
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            // data_service.php answers an empty array when nothing matches
+            if (times.isEmpty()) {
+                g.writeStartArray();
+                g.writeEndArray();
+            } else {
+                g.writeStartObject();
+                g.writeStringField("name", name);
+                g.writeArrayFieldStart("eta");
+                for (int time : times)
+                    g.writeNumber(time);
+                g.writeEndArray();
+                g.writeEndObject();
+            }
+            g.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] renderShuttlePositions(WorldSnapshot world) {
+        SimpleDateFormat format = UPDATE_TIME_FORMAT.get();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            g.writeStartArray();
+            for (Shuttle s : world.getShuttleList().values())
+                writeShuttle(g, s, format);
+            g.writeEndArray();
+            g.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Everything in a frame, or if there is an earlier frame to compare against,
+     * only what changed since it.
+     */
+    private static class Changes {
+        final long version;
+        // -1 if everything is included
+        final long since;
+        final List<Shuttle> shuttles = new ArrayList<Shuttle>();
+        final EtaTable etas;
+        final List<Integer> removedShuttles = new ArrayList<Integer>();
+        final EtaTable removedEtas;
+
+        /**
+         * @param from - the frame the client already has, null to include everything
+         */
+        Changes(Frame frame, Frame from) {
+            this.version = frame.getVersion();
+            this.since = (from == null) ? -1 : from.getVersion();
+
+            Map<Integer, Shuttle> current = frame.world.getShuttleList();
+            Map<Integer, Shuttle> last = (from == null) ? null : from.world.getShuttleList();
+            for (Shuttle s : current.values()) {
+                if (last == null || !sameShuttle(s, last.get(s.getShuttleId())))
+                    shuttles.add(s);
+            }
+            if (from == null) {
+                etas = frame.etas;
+                removedEtas = EtaTable.EMPTY;
+                return;
+            }
+
+            etas = new EtaTable(frame.etas.getRouteGraph(), 0);
+            for (int i = 0; i < frame.etas.size(); i++) {
+                if (!sameEta(frame.etas, i, from.etas, from.etaIndex.find(frame.etas, i)))
+                    etas.addRow(frame.etas, i);
+            }
+            for (Integer id : last.keySet()) {
+                if (!current.containsKey(id))
+                    removedShuttles.add(id);
+            }
+            // removed etas refer to the stops of the frame they were removed from
+            removedEtas = new EtaTable(from.etas.getRouteGraph(), 0);
+            for (int i = 0; i < from.etas.size(); i++) {
+                if (frame.etaIndex.find(from.etas, i) == -1)
+                    removedEtas.addRow(from.etas, i);
+            }
+        }
+
+        boolean isFull() {
+            return since < 0;
+        }
+    }
+
+    /**
+     * Etas are written with their eta_id, so a client can tell apart several
+     * etas of one shuttle to the same stop.
+     */
+    private static byte[] renderUpdate(Changes changes) {
+        SimpleDateFormat format = UPDATE_TIME_FORMAT.get();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator g = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+            g.writeStartObject();
+            g.writeNumberField("epoch", EPOCH);
+            g.writeNumberField("version", changes.version);
+            if (!changes.isFull())
+                g.writeNumberField("since", changes.since);
+            g.writeBooleanField("full", changes.isFull());
+
+            g.writeArrayFieldStart("shuttles");
+            for (Shuttle s : changes.shuttles)
+                writeShuttle(g, s, format);
+            g.writeEndArray();
+
+            g.writeArrayFieldStart("etas");
+            for (int i = 0; i < changes.etas.size(); i++)
+                writeEta(g, changes.etas, i, true);
+            g.writeEndArray();
+
+            if (!changes.isFull()) {
+                g.writeArrayFieldStart("removed_shuttles");
+                for (Integer id : changes.removedShuttles)
+                    g.writeNumber(id);
+                g.writeEndArray();
+
+                g.writeArrayFieldStart("removed_etas");
+                for (int i = 0; i < changes.removedEtas.size(); i++)
+                    writeEtaKey(g, changes.removedEtas, i);
+                g.writeEndArray();
+            }
+            g.writeEndObject();
+            g.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeShuttle(JsonGenerator g, Shuttle s, SimpleDateFormat format) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("shuttle_id", s.getShuttleId());
+        g.writeNumberField("heading", s.getHeading());
+        g.writeNumberField("latitude", s.getCurrentLocation().getLatitude());
+        g.writeNumberField("longitude", s.getCurrentLocation().getLongitude());
+        g.writeNumberField("speed", s.getSpeed());
+        g.writeStringField("cardinal_point", s.getCardinalPoint());
+        g.writeStringField("update_time", format.format(new Date(s.getLastUpdateTime())));
+        g.writeNumberField("route_id", s.getRouteId());
+        g.writeStringField("name", s.getName());
+        g.writeEndObject();
+    }
+
+    /**
+     * @param withId - also write the eta_id and arrival_time, which data_service.php never did
+     */
+    private static void writeEta(JsonGenerator g, EtaTable etas, int row, boolean withId) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("shuttle_id", etas.getShuttleId(row));
+        g.writeStringField("stop_id", etas.getStopId(row));
+        g.writeNumberField("eta", etas.getTime(row));
+        g.writeNumberField("route", etas.getRouteId(row));
+        g.writeStringField("name", etas.getStopName(row));
+        if (withId) {
+            g.writeNumberField("eta_id", etas.getEtaId(row));
+            // deltas leave out etas that only count down, so clients need the time they count to
+            g.writeNumberField("arrival_time", etas.getArrivalTime(row));
+        }
+        g.writeEndObject();
+    }
+
+    /**
+     * Writes just enough of a removed eta for a client to find the one it has.
+     */
+    private static void writeEtaKey(JsonGenerator g, EtaTable etas, int row) throws IOException {
+        g.writeStartObject();
+        g.writeNumberField("shuttle_id", etas.getShuttleId(row));
+        g.writeStringField("stop_id", etas.getStopId(row));
+        g.writeNumberField("route", etas.getRouteId(row));
+        g.writeNumberField("eta_id", etas.getEtaId(row));
+        g.writeEndObject();
+    }
+
+    /**
+     * An eta is the same while its arrival time stays in the same step of
+     * ARRIVAL_RESOLUTION seconds. The time until the arrival changes with every
+     * update, so comparing it would send every eta every time. Steps rather than
+     * a distance from the last update keep small moves from adding up unsent.
+     *
+     * @param lastRow - row of the same eta in the last table, or -1 if it was not there
+     */
+    private static boolean sameEta(EtaTable etas, int row, EtaTable last, int lastRow) {
+        return lastRow != -1
+                && etas.getArrivalTime(row) / ARRIVAL_RESOLUTION == last.getArrivalTime(lastRow) / ARRIVAL_RESOLUTION
+                && equal(etas.getStopName(row), last.getStopName(lastRow));
+    }
+
+    /**
+     * @return true if every value written for the shuttle is the same as last time
+     */
+    private static boolean sameShuttle(Shuttle s, Shuttle last) {
+        if (last == null)
+            return false;
+        // shuttles the feed has not updated are carried over as they were
+        if (s == last)
+            return true;
+        return s.getCurrentLocation().getLatitude() == last.getCurrentLocation().getLatitude()
+                && s.getCurrentLocation().getLongitude() == last.getCurrentLocation().getLongitude()
+                && s.getHeading() == last.getHeading()
+                && s.getSpeed() == last.getSpeed()
+                && s.getRouteId() == last.getRouteId()
+                && s.getLastUpdateTime() / 1000 == last.getLastUpdateTime() / 1000
+                && equal(s.getCardinalPoint(), last.getCardinalPoint())
+                && equal(s.getName(), last.getName());
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+}
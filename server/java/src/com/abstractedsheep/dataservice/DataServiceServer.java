@@ -0,0 +1,272 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the {@link DataService} over HTTP. It takes the same requests as
+ * webinterface/data_service.php, so clients only need to change the host:
+ * <pre>
+ *   /data_service.php?action=get_next_eta&amp;rt=1&amp;st=union
+ *   /data_service.php?action=get_all_eta&amp;rt=1&amp;sh=5&amp;st=union
+ *   /data_service.php?action=get_all_extra_eta&amp;rt=1&amp;st=union
+ *   /data_service.php?action=get_shuttle_positions
+ *   /data_service.php?action=get_update&amp;epoch=1310000000000&amp;version=41
+ *   /data_service.php?action=get_update&amp;epoch=1310000000000&amp;version=41&amp;format=binary
+ *   /data_service.php?action=stream_updates
+ * </pre>
+ * rt, sh and st are optional, and st may be repeated (or given as st[]) to ask
+ * for several stops. Responses carry an ETag, so a client that sends it back in
+ * If-None-Match gets an empty 304 until the data changes, and are gzipped for
+ * clients that accept it. get_update and stream_updates wait for new data
+ * instead of answering straight away, see {@link UpdateChannel}.
+ * get_update with format=binary answers in the compact form written by
+ * {@link BinaryUpdateWriter}, for phones on slow connections. The epoch is the one
+ * the client's version came with, a version without it is answered with everything.
+ * <p>
+ * A server tracking several feeds serves each one under its own name, as in
+ * /rpi/data_service.php, as well as the first one at /data_service.php.
+ *
+ * @author saiumesh
+ */
+public class DataServiceServer {
+    public static final String PATH = "/data_service.php";
+    public static final String STREAM_UPDATES = "stream_updates";
+    // requests only copy out bytes that are already written, so few threads are needed
+    private static final int THREADS = 4;
+
+    private final List<UpdateChannel> updateChannels;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param port          - port to listen on
+     * @param service       - service to answer the requests to /data_service.php from
+     * @param updateChannel - channel that pushes the service's updates
+     * @throws IOException if the port cannot be opened
+     */
+    public DataServiceServer(int port, DataService service, UpdateChannel updateChannel) throws IOException {
+        this.updateChannels = new CopyOnWriteArrayList<UpdateChannel>();
+        this.updateChannels.add(updateChannel);
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newFixedThreadPool(THREADS);
+        this.server.setExecutor(executor);
+        this.server.createContext(PATH, new DataServiceHandler(service, updateChannel));
+    }
+
+    /**
+     * Serves a feed at /name/data_service.php. Must be called before start().
+     *
+     * @param name          - name of the feed
+     * @param service       - service to answer the feed's requests from
+     * @param updateChannel - channel that pushes the service's updates
+     */
+    public void addFeed(String name, DataService service, UpdateChannel updateChannel) {
+        if (!updateChannels.contains(updateChannel))
+            updateChannels.add(updateChannel);
+        server.createContext("/" + name + PATH, new DataServiceHandler(service, updateChannel));
+    }
+
+    public void start() {
+        for (UpdateChannel updateChannel : updateChannels)
+            updateChannel.start();
+        server.start();
+    }
+
+    public void stop() {
+        for (UpdateChannel updateChannel : updateChannels)
+            updateChannel.stop();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static class DataServiceHandler implements HttpHandler {
+        private final DataService service;
+        private final UpdateChannel updateChannel;
+
+        DataServiceHandler(DataService service, UpdateChannel updateChannel) {
+            this.service = service;
+            this.updateChannel = updateChannel;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            // pushed updates are answered later by the update channel
+            boolean keepOpen = false;
+            try {
+                HashMap<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                String action = first(params, "action");
+                String routeId = first(params, "rt");
+                String shuttleId = first(params, "sh");
+                List<String> stopIds = new ArrayList<String>();
+                addAll(params, "st", stopIds);
+                addAll(params, "st[]", stopIds);
+
+                if (STREAM_UPDATES.equals(action)) {
+                    keepOpen = true;
+                    updateChannel.openStream(exchange);
+                    return;
+                } else if (DataService.GET_UPDATE.equals(action)) {
+                    keepOpen = true;
+                    updateChannel.waitForUpdate(exchange, UpdateChannel.parseVersion(first(params, "epoch")),
+                            UpdateChannel.parseVersion(first(params, "version")),
+                            DataService.BINARY.equals(first(params, "format")));
+                    return;
+                }
+
+                CachedResponse response;
+                if (DataService.GET_NEXT_ETA.equals(action))
+                    response = service.getNextEta(routeId, stopIds);
+                else if (DataService.GET_ALL_ETA.equals(action))
+                    response = service.getAllEta(routeId, shuttleId, stopIds);
+                else if (DataService.GET_ALL_EXTRA_ETA.equals(action))
+                    response = service.getAllExtraEta(routeId, stopIds);
+                else if (DataService.GET_SHUTTLE_POSITIONS.equals(action))
+                    response = service.getShuttlePositions();
+                else
+                    response = null;
+
+                if (response == null) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    send(exchange, "Command not supported.".getBytes("UTF-8"));
+                } else {
+                    sendCached(exchange, response);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                // an exchange handed to the update channel may already be answered
+                // by one of its writers, and one whose headers went out here can
+                // only be cut short, so either way it is just closed
+                boolean started = keepOpen || exchange.getResponseCode() != -1;
+                keepOpen = false;
+                if (!started)
+                    exchange.sendResponseHeaders(500, -1);
+            } finally {
+                if (!keepOpen)
+                    exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Sends a cached response, or only its headers if the client already has it,
+     * using the gzipped body when the client accepts it. Each body is sent with
+     * its own tag, so a cache never takes one encoding for the other.
+     */
+    static void sendCached(HttpExchange exchange, CachedResponse response) throws IOException {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        Headers headers = exchange.getResponseHeaders();
+        String acceptEncoding = requestHeaders.getFirst("Accept-Encoding");
+        boolean gzip = response.getGzippedBody() != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+        String etag = gzip ? response.getGzippedETag() : response.getETag();
+        headers.set("Content-Type", response.getContentType());
+        headers.set("ETag", etag);
+        // the data changes every few seconds, so clients should always check
+        headers.set("Cache-Control", "no-cache");
+        headers.set("Vary", "Accept-Encoding");
+
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            headers.set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            return;
+        }
+
+        if (gzip) {
+            headers.set("Content-Encoding", "gzip");
+            send(exchange, response.getGzippedBody());
+        } else {
+            send(exchange, response.getBody());
+        }
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        // the web pages that read the service are served from another host
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * @return the first non-empty value of the parameter, or null if there is none.
+     */
+    private static String first(HashMap<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        if (values == null)
+            return null;
+        for (String value : values) {
+            if (value.length() > 0)
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the non-empty values of the parameter to the list.
+     */
+    private static void addAll(HashMap<String, List<String>> params, String name, List<String> list) {
+        List<String> values = params.get(name);
+        if (values == null)
+            return;
+        for (String value : values) {
+            if (value.length() > 0)
+                list.add(value);
+        }
+    }
+
+    static HashMap<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException {
+        HashMap<String, List<String>> params = new HashMap<String, List<String>>();
+        if (query == null)
+            return params;
+
+        for (String pair : query.split("&")) {
+            if (pair.length() == 0)
+                continue;
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode((eq == -1) ? pair : pair.substring(0, eq), "UTF-8");
+            String value = (eq == -1) ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            List<String> values = params.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                params.put(name, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+}
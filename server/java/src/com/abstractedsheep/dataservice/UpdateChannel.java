@@ -0,0 +1,477 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.ShuttleTrackerServer.WorldUpdateListener;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.WorldSnapshot;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes every update of the {@link DataService} to clients as soon as it is
+ * made, so they no longer need to poll on a timer. Two kinds of client are served:
+ * <ul>
+ * <li>streams - Server-Sent Events, one event per update with the epoch and
+ * world version as its id, for browsers with EventSource</li>
+ * <li>long polls - a request that names the epoch and last version the client
+ * has and is answered as soon as there is a newer one, or with 304 after a
+ * timeout</li>
+ * </ul>
+ * Each client is sent only what changed since the version it last received, see
+ * {@link DataService#getUpdate(long, boolean)}. Clients at the same version share one
+ * written delta. A client whose version is from another epoch, made before the
+ * server restarted, is sent everything.
+ * <p>
+ * The push thread only decides what each client is sent and queues it. Every
+ * client has its own short queue, written by a task of the writer executor, so
+ * a client that stops reading only ever holds up itself. A client whose write
+ * takes longer than WRITE_TIMEOUT, or that falls MAX_PENDING writes behind, is
+ * dropped: nothing more is queued for it and the write it is stuck in is made
+ * to fail, so that its writer closes the exchange and its thread is free again.
+ *
+ * @author saiumesh
+ */
+public class UpdateChannel implements WorldUpdateListener {
+    // how long a long poll waits for an update before being told to ask again
+    private static final long LONG_POLL_TIMEOUT = 30 * 1000;
+    // how often streams are sent a comment, so closed connections are found
+    private static final long KEEP_ALIVE_INTERVAL = 15 * 1000;
+    // how long one write to a client may take before the client is dropped
+    private static final long WRITE_TIMEOUT = 10 * 1000;
+    // how many writes may wait for a client before it is dropped as too slow
+    private static final int MAX_PENDING = 8;
+    private static final byte[] KEEP_ALIVE = ":\n\n".getBytes();
+    // queued in place of data, for the headers of a stream and for an expired long poll
+    private static final Object STREAM_HEADERS = new Object();
+    private static final Object NOT_MODIFIED = new Object();
+
+    private final DataService service;
+    private final Executor writers;
+    private final List<Stream> streams = new CopyOnWriteArrayList<Stream>();
+    // guarded by itself
+    private final List<LongPoll> longPolls = new ArrayList<LongPoll>();
+    // every client that may still be written to, checked for stuck writes
+    private final Set<Client> clients = Collections.newSetFromMap(new ConcurrentHashMap<Client, Boolean>());
+    private final ScheduledExecutorService pushExecutor;
+
+    /**
+     * A connection and the writes waiting for it. Items are written in order by
+     * one task at a time on the writer executor, which is started when the queue
+     * stops being empty.
+     */
+    private abstract class Client implements Runnable {
+        final HttpExchange exchange;
+        // guarded by this
+        private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+        // whether a writer task is on the queue, guarded by this
+        private boolean running;
+        // guarded by this
+        private boolean dropped;
+        // when the write in progress started, 0 if there is none
+        private volatile long writeStarted;
+        // the thread of the write in progress, guarded by this
+        private Thread writer;
+
+        Client(HttpExchange exchange) {
+            this.exchange = exchange;
+            clients.add(this);
+        }
+
+        /**
+         * Queues an item for the writer. A client that is already MAX_PENDING
+         * items behind is dropped instead.
+         *
+         * @return false if the client has been dropped
+         */
+        final boolean enqueue(Object item) {
+            boolean accepted;
+            boolean start = false;
+            synchronized (this) {
+                if (dropped)
+                    return false;
+                accepted = pending.size() < MAX_PENDING;
+                if (accepted) {
+                    pending.add(item);
+                    start = !running;
+                    running = true;
+                }
+            }
+            if (!accepted)
+                drop();
+            if (start)
+                startWriter();
+            return accepted;
+        }
+
+        /**
+         * Stops writing to the client. Its exchange is closed by the writer. A
+         * write in progress is interrupted, which closes the connection under it:
+         * closing the exchange from here would only block behind the write, on a
+         * phone that may never read again.
+         */
+        final void drop() {
+            boolean start;
+            synchronized (this) {
+                if (dropped)
+                    return;
+                dropped = true;
+                pending.clear();
+                start = !running;
+                running = true;
+                // sent under the lock, so it cannot reach the writer after it has
+                // finished the write and cleared its interrupt
+                if (writer != null)
+                    writer.interrupt();
+            }
+            forget(this);
+            if (start)
+                startWriter();
+        }
+
+        /**
+         * @return how long the write in progress has taken, 0 if there is none
+         */
+        final long writeTime(long now) {
+            long started = writeStarted;
+            return (started == 0) ? 0 : now - started;
+        }
+
+        private void startWriter() {
+            try {
+                writers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shutting down, nothing more will be written
+                exchange.close();
+            }
+        }
+
+        public final void run() {
+            while (true) {
+                Object item;
+                synchronized (this) {
+                    item = dropped ? null : pending.poll();
+                    if (item == null && !dropped) {
+                        running = false;
+                        return;
+                    }
+                    if (item != null)
+                        writer = Thread.currentThread();
+                }
+                if (item == null) {
+                    exchange.close();
+                    return;
+                }
+
+                boolean open;
+                writeStarted = System.currentTimeMillis();
+                try {
+                    open = write(item);
+                } catch (IOException e) {
+                    // the client has gone away, or was dropped in the middle of the write
+                    open = false;
+                } finally {
+                    writeStarted = 0;
+                    synchronized (this) {
+                        writer = null;
+                    }
+                    // an interrupt from drop() that came as the write ended must not
+                    // be left on a thread of the executor
+                    Thread.interrupted();
+                }
+                if (!open) {
+                    synchronized (this) {
+                        dropped = true;
+                        pending.clear();
+                    }
+                    forget(this);
+                }
+            }
+        }
+
+        /**
+         * Writes one queued item to the exchange.
+         *
+         * @return false if the exchange is finished with and can be closed
+         */
+        abstract boolean write(Object item) throws IOException;
+    }
+
+    private class Stream extends Client {
+        // the last version queued, only touched on the push thread
+        long version;
+
+        Stream(HttpExchange exchange, long version) {
+            super(exchange);
+            this.version = version;
+        }
+
+        boolean write(Object item) throws IOException {
+            if (item == STREAM_HEADERS) {
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", "text/event-stream; charset=utf-8");
+                headers.set("Cache-Control", "no-cache");
+                headers.set("Access-Control-Allow-Origin", "*");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+            } else {
+                OutputStream out = exchange.getResponseBody();
+                out.write((byte[]) item);
+                out.flush();
+            }
+            return true;
+        }
+    }
+
+    private class LongPoll extends Client {
+        final long version;
+        final boolean binary;
+        final long deadline;
+
+        LongPoll(HttpExchange exchange, long version, boolean binary, long deadline) {
+            super(exchange);
+            this.version = version;
+            this.binary = binary;
+            this.deadline = deadline;
+        }
+
+        boolean write(Object item) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Access-Control-Allow-Origin", "*");
+            if (item == NOT_MODIFIED) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            } else {
+                CachedResponse update = (CachedResponse) item;
+                headers.set("Content-Type", update.getContentType());
+                headers.set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, update.getBody().length);
+                exchange.getResponseBody().write(update.getBody());
+            }
+            // a long poll is answered once
+            return false;
+        }
+    }
+
+    /**
+     * @param service - must be told about each update before this channel is
+     * @param writers - runs the writes to clients, needs a thread for each client
+     *                  whose write is blocked
+     */
+    public UpdateChannel(DataService service, Executor writers) {
+        this.service = service;
+        this.writers = writers;
+        this.pushExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public void start() {
+        pushExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                keepAlive();
+            }
+        }, KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+        pushExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expireLongPolls();
+                dropStuckClients();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        pushExecutor.shutdownNow();
+        synchronized (longPolls) {
+            longPolls.clear();
+        }
+        for (Client client : clients)
+            client.drop();
+        streams.clear();
+    }
+
+    public void worldUpdated(WorldSnapshot world, EtaTable etas) {
+        pushExecutor.execute(new Runnable() {
+            public void run() {
+                push();
+            }
+        });
+    }
+
+    /**
+     * Starts an event stream on the exchange, which stays open until the client
+     * goes away. A client reconnecting with a Last-Event-ID older than the latest
+     * update is sent what it missed straight away.
+     */
+    public void openStream(HttpExchange exchange) {
+        final Stream stream = new Stream(exchange,
+                parseEventId(exchange.getRequestHeaders().getFirst("Last-Event-ID")));
+        stream.enqueue(STREAM_HEADERS);
+        pushExecutor.execute(new Runnable() {
+            public void run() {
+                if (service.getVersion() <= stream.version || send(stream))
+                    streams.add(stream);
+            }
+        });
+    }
+
+    /**
+     * Answers the exchange with what changed since version if there is a newer
+     * update, otherwise holds it until there is one.
+     *
+     * @param epoch   - the epoch of the client's version
+     * @param version - the last version the client has, or -1 if it has none
+     * @param binary  - answer in the binary format instead of JSON
+     */
+    public void waitForUpdate(HttpExchange exchange, long epoch, long version, boolean binary) {
+        if (epoch != service.getEpoch())
+            version = -1;
+        LongPoll poll = new LongPoll(exchange, version, binary, System.currentTimeMillis() + LONG_POLL_TIMEOUT);
+        synchronized (longPolls) {
+            // checked under the same lock push() takes, so no update can be missed
+            if (service.getVersion() <= version) {
+                longPolls.add(poll);
+                return;
+            }
+        }
+        poll.enqueue(service.getUpdate(version, binary));
+    }
+
+    /**
+     * @return the version, or -1 if there is none or it is not a number
+     */
+    static long parseVersion(String version) {
+        if (version == null)
+            return -1;
+        try {
+            return Long.parseLong(version.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the version of an event id written by this process, or -1 if there
+     *         is none or it was written before a restart
+     */
+    private long parseEventId(String id) {
+        if (id == null)
+            return -1;
+        int colon = id.indexOf(':');
+        if (colon < 0 || parseVersion(id.substring(0, colon)) != service.getEpoch())
+            return -1;
+        return parseVersion(id.substring(colon + 1));
+    }
+
+    private void forget(Client client) {
+        clients.remove(client);
+        if (client instanceof Stream)
+            streams.remove(client);
+    }
+
+    private void push() {
+        for (Stream stream : streams) {
+            if (!send(stream))
+                streams.remove(stream);
+        }
+
+        List<LongPoll> answered;
+        synchronized (longPolls) {
+            answered = new ArrayList<LongPoll>(longPolls);
+            longPolls.clear();
+        }
+        for (LongPoll poll : answered)
+            poll.enqueue(service.getUpdate(poll.version, poll.binary));
+    }
+
+    private void keepAlive() {
+        for (Stream stream : streams) {
+            if (!stream.enqueue(KEEP_ALIVE))
+                streams.remove(stream);
+        }
+    }
+
+    private void expireLongPolls() {
+        long now = System.currentTimeMillis();
+        List<LongPoll> expired = new ArrayList<LongPoll>();
+        synchronized (longPolls) {
+            Iterator<LongPoll> it = longPolls.iterator();
+            while (it.hasNext()) {
+                LongPoll poll = it.next();
+                if (poll.deadline <= now) {
+                    expired.add(poll);
+                    it.remove();
+                }
+            }
+        }
+        for (LongPoll poll : expired)
+            poll.enqueue(NOT_MODIFIED);
+    }
+
+    /**
+     * Drops the clients that have not taken a write in WRITE_TIMEOUT, most
+     * likely phones that lost their connection without closing it.
+     */
+    private void dropStuckClients() {
+        long now = System.currentTimeMillis();
+        for (Client client : clients) {
+            if (client.writeTime(now) > WRITE_TIMEOUT)
+                client.drop();
+        }
+    }
+
+    /**
+     * Queues what changed since the last version the stream was sent.
+     *
+     * @return false if the client has been dropped
+     */
+    private boolean send(Stream stream) {
+        CachedResponse update = service.getUpdate(stream.version, false);
+        if (!stream.enqueue(event(update)))
+            return false;
+        stream.version = update.getVersion();
+        return true;
+    }
+
+    private byte[] event(CachedResponse update) {
+        byte[] id = ("id: " + service.getEpoch() + ":" + update.getVersion() + "\nevent: update\ndata: ").getBytes();
+        byte[] body = update.getBody();
+        byte[] event = new byte[id.length + body.length + 2];
+        System.arraycopy(id, 0, event, 0, id.length);
+        // the body is written by Jackson without line breaks, so it fits on one data line
+        System.arraycopy(body, 0, event, id.length, body.length);
+        event[event.length - 2] = '\n';
+        event[event.length - 1] = '\n';
+        return event;
+    }
+}
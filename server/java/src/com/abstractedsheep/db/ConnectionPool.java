@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small, fixed size pool of connections to one database. Connections are only
+ * opened when no idle connection is available, and are kept open between uses
+ * instead of reconnecting for every write.
+ *
+ * @author saiumesh
+ */
+public class ConnectionPool {
+    // seconds to wait for a connection to answer before replacing it
+    private static final int VALIDATION_TIMEOUT = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final BlockingQueue<Connection> idle;
+    private int openConnections;
+
+    /**
+     * @param url      - jdbc url of the database
+     * @param user     - database user name
+     * @param password - database password
+     * @param maxSize  - the most connections that may be open at once
+     */
+    public ConnectionPool(String url, String user, String password, int maxSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.idle = new ArrayBlockingQueue<Connection>(maxSize);
+        this.openConnections = 0;
+    }
+
+    /**
+     * Hands out an idle connection, opening a new one if the pool has room, or
+     * otherwise waiting for one to be released.
+     *
+     * @param timeout - milliseconds to wait for a connection to be released
+     * @return a connection which must be given back with release()
+     * @throws SQLException if a connection could not be opened or none was
+     *                      released in time
+     */
+    public Connection getConnection(long timeout) throws SQLException {
+        Connection conn = idle.poll();
+        while (conn != null) {
+            if (conn.isValid(VALIDATION_TIMEOUT))
+                return conn;
+            this.discard(conn);
+            conn = idle.poll();
+        }
+
+        if (this.reserve())
+            return this.open();
+
+        try {
+            conn = idle.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (conn == null)
+            throw new SQLException("No database connection available after " + timeout + " ms");
+        return conn;
+    }
+
+    /**
+     * Returns a connection to the pool. Connections that are closed are dropped
+     * so that a new one will be opened in their place.
+     */
+    public void release(Connection conn) {
+        if (conn == null)
+            return;
+        try {
+            if (conn.isClosed() || !idle.offer(conn))
+                this.discard(conn);
+        } catch (SQLException e) {
+            this.discard(conn);
+        }
+    }
+
+    /**
+     * Closes a connection that is broken instead of returning it to the pool.
+     */
+    public void discard(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+        }
+        synchronized (this) {
+            openConnections--;
+        }
+    }
+
+    /**
+     * Closes all of the idle connections.
+     */
+    public void close() {
+        Connection conn;
+        while ((conn = idle.poll()) != null)
+            this.discard(conn);
+    }
+
+    private synchronized boolean reserve() {
+        if (openConnections >= maxSize)
+            return false;
+        openConnections++;
+        return true;
+    }
+
+    private Connection open() throws SQLException {
+        try {
+            return DriverManager.getConnection(url, user, password);
+        } catch (SQLException e) {
+            synchronized (this) {
+                openConnections--;
+            }
+            throw e;
+        }
+    }
+}
@@ -20,7 +20,8 @@
 package com.abstractedsheep.db;
 
 import com.abstractedsheep.ShuttleTrackerService.ETACalculator;
-import com.abstractedsheep.ShuttleTrackerService.ETACalculator.Eta;
+import com.abstractedsheep.ShuttleTrackerService.EtaIndex;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
 import com.abstractedsheep.config.DBProperties;
 
 import java.io.BufferedReader;
@@ -29,9 +30,11 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
+import java.util.HashMap;
 
 /**
  * Connects to the server {@link www.abstractedsheep.com/phpMyAdmin/} and
@@ -43,32 +46,22 @@ import java.text.MessageFormat;
  * @author saiumesh
  */
 public class DatabaseWriter extends AbstractQueryRunner {
-    private static Connection conn;
+    private static final int POOL_SIZE = 2;
+    // milliseconds to wait for a free connection
+    private static final long CONNECTION_TIMEOUT = (1000 * 5);
+    private static final String UPSERT_QUERY = "INSERT INTO {0} (shuttle_id, stop_id, eta_id, eta, absolute_eta, route)"
+            + " VALUES (?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE"
+            + " eta = VALUES(eta), absolute_eta = VALUES(absolute_eta), route = VALUES(route)";
+    // removes one row by its key, batched for every eta that is no longer predicted
+    private static final String DELETE_QUERY = "DELETE FROM {0} WHERE shuttle_id = ? AND stop_id = ? AND eta_id = ?";
+    private static final String DELETE_ALL_QUERY = "DELETE FROM {0}";
+    private static ConnectionPool pool;
+    // the etas each table holds as of the last commit, keyed by table name,
+    // guarded by the class
+    private static final HashMap<String, EtaTable> written = new HashMap<String, EtaTable>();
 
     // private final Logger log = Logger.getLogger(null);
 
-    /**
-     * Method connections to the MySQL server using the arguments in the file
-     * sts.properties.
-     *
-     * @throws InstantiationException
-     * @throws IllegalAccessException
-     * @throws ClassNotFoundException
-     * @throws IOException
-     * @throws SQLException
-     */
-    public static void connectToDatabase(String tableName)
-            throws InstantiationException, IllegalAccessException,
-            ClassNotFoundException, IOException, SQLException {
-        String driver = "com.mysql.jdbc.Driver";
-
-        Class.forName(driver).newInstance();
-        conn = DriverManager.getConnection(DBProperties.TEST_DB_LINK.toString(),
-                            DBProperties.USER_NAME.toString(), DBProperties.PASSWORD.toString());
-
-        deleteTable(tableName);
-    }
-
     private Connection createConnection(boolean isServer)
             throws InstantiationException, IllegalAccessException,
             ClassNotFoundException, IOException, SQLException {
@@ -90,9 +83,10 @@ public class DatabaseWriter extends AbstractQueryRunner {
         Statement stmt = conn.createStatement();
         final String query = insertQuery + updateQuery;
         String sql = "";
-        for (Eta eta : etaList.getETAs()) {
-            sql = String.format(query, new Object[]{tableName, eta.shuttleId,
-                    eta.stopId, eta.Id, eta.time, eta.arrivalTime});
+        EtaTable etas = etaList.getEtaTable();
+        for (int i = 0; i < etas.size(); i++) {
+            sql = String.format(query, new Object[]{tableName, etas.getShuttleId(i),
+                    etas.getStopId(i), etas.getEtaId(i), etas.getTime(i), etas.getArrivalTime(i)});
 
             stmt.addBatch(sql);
         }
@@ -113,73 +107,125 @@ public class DatabaseWriter extends AbstractQueryRunner {
     }
     //XXX now defunct
     public static void saveToDatabase(ETACalculator etaList, String tableName) {
+        saveToDatabase(etaList.getEtaTable(), tableName);
+    }
+
+    /**
+     * Removes the rows of the etas the table held after the last save that are
+     * not among these etas, so that nothing is left of shuttles that are no
+     * longer running, stops that have been taken off a route or etas that are no
+     * longer predicted. Then writes the etas as one batch of inserts that update
+     * the row already holding each shuttle/stop/eta. The first save after the
+     * server starts removes every row instead, as the table may hold etas from
+     * before. Rows are only removed by their key, so the table is never scanned.
+     * <p>
+     * All of this is done in one transaction over a connection kept open between
+     * calls. If anything goes wrong the transaction is rolled back and the
+     * connection is closed rather than given back to the pool, and the next save
+     * is compared against what the table held before.
+     *
+     * @param etaList   - the etas from the most recent calculation
+     * @param tableName - table to write the etas to
+     */
+    public static synchronized void saveToDatabase(EtaTable etaList, String tableName) {
+        ConnectionPool pool;
+        Connection conn;
         try {
-            connectToDatabase(tableName);
-            Statement stmt = conn.createStatement();
-            MessageFormat f = null;
-            for (Eta eta : etaList.getETAs()) {
-                String query = "UPDATE {0} SET eta = '{1}'"
-                        + "WHERE shuttle_id = {2} AND stop_id = '{3}'"
-                        + " AND route = '{4}' AND eta_id = '{5}'"
-                        + " AND absolute_eta = '{6}'";
-
-                f = new MessageFormat(query);
-                f.format(new Object[]{tableName, eta.time, eta.shuttleId,
-                        eta.stopName, eta.routeId, eta.Id, eta.arrivalTime});
-                query = f.toString();
-
-                int updateCount = stmt.executeUpdate(query);
-
-                if (updateCount == 0) {
-                    String header = "INSERT INTO {0} (shuttle_id, stop_id, eta_id, eta, absolute_eta, route)\n";
-                    String values = "VALUES ( {1},'{2}','{3}', '{4}', '{5}', '{6}')";
-                    query = header + values;
-                    f = new MessageFormat(query);
-                    f.format(new Object[]{tableName, eta.shuttleId,
-                            eta.stopName, eta.Id, eta.time, eta.arrivalTime,
-                            eta.routeId});
-                    query = f.toString();
-
-                    stmt.executeUpdate(query);
-                }
-            }
-        } catch (InstantiationException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            pool = getConnectionPool();
+            conn = pool.getConnection(CONNECTION_TIMEOUT);
         } catch (ClassNotFoundException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
+            return;
+        } catch (SQLException e) {
             e.printStackTrace();
+            return;
+        }
+
+        PreparedStatement upsert = null;
+        PreparedStatement delete = null;
+        boolean committed = false;
+        try {
+            conn.setAutoCommit(false);
+
+            // removed before the upsert, so that an eta that is only matched as
+            // removed because its route changed is written again
+            EtaTable last = written.get(tableName);
+            if (last == null) {
+                delete = conn.prepareStatement(MessageFormat.format(DELETE_ALL_QUERY, tableName));
+                delete.executeUpdate();
+            } else {
+                EtaIndex current = new EtaIndex(etaList);
+                boolean removed = false;
+                for (int i = 0; i < last.size(); i++) {
+                    if (current.find(last, i) != -1)
+                        continue;
+                    if (delete == null)
+                        delete = conn.prepareStatement(MessageFormat.format(DELETE_QUERY, tableName));
+                    delete.setInt(1, last.getShuttleId(i));
+                    delete.setString(2, last.getStopId(i));
+                    delete.setInt(3, last.getEtaId(i));
+                    delete.addBatch();
+                    removed = true;
+                }
+                if (removed)
+                    delete.executeBatch();
+            }
+
+            if (etaList.size() > 0) {
+                upsert = conn.prepareStatement(MessageFormat.format(UPSERT_QUERY, tableName));
+                for (int i = 0; i < etaList.size(); i++) {
+                    upsert.setInt(1, etaList.getShuttleId(i));
+                    upsert.setString(2, etaList.getStopId(i));
+                    upsert.setInt(3, etaList.getEtaId(i));
+                    upsert.setInt(4, etaList.getTime(i));
+                    upsert.setLong(5, etaList.getArrivalTime(i));
+                    upsert.setInt(6, etaList.getRouteId(i));
+                    upsert.addBatch();
+                }
+                upsert.executeBatch();
+            }
+
+            conn.commit();
+            conn.setAutoCommit(true);
+            committed = true;
+            // tables are never changed once handed out, so this one can be kept
+            written.put(tableName, etaList);
         } catch (SQLException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
         } finally {
-            // after writing the values to the DB, close the connection to the
-            // database.
-            try {
-                if (conn != null)
-                    conn.close();
-            } catch (SQLException e) {
+            closeStatement(upsert);
+            closeStatement(delete);
+            if (committed) {
+                pool.release(conn);
+            } else {
+                // runtime exceptions end up here too, so that a failed batch is
+                // never left open on a connection that goes back to the pool
+                try {
+                    conn.rollback();
+                } catch (SQLException e1) {
+                }
+                // the connection may be broken, so make the pool open a new one
+                pool.discard(conn);
             }
         }
     }
 
-    /**
-     * Delete the values in the database table
-     *
-     * @param tableName this value is currently not used
-     */
-    private static void deleteTable(String tableName) {
-        try {
-            Statement stm = conn.createStatement();
-            String sql = "TRUNCATE TABLE " + tableName;
+    private static synchronized ConnectionPool getConnectionPool() throws ClassNotFoundException {
+        if (pool == null) {
+            Class.forName("com.mysql.jdbc.Driver");
+            String link = DBProperties.TEST_DB_LINK.toString();
+            // let the driver send a batch as a single multi-row insert
+            link += (link.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+            pool = new ConnectionPool(link, DBProperties.USER_NAME.toString(),
+                    DBProperties.PASSWORD.toString(), POOL_SIZE);
+        }
+        return pool;
+    }
 
-            stm.executeUpdate(sql);
+    private static void closeStatement(Statement stmt) {
+        try {
+            if (stmt != null)
+                stmt.close();
         } catch (SQLException e) {
         }
     }
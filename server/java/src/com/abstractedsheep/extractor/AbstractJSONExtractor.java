@@ -22,9 +22,18 @@ package com.abstractedsheep.extractor;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * The purpose of this class is to extract the jsons from the rpi shuttle server
@@ -37,6 +46,14 @@ public abstract class AbstractJSONExtractor {
     protected JsonParser parser;
     protected JsonFactory f;
     protected ArrayList<String> extractedValueList1, extractedValueList2;
+    // connect and read timeout in milliseconds, 0 waits forever
+    protected int timeout;
+    // validators of the last payload, used to skip payloads that have not changed
+    private String etag;
+    private long lastModified;
+    private byte[] contentHash;
+    // whether the last call to readDataFromURL() replaced the extracted data
+    protected boolean changed;
 
     public AbstractJSONExtractor() {
         f = new JsonFactory();
@@ -60,6 +77,100 @@ public abstract class AbstractJSONExtractor {
         this.extractedValueList2 = new ArrayList<String>();
     }
 
+    /**
+     * @param timeout - the longest time in milliseconds to wait on the server
+     *                when connecting or reading, 0 to wait forever.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Opens a connection to the url, giving up if the server does not respond
+     * within the timeout.
+     */
+    protected InputStream openStream() throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        return connection.getInputStream();
+    }
+
+    /**
+     * Opens the url only if its contents have changed since the last payload.
+     * The server is asked first, using the ETag and Last-Modified headers it sent
+     * with the last payload. If it sends the whole payload anyway, the payload is
+     * compared against a hash of the last one.
+     *
+     * @return the new payload, or null if it has not changed.
+     */
+    protected InputStream openChangedStream() throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        if (lastModified != 0)
+            connection.setIfModifiedSince(lastModified);
+        if (etag != null)
+            connection.setRequestProperty("If-None-Match", etag);
+
+        if (connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            connection.getInputStream().close();
+            return null;
+        }
+
+        byte[] payload = readFully(connection.getInputStream());
+        byte[] hash = hash(payload);
+        if (hash != null && Arrays.equals(hash, contentHash))
+            return null;
+
+        etag = connection.getHeaderField("ETag");
+        lastModified = connection.getLastModified();
+        contentHash = hash;
+        return new ByteArrayInputStream(payload);
+    }
+
+    /**
+     * Forgets the last payload, so that the next one is read even if it has not
+     * changed. Called when a payload could not be read.
+     */
+    protected void forgetPayload() {
+        etag = null;
+        lastModified = 0;
+        contentHash = null;
+    }
+
+    /**
+     * @return true if the last call to readDataFromURL() replaced the extracted
+     *         data, false if it was left as it was.
+     */
+    public boolean hasChanged() {
+        return changed;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] hash(byte[] payload) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(payload);
+        } catch (NoSuchAlgorithmException e) {
+            // without a hash every payload is treated as changed
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     // TODO: data shows up in one line, need to make a new method/class to parse
     // json data.
 
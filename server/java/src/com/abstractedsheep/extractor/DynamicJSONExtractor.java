@@ -26,17 +26,32 @@ import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonToken;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 public class DynamicJSONExtractor extends AbstractJSONExtractor {
     private HashMap<Integer, Shuttle> shuttleList;
-    private HashMap<Integer, Route> routeList;
+    // replaced from another thread when the routes are reloaded
+    private volatile Map<Integer, Route> routeList;
+    // reused for every vehicle read from the feed
+    private final VehicleRecord record = new VehicleRecord();
+
+    // SimpleDateFormat is not thread safe, so each thread keeps its own
+    private static final ThreadLocal<SimpleDateFormat> TIMESTAMP_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+                    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    return format;
+                }
+            };
 
     public DynamicJSONExtractor(URL u, HashMap<Integer, Route> rtList) {
         super(u);
@@ -49,47 +64,61 @@ public class DynamicJSONExtractor extends AbstractJSONExtractor {
         shuttleList = new HashMap<Integer, Shuttle>();
     }
 
-    public void setRouteList(HashMap<Integer, Route> list) {
+    public void setRouteList(Map<Integer, Route> list) {
         this.routeList = list;
     }
 
+    /**
+     * Reads the current shuttle positions into a new map, so that the map returned
+     * by getDynamicData() is never modified once it has been handed out.
+     * Values are read by field name straight off the token stream into a single
+     * reused record, so the order of the fields in the feed does not matter.
+     * If the positions have not changed since the last call, the map is left as
+     * it was and hasChanged() returns false.
+     */
     @Override
     public void readDataFromURL() {
+        // anything but an unchanged payload replaces the shuttles, so that the world
+        // still drops shuttles it has stopped hearing about when the feed is down
+        HashMap<Integer, Shuttle> lastShuttleList = shuttleList;
+        shuttleList = new HashMap<Integer, Shuttle>();
+        changed = true;
+        boolean failed = true;
+        parser = null;
         try {
-            parser = f.createJsonParser(url);
-            parser.nextToken();
-            while (parser.nextToken() != JsonToken.END_ARRAY) { // keep reading the
-                // stops array until
-                // you have reached
-                // the end of it.
-                if (parser.getCurrentName() != null
-                        && !parser.getCurrentToken().equals(JsonToken.FIELD_NAME)) {
-                    if (!parser.getCurrentName().equals("vehicle")
-                            && !parser.getCurrentName().equals("latest_position")
-                            && !parser.getCurrentName().equals("icon")) {
-                        this.extractedValueList2.add(parser.getText());
-                    }
-
-                    if (parser.getCurrentName().equals("vehicle")
-                            && parser.getText().equals("}")) {
-                        Shuttle s = this.parseData(extractedValueList2, (ArrayList<Route>) routeList.values());
-                        shuttleList.put(s.getShuttleId(), s);
-                        this.extractedValueList2.clear();
-                    }
+            InputStream in = openChangedStream();
+            if (in == null) {
+                shuttleList = lastShuttleList;
+                changed = false;
+                failed = false;
+                return;
+            }
+            ArrayList<Route> routes = new ArrayList<Route>(routeList.values());
+            parser = f.createJsonParser(in);
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+                return;
+            // each element of the array describes one vehicle
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                record.clear();
+                readFields(null);
+                if (record.hasId) {
+                    Shuttle s = this.parseData(record, routes);
+                    shuttleList.put(s.getShuttleId(), s);
                 }
             }
+            failed = false;
         } catch (JsonParseException e) {
             System.err.println("Error: ");
             e.printStackTrace();
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
-        } catch (ParseException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         } finally {
+            if (failed)
+                forgetPayload();
             try {
-                parser.close();
+                if (parser != null)
+                    parser.close();
             } catch (IOException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -98,43 +127,111 @@ public class DynamicJSONExtractor extends AbstractJSONExtractor {
     }
 
     /**
-     * Constructs shuttle object fromt he given list of values.
+     * Reads the fields of the current object, descending into nested objects,
+     * up to and including its closing brace.
      *
-     * @param list      - values to construct desired object
-     * @param stopList  - list of stops
-     * @param routeList
-     * @return shuttle object
-     * @throws ParseException
+     * @param objectName - name of the field holding the object, null at the top.
      */
-    public Shuttle parseData(ArrayList<String> list,
-                             ArrayList<Route> routeList) throws ParseException {
-        SimpleDateFormat dt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        dt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        Date date = new Date(dt.parse(list.get(6)).getTime());
-        long time = System.currentTimeMillis(), parsedTime = dt.parse(dt.format(date)).getTime();
-        System.out.println((time - parsedTime) / (1000 * 60 * 60));
-        Shuttle shuttle = new Shuttle(routeList);
-        shuttle.setShuttleId(Integer.parseInt(list.get(0)));
-        shuttle.setName(list.get(1));
-        shuttle.setCurrentLocation(new Coordinate(Double.parseDouble(list
-                .get(3)), Double.parseDouble(list.get(4))), time);
-        shuttle.setSpeed(Integer.parseInt(list.get(5)));
-        shuttle.setCardinalPoint(list.get(list.size() - 1));
-        shuttle.setCurrentRoute(routeList.get(0));
-        double d = shuttle.getDistanceToClosestPoint();
-
-        for (int i = 1; i < routeList.size(); i++) {
-            shuttle.snapToRoute(routeList.get(i));
-
-            if (d > shuttle.getDistanceToClosestPoint()) {
-                shuttle.setCurrentRoute(routeList.get(i));
-                d = shuttle.getDistanceToClosestPoint();
+    private void readFields(String objectName) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT) {
+                readFields(field);
+            } else if (value == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+            } else if (value != JsonToken.VALUE_NULL) {
+                readValue(objectName, field);
             }
         }
+    }
+
+    private void readValue(String objectName, String field) throws IOException {
+        if (field.equals("id")) {
+            // the icon object carries an id of its own
+            if (!"icon".equals(objectName)) {
+                record.id = parser.getValueAsInt();
+                record.hasId = true;
+            }
+        } else if (field.equals("name")) {
+            record.name = parser.getText();
+        } else if (field.equals("latitude")) {
+            record.latitude = parser.getValueAsDouble();
+        } else if (field.equals("longitude")) {
+            record.longitude = parser.getValueAsDouble();
+        } else if (field.equals("speed")) {
+            record.speed = parser.getValueAsInt();
+        } else if (field.equals("heading")) {
+            record.heading = parser.getValueAsInt();
+        } else if (field.equals("cardinal_point")) {
+            record.cardinalPoint = parser.getText();
+        } else if (field.equals("timestamp")) {
+            record.timestamp = parseTimestamp(parser.getText());
+        }
+    }
+
+    /**
+     * @return the time in milliseconds, or 0 if the timestamp cannot be read.
+     */
+    private static long parseTimestamp(String timestamp) {
+        try {
+            return TIMESTAMP_FORMAT.get().parse(timestamp).getTime();
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Constructs shuttle object from the given vehicle record. The shuttle was
+     * last updated when the feed says its position was taken, or now if the feed
+     * gave no time for it.
+     *
+     * @param vehicle   - values read for one vehicle
+     * @param routeList - list of routes
+     * @return shuttle object
+     */
+    public Shuttle parseData(VehicleRecord vehicle, ArrayList<Route> routeList) {
+        Shuttle shuttle = new Shuttle(routeList);
+        shuttle.setShuttleId(vehicle.id);
+        shuttle.setName(vehicle.name);
+        long time = (vehicle.timestamp > 0) ? vehicle.timestamp : System.currentTimeMillis();
+        shuttle.setCurrentLocation(new Coordinate(vehicle.latitude,
+                vehicle.longitude), time);
+        shuttle.setSpeed(vehicle.speed);
+        shuttle.setCardinalPoint(vehicle.cardinalPoint);
+        shuttle.setHeading(vehicle.heading);
         return shuttle;
     }
 
     public HashMap<Integer, Shuttle> getDynamicData() {
         return shuttleList;
     }
+
+    /**
+     * The values of one vehicle in current.js.
+     */
+    public static class VehicleRecord {
+        public boolean hasId;
+        public int id;
+        public String name;
+        public double latitude;
+        public double longitude;
+        public int speed;
+        public int heading;
+        public long timestamp;
+        public String cardinalPoint;
+
+        void clear() {
+            hasId = false;
+            id = 0;
+            name = null;
+            latitude = 0;
+            longitude = 0;
+            speed = 0;
+            heading = 0;
+            timestamp = 0;
+            cardinalPoint = null;
+        }
+    }
 }
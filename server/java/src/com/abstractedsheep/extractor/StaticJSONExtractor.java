@@ -26,6 +26,7 @@ import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -43,12 +44,26 @@ public class StaticJSONExtractor extends AbstractJSONExtractor {
         this.mapper = new ObjectMapper();
     }
 
+    /**
+     * Reads the routes and stops. If they have not changed since the last call,
+     * or cannot be read, the lists are left as they were and hasChanged() returns
+     * false.
+     */
     @Override
     public void readDataFromURL() {
+        changed = false;
+        boolean failed = true;
         try {
-            Netlink link = mapper.readValue(new InputStreamReader(url.openStream()), Netlink.class);
+            InputStream in = openChangedStream();
+            if (in == null) {
+                failed = false;
+                return;
+            }
+            Netlink link = mapper.readValue(new InputStreamReader(in), Netlink.class);
             routeList = link.getRoutes();
             stopList = link.getStops();
+            changed = true;
+            failed = false;
         } catch (JsonParseException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -58,6 +73,9 @@ public class StaticJSONExtractor extends AbstractJSONExtractor {
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } finally {
+            if (failed)
+                forgetPayload();
         }
     }
 
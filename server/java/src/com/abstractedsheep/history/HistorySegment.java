@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.history;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One immutable file of position samples, written once and then read through
+ * a memory map. The samples of each shuttle are kept together in a block, and
+ * within a block each value is stored as a column: every time, then every
+ * latitude, and so on. Each column holds the difference from the value before
+ * it as a varint, so the slowly changing times and coordinates of a shuttle
+ * take a byte or two per sample rather than eight.
+ * <pre>
+ * magic                int "STPH"
+ * format version       byte
+ * sample count         int
+ * first, last time     long, long
+ * shuttle count        int, then for each shuttle, by id:
+ *     shuttle id int, sample count int, first time long, last time long,
+ *     block offset int, block length int
+ * blocks               for each shuttle, its samples by time:
+ *     times varint deltas, latitude E6, longitude E6, speed and heading zigzag deltas
+ * </pre>
+ *
+ * @author saiumesh
+ */
+public final class HistorySegment {
+    private static final int MAGIC = 0x53545048;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 1 + 4 + 8 + 8 + 4;
+    private static final int DIRECTORY_ENTRY_LENGTH = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private static final Comparator<PositionSample> BY_SHUTTLE_AND_TIME = new Comparator<PositionSample>() {
+        public int compare(PositionSample s1, PositionSample s2) {
+            if (s1.getShuttleId() != s2.getShuttleId())
+                return (s1.getShuttleId() < s2.getShuttleId()) ? -1 : 1;
+            return (s1.getTime() < s2.getTime()) ? -1 : ((s1.getTime() == s2.getTime()) ? 0 : 1);
+        }
+    };
+
+    // never read through directly, each query reads through a duplicate of its own
+    private final ByteBuffer buffer;
+    private final long firstTime;
+    private final long lastTime;
+    private final int[] shuttleIds;
+    private final int[] counts;
+    private final long[] firstTimes;
+    private final long[] lastTimes;
+    private final int[] offsets;
+
+    private HistorySegment(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.get(4) != FORMAT_VERSION)
+            throw new IOException("Not a history segment");
+        this.firstTime = buffer.getLong(9);
+        this.lastTime = buffer.getLong(17);
+        int shuttleCount = buffer.getInt(25);
+        this.shuttleIds = new int[shuttleCount];
+        this.counts = new int[shuttleCount];
+        this.firstTimes = new long[shuttleCount];
+        this.lastTimes = new long[shuttleCount];
+        this.offsets = new int[shuttleCount];
+        for (int i = 0; i < shuttleCount; i++) {
+            int entry = HEADER_LENGTH + i * DIRECTORY_ENTRY_LENGTH;
+            shuttleIds[i] = buffer.getInt(entry);
+            counts[i] = buffer.getInt(entry + 4);
+            firstTimes[i] = buffer.getLong(entry + 8);
+            lastTimes[i] = buffer.getLong(entry + 16);
+            offsets[i] = buffer.getInt(entry + 24);
+        }
+    }
+
+    /**
+     * Maps the segment in the file into memory.
+     *
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static HistorySegment open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid once the file is closed
+            return new HistorySegment(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the samples to a new segment. The segment is written beside the
+     * file and then renamed, so a reader never sees half a segment.
+     *
+     * @param samples - at least one sample, in any order
+     */
+    public static void write(File file, List<PositionSample> samples) throws IOException {
+        ArrayList<PositionSample> sorted = new ArrayList<PositionSample>(samples);
+        Collections.sort(sorted, BY_SHUTTLE_AND_TIME);
+
+        // each shuttle's run of samples, as [start, end) into sorted
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        for (int i = 0; i < sorted.size(); i++) {
+            PositionSample sample = sorted.get(i);
+            if (i == 0 || sample.getShuttleId() != sorted.get(i - 1).getShuttleId())
+                runs.add(new int[]{i, i + 1});
+            else
+                runs.get(runs.size() - 1)[1] = i + 1;
+            firstTime = Math.min(firstTime, sample.getTime());
+            lastTime = Math.max(lastTime, sample.getTime());
+        }
+
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        int[] blockOffsets = new int[runs.size() + 1];
+        int dataStart = HEADER_LENGTH + runs.size() * DIRECTORY_ENTRY_LENGTH;
+        for (int r = 0; r < runs.size(); r++) {
+            blockOffsets[r] = dataStart + blocks.size();
+            writeBlock(blocks, sorted.subList(runs.get(r)[0], runs.get(r)[1]));
+        }
+        blockOffsets[runs.size()] = dataStart + blocks.size();
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(sorted.size());
+            out.writeLong(firstTime);
+            out.writeLong(lastTime);
+            out.writeInt(runs.size());
+            for (int r = 0; r < runs.size(); r++) {
+                int start = runs.get(r)[0];
+                int end = runs.get(r)[1];
+                out.writeInt(sorted.get(start).getShuttleId());
+                out.writeInt(end - start);
+                out.writeLong(sorted.get(start).getTime());
+                out.writeLong(sorted.get(end - 1).getTime());
+                out.writeInt(blockOffsets[r]);
+                out.writeInt(blockOffsets[r + 1] - blockOffsets[r]);
+            }
+            blocks.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, List<PositionSample> samples) {
+        long last = 0;
+        for (PositionSample s : samples) {
+            // sorted, so the times only ever grow
+            writeVarint(out, s.getTime() - last);
+            last = s.getTime();
+        }
+        last = 0;
+        for (PositionSample s : samples) {
+            writeSignedVarint(out, s.getLatitudeE6() - last);
+            last = s.getLatitudeE6();
+        }
+        last = 0;
+        for (PositionSample s : samples) {
+            writeSignedVarint(out, s.getLongitudeE6() - last);
+            last = s.getLongitudeE6();
+        }
+        last = 0;
+        for (PositionSample s : samples) {
+            writeSignedVarint(out, s.getSpeed() - last);
+            last = s.getSpeed();
+        }
+        last = 0;
+        for (PositionSample s : samples) {
+            writeSignedVarint(out, s.getHeading() - last);
+            last = s.getHeading();
+        }
+    }
+
+    /**
+     * @return the time of the earliest sample in the segment
+     */
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return the time of the latest sample in the segment
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Adds the samples of the shuttle between the two times to the list, by time.
+     * Only the block of that shuttle is read.
+     *
+     * @param from - the earliest time to include
+     * @param to   - the time to stop before
+     */
+    public void query(int shuttleId, long from, long to, List<PositionSample> samples) {
+        if (lastTime < from || firstTime >= to)
+            return;
+        for (int i = 0; i < shuttleIds.length; i++) {
+            if (shuttleIds[i] == shuttleId && lastTimes[i] >= from && firstTimes[i] < to)
+                readBlock(i, from, to, samples);
+        }
+    }
+
+    /**
+     * Adds the samples of every shuttle between the two times to the list, a
+     * shuttle at a time.
+     *
+     * @param from - the earliest time to include
+     * @param to   - the time to stop before
+     */
+    public void queryAll(long from, long to, List<PositionSample> samples) {
+        if (lastTime < from || firstTime >= to)
+            return;
+        for (int i = 0; i < shuttleIds.length; i++) {
+            if (lastTimes[i] >= from && firstTimes[i] < to)
+                readBlock(i, from, to, samples);
+        }
+    }
+
+    private void readBlock(int index, long from, long to, List<PositionSample> samples) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offsets[index]);
+        int count = counts[index];
+        long[] times = new long[count];
+        int[] latitudes = new int[count];
+        int[] longitudes = new int[count];
+        int[] speeds = new int[count];
+
+        long last = 0;
+        for (int i = 0; i < count; i++)
+            times[i] = last += readVarint(in);
+        last = 0;
+        for (int i = 0; i < count; i++)
+            latitudes[i] = (int) (last += readSignedVarint(in));
+        last = 0;
+        for (int i = 0; i < count; i++)
+            longitudes[i] = (int) (last += readSignedVarint(in));
+        last = 0;
+        for (int i = 0; i < count; i++)
+            speeds[i] = (int) (last += readSignedVarint(in));
+        last = 0;
+        for (int i = 0; i < count; i++) {
+            // the last column, so it is read straight into the samples
+            last += readSignedVarint(in);
+            if (times[i] >= from && times[i] < to)
+                samples.add(new PositionSample(shuttleIds[index], times[i], latitudes[i], longitudes[i],
+                        speeds[i], (int) last));
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSignedVarint(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static long readSignedVarint(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
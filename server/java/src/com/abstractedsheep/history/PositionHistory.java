@@ -0,0 +1,347 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.history;
+
+import com.abstractedsheep.ShuttleTrackerServer.WorldUpdateListener;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.WorldSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every position of every shuttle, so tracks can be looked at and learned
+ * from later without going through MySQL. Samples are only ever appended.
+ * <p>
+ * New samples are held in memory and written out every few minutes as a
+ * {@link HistorySegment}, in a directory per day:
+ * <pre>
+ *   history/2011-09-14/1316001600000-1316002499000.seg
+ * </pre>
+ * A segment is named after the times of its first and last samples, so a query
+ * only opens the segments that overlap it. Segments are memory-mapped once
+ * opened and kept open, and the samples not yet written are searched as well,
+ * so a query always sees every sample up to the last update. The segments of a
+ * day are let go of once the day is over, and opened again if it is asked for.
+ *
+ * @author saiumesh
+ */
+public class PositionHistory implements WorldUpdateListener {
+    // how often the samples held in memory are written out
+    private static final long FLUSH_INTERVAL = 15 * 60 * 1000;
+    // written out early if this many samples are held
+    private static final int MAX_BUFFERED_SAMPLES = 8192;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final ThreadLocal<SimpleDateFormat> DAY_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("yyyy-MM-dd");
+                }
+            };
+
+    private static final Comparator<PositionSample> BY_TIME = new Comparator<PositionSample>() {
+        public int compare(PositionSample s1, PositionSample s2) {
+            if (s1.getTime() != s2.getTime())
+                return (s1.getTime() < s2.getTime()) ? -1 : 1;
+            return (s1.getShuttleId() < s2.getShuttleId()) ? -1
+                    : ((s1.getShuttleId() == s2.getShuttleId()) ? 0 : 1);
+        }
+    };
+
+    private final File directory;
+    // guarded by this: samples not written yet, and those being written
+    private ArrayList<PositionSample> buffer = new ArrayList<PositionSample>();
+    private List<PositionSample> writing = Collections.emptyList();
+    // time of the last sample taken of each shuttle in the world, only touched on
+    // the update thread
+    private final HashMap<Integer, Long> lastSampleTimes = new HashMap<Integer, Long>();
+    // the segments opened so far, keyed by path
+    private final ConcurrentHashMap<String, HistorySegment> segments = new ConcurrentHashMap<String, HistorySegment>();
+    private final ScheduledExecutorService writer;
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param directory - where the day directories are kept, made if it does not exist
+     */
+    public PositionHistory(File directory) {
+        this.directory = directory;
+        this.writer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    public void start() {
+        writer.scheduleWithFixedDelay(flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops writing on a timer and writes out every sample held.
+     */
+    public void stop() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Takes a sample of every shuttle the feed has updated since the last one.
+     */
+    public void worldUpdated(WorldSnapshot world, EtaTable etas) {
+        // a shuttle that has left is sampled again if it comes back, and the
+        // sample seen twice is dropped by the queries
+        lastSampleTimes.keySet().retainAll(world.getShuttleList().keySet());
+        ArrayList<PositionSample> samples = new ArrayList<PositionSample>();
+        for (Shuttle s : world.getShuttleList().values()) {
+            Long last = lastSampleTimes.get(s.getShuttleId());
+            if (last != null && last.longValue() == s.getLastUpdateTime())
+                continue;
+            lastSampleTimes.put(s.getShuttleId(), s.getLastUpdateTime());
+            samples.add(PositionSample.of(s));
+        }
+        if (samples.isEmpty())
+            return;
+
+        boolean full;
+        synchronized (this) {
+            buffer.addAll(samples);
+            full = buffer.size() >= MAX_BUFFERED_SAMPLES;
+        }
+        if (full && !writer.isShutdown())
+            writer.execute(flush);
+    }
+
+    /**
+     * @param from - the earliest time to include, in milliseconds since 1970
+     * @param to   - the time to stop before
+     * @return the shuttle's samples between the two times, earliest first
+     */
+    public List<PositionSample> getSamples(int shuttleId, long from, long to) {
+        return getSamples(false, shuttleId, from, to);
+    }
+
+    /**
+     * @param from - the earliest time to include, in milliseconds since 1970
+     * @param to   - the time to stop before
+     * @return the samples of every shuttle between the two times, earliest first
+     */
+    public List<PositionSample> getAllSamples(long from, long to) {
+        return getSamples(true, 0, from, to);
+    }
+
+    private List<PositionSample> getSamples(boolean all, int shuttleId, long from, long to) {
+        ArrayList<PositionSample> samples = new ArrayList<PositionSample>();
+        // the samples in memory are taken first, so one written out meanwhile is
+        // seen twice rather than not at all
+        synchronized (this) {
+            addSamples(buffer, all, shuttleId, from, to, samples);
+            addSamples(writing, all, shuttleId, from, to, samples);
+        }
+
+        File[] days = directory.listFiles();
+        if (days != null) {
+            for (File day : days) {
+                Calendar dayStart = parseDay(day.getName());
+                if (dayStart == null || dayStart.getTimeInMillis() >= to)
+                    continue;
+                dayStart.add(Calendar.DAY_OF_MONTH, 1);
+                if (dayStart.getTimeInMillis() <= from)
+                    continue;
+                File[] files = day.listFiles();
+                if (files == null)
+                    continue;
+                for (File file : files) {
+                    if (overlaps(file.getName(), from, to)) {
+                        HistorySegment segment = getSegment(file);
+                        if (segment == null)
+                            continue;
+                        if (all)
+                            segment.queryAll(from, to, samples);
+                        else
+                            segment.query(shuttleId, from, to, samples);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(samples, BY_TIME);
+        Iterator<PositionSample> it = samples.iterator();
+        PositionSample last = null;
+        while (it.hasNext()) {
+            PositionSample sample = it.next();
+            if (last != null && BY_TIME.compare(last, sample) == 0)
+                it.remove();
+            else
+                last = sample;
+        }
+        return samples;
+    }
+
+    /**
+     * Writes the samples held in memory out to a segment for each day they
+     * were taken on, and lets go of the segments of the days that are over.
+     */
+    private void flush() {
+        closeDays(DAY_FORMAT.get().format(new Date()));
+        List<PositionSample> samples;
+        synchronized (this) {
+            if (buffer.isEmpty())
+                return;
+            samples = buffer;
+            writing = samples;
+            buffer = new ArrayList<PositionSample>();
+        }
+
+        try {
+            HashMap<String, List<PositionSample>> byDay = new HashMap<String, List<PositionSample>>();
+            SimpleDateFormat format = DAY_FORMAT.get();
+            for (PositionSample sample : samples) {
+                String day = format.format(new Date(sample.getTime()));
+                List<PositionSample> daySamples = byDay.get(day);
+                if (daySamples == null) {
+                    daySamples = new ArrayList<PositionSample>();
+                    byDay.put(day, daySamples);
+                }
+                daySamples.add(sample);
+            }
+
+            for (Map.Entry<String, List<PositionSample>> entry : byDay.entrySet()) {
+                List<PositionSample> daySamples = entry.getValue();
+                long first = Long.MAX_VALUE;
+                long last = Long.MIN_VALUE;
+                for (PositionSample sample : daySamples) {
+                    first = Math.min(first, sample.getTime());
+                    last = Math.max(last, sample.getTime());
+                }
+                File dayDirectory = new File(directory, entry.getKey());
+                if (!dayDirectory.isDirectory() && !dayDirectory.mkdirs()) {
+                    System.err.println("Could not make the history directory " + dayDirectory);
+                    continue;
+                }
+                File file = new File(dayDirectory, first + "-" + last + SEGMENT_SUFFIX);
+                // two flushes of the same time span would otherwise replace each other
+                for (int n = 1; file.exists(); n++)
+                    file = new File(dayDirectory, first + "-" + last + "-" + n + SEGMENT_SUFFIX);
+                try {
+                    HistorySegment.write(file, daySamples);
+                } catch (IOException e) {
+                    System.err.println("Could not write " + daySamples.size() + " samples to " + file);
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                writing = Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * Lets go of the segments of the days before today. Their mappings are
+     * unmapped once nothing refers to them any more.
+     *
+     * @param today - the name of today's directory
+     */
+    private void closeDays(String today) {
+        Iterator<String> it = segments.keySet().iterator();
+        while (it.hasNext()) {
+            // day directories are named so that they sort by date
+            if (new File(it.next()).getParentFile().getName().compareTo(today) < 0)
+                it.remove();
+        }
+    }
+
+    private HistorySegment getSegment(File file) {
+        HistorySegment segment = segments.get(file.getPath());
+        if (segment == null) {
+            try {
+                segment = HistorySegment.open(file);
+                segments.put(file.getPath(), segment);
+            } catch (IOException e) {
+                System.err.println("Could not read the history segment " + file);
+                e.printStackTrace();
+            }
+        }
+        return segment;
+    }
+
+    private static void addSamples(List<PositionSample> from, boolean all, int shuttleId, long start,
+                                   long end, List<PositionSample> to) {
+        for (PositionSample sample : from) {
+            if ((all || sample.getShuttleId() == shuttleId)
+                    && sample.getTime() >= start && sample.getTime() < end)
+                to.add(sample);
+        }
+    }
+
+    /**
+     * @return the start of the day the directory is named after, or null if it
+     *         is not named after a day
+     */
+    private static Calendar parseDay(String name) {
+        try {
+            Calendar day = Calendar.getInstance();
+            day.setTime(DAY_FORMAT.get().parse(name));
+            return day;
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the segment file's name spans any of the times given
+     */
+    private static boolean overlaps(String name, long from, long to) {
+        if (!name.endsWith(SEGMENT_SUFFIX))
+            return false;
+        String[] times = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+        if (times.length < 2)
+            return false;
+        try {
+            return Long.parseLong(times[0]) < to && Long.parseLong(times[1]) >= from;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
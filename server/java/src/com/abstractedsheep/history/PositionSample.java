@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.history;
+
+import com.abstractedsheep.world.Shuttle;
+
+/**
+ * One recorded position of a shuttle. Coordinates are kept to a millionth of
+ * a degree, which is how they are stored.
+ *
+ * @author saiumesh
+ */
+public final class PositionSample {
+    private final int shuttleId;
+    private final long time;
+    private final int latitudeE6;
+    private final int longitudeE6;
+    private final int speed;
+    private final int heading;
+
+    public PositionSample(int shuttleId, long time, int latitudeE6, int longitudeE6, int speed, int heading) {
+        this.shuttleId = shuttleId;
+        this.time = time;
+        this.latitudeE6 = latitudeE6;
+        this.longitudeE6 = longitudeE6;
+        this.speed = speed;
+        this.heading = heading;
+    }
+
+    /**
+     * @return the shuttle's position and speed as of its last update, as the
+     *         feed reported them
+     */
+    public static PositionSample of(Shuttle s) {
+        return new PositionSample(s.getShuttleId(), s.getLastUpdateTime(),
+                (int) Math.round(s.getCurrentLocation().getLatitude() * 1E6),
+                (int) Math.round(s.getCurrentLocation().getLongitude() * 1E6),
+                s.getReportedSpeed(), s.getHeading());
+    }
+
+    public int getShuttleId() {
+        return shuttleId;
+    }
+
+    /**
+     * @return when the shuttle was at this position, in milliseconds since 1970
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getLatitude() {
+        return latitudeE6 / 1E6;
+    }
+
+    public double getLongitude() {
+        return longitudeE6 / 1E6;
+    }
+
+    public int getLatitudeE6() {
+        return latitudeE6;
+    }
+
+    public int getLongitudeE6() {
+        return longitudeE6;
+    }
+
+    /**
+     * @return speed in miles per hour, as the feed reported it
+     */
+    public int getSpeed() {
+        return speed;
+    }
+
+    public int getHeading() {
+        return heading;
+    }
+
+    @Override
+    public String toString() {
+        return shuttleId + "@" + time + " (" + getLatitude() + ", " + getLongitude() + ") "
+                + speed + "mph " + heading;
+    }
+}
@@ -22,7 +22,30 @@ package com.abstractedsheep.world;
 public class Coordinate {
     private double latitude;
     private double longitude;
-    private static final double RADIUS_OF_EARTH = 3956;
+    private static final double RADIUS_OF_EARTH = Geometry.RADIUS_OF_EARTH;
+
+    // values derived from the latitude and longitude, see getCartesian()
+    private volatile Cartesian cartesian;
+
+    /**
+     * The position of a coordinate on a sphere the size of the earth, and the
+     * latitude and longitude it was computed from. It is never changed once it
+     * has been made, so a coordinate can be shared between threads.
+     */
+    private static final class Cartesian {
+        final double latitude, longitude;
+        final double cosLatitude;
+        final double x, y, z;
+
+        Cartesian(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.cosLatitude = Math.cos(Math.toRadians(latitude));
+            this.x = Geometry.toX(cosLatitude, longitude);
+            this.y = Geometry.toY(cosLatitude, longitude);
+            this.z = Geometry.toZ(latitude);
+        }
+    }
 
     public Coordinate() {
         this.latitude = 0.0;
@@ -66,23 +89,43 @@ public class Coordinate {
         this.longitude = longitude;
     }
 
-    public static boolean sameCoordinates(Coordinate c1, Coordinate c2) {
-        return false;
+    /**
+     * Computes the position of this coordinate on a sphere the size of the earth,
+     * the first time it is needed after the coordinate has changed. Threads that
+     * race here compute the same values, whichever of them is kept.
+     */
+    private Cartesian getCartesian() {
+        Cartesian c = cartesian;
+        if (c == null || c.latitude != latitude || c.longitude != longitude) {
+            c = new Cartesian(latitude, longitude);
+            cartesian = c;
+        }
+        return c;
     }
 
-    public double distanceFromCoordiante(Coordinate c) {
+    double getCosLatitude() {
+        return getCartesian().cosLatitude;
+    }
 
-        double dLong = Math.toRadians((c.getLongitude() - this.getLongitude()));
-        double dLat = Math.toRadians((c.getLatitude() - this.getLatitude()));
-        double lat1 = Math.toRadians(this.getLatitude());
-        double lat2 = Math.toRadians(c.getLatitude());
+    double getX() {
+        return getCartesian().x;
+    }
 
-        double a = Math.pow(Math.sin(dLat / 2.0), 2)
-                + Math.pow(Math.sin(dLong / 2.0), 2) * Math.cos(lat1)
-                * Math.cos(lat2);
-        double b = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1.0 - a));
+    double getY() {
+        return getCartesian().y;
+    }
 
-        return RADIUS_OF_EARTH * b;
+    double getZ() {
+        return getCartesian().z;
+    }
+
+    public static boolean sameCoordinates(Coordinate c1, Coordinate c2) {
+        return false;
+    }
+
+    public double distanceFromCoordiante(Coordinate c) {
+        return Geometry.distance(this.latitude, this.longitude, this.getCosLatitude(),
+                c.latitude, c.longitude, c.getCosLatitude());
     }
 
     /**
@@ -108,15 +151,7 @@ public class Coordinate {
     }
 
     public double getBearing(Coordinate c) {
-        double delta = Math.toRadians((this.getLongitude() - c.getLongitude()));
-        double lat1 = Math.toRadians(c.getLatitude());
-        double lat2 = Math.toRadians(this.getLatitude());
-
-        double y = Math.sin(delta) * Math.cos(lat1);
-        double x = Math.cos(lat2) * Math.sin(lat1) - Math.sin(lat2)
-                * Math.cos(lat1) * Math.cos(delta);
-
-        return Math.toDegrees(Math.atan2(y, x));
+        return Geometry.bearing(this.latitude, this.longitude, c.latitude, c.longitude);
     }
 
     /**
@@ -125,48 +160,28 @@ public class Coordinate {
      *
      * @param endPoint1 - one end point defining the line
      * @param endPoint2 - another end point defining the line
-     * @return the closest coordinate point between the two given points.
+     * @return the closest coordinate point between the two given points, or one of
+     *         the end points if the perpendicular from this point falls outside of them.
      */
     public Coordinate closestPoint(Coordinate endPoint1, Coordinate endPoint2) {
-        final int R = 3956;
-
-        Point3D pt1 = new Point3D(R
-                * Math.cos(Math.toRadians(endPoint1.getLatitude()))
-                * Math.cos(Math.toRadians(endPoint1.getLongitude())), R
-                * Math.cos(Math.toRadians(endPoint1.getLatitude()))
-                * Math.sin(Math.toRadians(endPoint1.getLongitude())), R
-                * Math.sin(Math.toRadians(endPoint1.getLatitude())));
-        Point3D pt2 = new Point3D(R
-                * Math.cos(Math.toRadians(endPoint2.getLatitude()))
-                * Math.cos(Math.toRadians(endPoint2.getLongitude())), R
-                * Math.cos(Math.toRadians(endPoint2.getLatitude()))
-                * Math.sin(Math.toRadians(endPoint2.getLongitude())), R
-                * Math.sin(Math.toRadians(endPoint2.getLatitude())));
-        Point3D pt3 = new Point3D(R
-                * Math.cos(Math.toRadians(this.getLatitude()))
-                * Math.cos(Math.toRadians(this.getLongitude())), R
-                * Math.cos(Math.toRadians(this.getLatitude()))
-                * Math.sin(Math.toRadians(this.getLongitude())), R
-                * Math.sin(Math.toRadians(this.getLatitude())));
-
-        Point3D origin = new Point3D();
-
-        Point3D delta1 = Point3D.subtract(pt3, pt2);
-        Point3D delta2 = Point3D.subtract(pt3, pt1);
-        Point3D delta3 = Point3D.subtract(pt2, pt1);
-
-        double d = (delta1.crossProduct(delta2)).getMagnitude()
-                / delta3.getMagnitude();
-        double hypothenuse = pt3.DistanceTo(pt1);
-        double theta = Math.asin(d / hypothenuse);
-        double adj = (d / Math.tan(theta));
-
-        Point3D closestPt = pt1.moveTowards(pt2, adj);
-        Point3D surfacePt = origin.moveTowards(closestPt, R);
-
-        return new Coordinate(
-                (Math.toDegrees((Math.asin(surfacePt.getZ() / R)))),
-                (Math.toDegrees((Math.atan2(surfacePt.getY(), surfacePt.getX())))));
+        Cartesian a = endPoint1.getCartesian(), b = endPoint2.getCartesian(), p = this.getCartesian();
+        double ax = a.x, ay = a.y, az = a.z;
+        double bx = b.x, by = b.y, bz = b.z;
+        double t = Geometry.closestFraction(ax, ay, az, bx, by, bz, p.x, p.y, p.z);
+        if (t == 0)
+            return new Coordinate(endPoint1.latitude, endPoint1.longitude);
+
+        double cx = ax + t * (bx - ax), cy = ay + t * (by - ay), cz = az + t * (bz - az);
+        return new Coordinate(Geometry.toLatitude(cx, cy, cz), Geometry.toLongitude(cx, cy));
+    }
+
+    /**
+     * @return the distance from this coordinate to the closest point on the line
+     *         between the two end points, without creating that point.
+     */
+    public double distanceToLine(Coordinate endPoint1, Coordinate endPoint2) {
+        Cartesian a = endPoint1.getCartesian(), b = endPoint2.getCartesian(), p = this.getCartesian();
+        return Geometry.distanceToSegment(a.x, a.y, a.z, b.x, b.y, b.z, p.x, p.y, p.z);
     }
 
     @Override
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+/**
+ * Spherical and Cartesian geometry used to place shuttles and stops on routes.
+ * All of the methods work on primitive values so that none of them allocate;
+ * Coordinate keeps the Cartesian position and cosine of its latitude so that
+ * route points are only converted once.
+ * <p/>
+ * Latitudes and longitudes are in degrees, distances and Cartesian values are
+ * in miles.
+ *
+ * @author saiumesh
+ */
+public final class Geometry {
+    public static final double RADIUS_OF_EARTH = 3956;
+
+    private Geometry() {
+    }
+
+    /**
+     * Haversine distance between two points.
+     *
+     * @param cosLatitude1 - cosine of the first latitude, which callers usually have cached
+     * @param cosLatitude2 - cosine of the second latitude
+     */
+    public static double distance(double latitude1, double longitude1, double cosLatitude1,
+                                  double latitude2, double longitude2, double cosLatitude2) {
+        double sinLat = Math.sin(Math.toRadians(latitude2 - latitude1) / 2.0);
+        double sinLong = Math.sin(Math.toRadians(longitude2 - longitude1) / 2.0);
+
+        double a = sinLat * sinLat + sinLong * sinLong * cosLatitude1 * cosLatitude2;
+        return RADIUS_OF_EARTH * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1.0 - a));
+    }
+
+    public static double distance(double latitude1, double longitude1,
+                                  double latitude2, double longitude2) {
+        return distance(latitude1, longitude1, Math.cos(Math.toRadians(latitude1)),
+                latitude2, longitude2, Math.cos(Math.toRadians(latitude2)));
+    }
+
+    /**
+     * Bearing between two points in degrees, with the same conventions as
+     * Coordinate.getBearing().
+     */
+    public static double bearing(double latitude1, double longitude1,
+                                 double latitude2, double longitude2) {
+        double delta = Math.toRadians(longitude1 - longitude2);
+        double lat1 = Math.toRadians(latitude2);
+        double lat2 = Math.toRadians(latitude1);
+        double cosLat1 = Math.cos(lat1);
+
+        double y = Math.sin(delta) * cosLat1;
+        double x = Math.cos(lat2) * Math.sin(lat1) - Math.sin(lat2) * cosLat1 * Math.cos(delta);
+
+        return Math.toDegrees(Math.atan2(y, x));
+    }
+
+    public static double toX(double cosLatitude, double longitude) {
+        return RADIUS_OF_EARTH * cosLatitude * Math.cos(Math.toRadians(longitude));
+    }
+
+    public static double toY(double cosLatitude, double longitude) {
+        return RADIUS_OF_EARTH * cosLatitude * Math.sin(Math.toRadians(longitude));
+    }
+
+    public static double toZ(double latitude) {
+        return RADIUS_OF_EARTH * Math.sin(Math.toRadians(latitude));
+    }
+
+    /**
+     * @return the latitude of the point on the surface of the earth directly above
+     *         or below the given Cartesian point.
+     */
+    public static double toLatitude(double x, double y, double z) {
+        return Math.toDegrees(Math.asin(z / Math.sqrt(x * x + y * y + z * z)));
+    }
+
+    public static double toLongitude(double x, double y) {
+        return Math.toDegrees(Math.atan2(y, x));
+    }
+
+    /**
+     * Projects p onto the line running from a to b.
+     *
+     * @return how far along the segment the closest point to p is, where 0 is a and
+     *         1 is b. The value is clamped so the point never leaves the segment.
+     */
+    public static double closestFraction(double ax, double ay, double az,
+                                         double bx, double by, double bz,
+                                         double px, double py, double pz) {
+        double dx = bx - ax, dy = by - ay, dz = bz - az;
+        double lengthSquared = dx * dx + dy * dy + dz * dz;
+        if (lengthSquared == 0)
+            return 0;
+
+        double t = ((px - ax) * dx + (py - ay) * dy + (pz - az) * dz) / lengthSquared;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    /**
+     * @return the straight line distance from p to the closest point on the segment
+     *         from a to b. Route segments are short enough that this is the same as
+     *         the distance along the surface.
+     */
+    public static double distanceToSegment(double ax, double ay, double az,
+                                           double bx, double by, double bz,
+                                           double px, double py, double pz) {
+        double t = closestFraction(ax, ay, az, bx, by, bz, px, py, pz);
+        double dx = ax + t * (bx - ax) - px;
+        double dy = ay + t * (by - ay) - py;
+        double dz = az + t * (bz - az) - pz;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -20,8 +20,11 @@
 package com.abstractedsheep.world;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class is designed to hold information about a shuttle route.
@@ -38,8 +41,11 @@ public class Route {
     private String routeName;
     private ArrayList<Coordinate> coordinateList;
     private ArrayList<Double> distanceToNextCoordinateList;
-    private HashMap<Integer, Shuttle> shuttleList;
+    private double[] cumulativeDistance;
+    private SegmentIndex segmentIndex;
     private HashMap<String, Stop> stopList;
+    // the stops of stopList in the order they were added, walked without an iterator
+    private Stop[] stops = new Stop[0];
     private double roundTripDistance;
 
     public Route() {
@@ -47,8 +53,9 @@ public class Route {
         routeName = "West";
         this.coordinateList = new ArrayList<Coordinate>();
         this.stopList = new HashMap<String, Stop>();
-        this.shuttleList = new HashMap<Integer, Shuttle>();
         this.distanceToNextCoordinateList = new ArrayList<Double>();
+        this.cumulativeDistance = new double[0];
+        this.segmentIndex = new SegmentIndex(this.coordinateList);
         this.roundTripDistance = 0.0;
     }
 
@@ -58,15 +65,23 @@ public class Route {
         this.coordinateList = list;
         this.roundTripDistance = 0.0;
         this.stopList = new HashMap<String, Stop>();
-        this.shuttleList = new HashMap<Integer, Shuttle>();
         this.distanceToNextCoordinateList = new ArrayList<Double>();
         this.computeDistances();
+        this.segmentIndex = new SegmentIndex(this.coordinateList);
     }
 
+    /**
+     * Computes the length of every segment along with a prefix sum of those lengths,
+     * so that the distance between any two points on the route is a single subtraction.
+     * cumulativeDistance[i] is the distance traveled from coordinateList[0] to
+     * coordinateList[i]; the closing segment from the last point back to the first
+     * is only included in the roundTripDistance.
+     */
     private void computeDistances() {
         int size = coordinateList.size();
         Coordinate c1 = null, c2 = null;
         double distance = 0.0;
+        this.cumulativeDistance = new double[size];
         for (int i = 0; i < coordinateList.size(); i++) {
             if (i == 0)
                 c1 = coordinateList.get(size - 1);
@@ -76,6 +91,8 @@ public class Route {
             distance = c1.distanceFromCoordiante(c2);
             this.distanceToNextCoordinateList.add(distance);
             this.roundTripDistance += distance;
+            if (i > 0)
+                this.cumulativeDistance[i] = this.cumulativeDistance[i - 1] + distance;
         }
     }
 
@@ -109,22 +126,82 @@ public class Route {
         this.roundTripDistance = 0.0;
         this.coordinateList = list;
         this.computeDistances();
+        this.segmentIndex = new SegmentIndex(this.coordinateList);
+        for (Stop s : this.stopList.values())
+            s.snapToRoute(this);
     }
 
     /**
-     * @return the shuttleList
+     * @return the distanceToNextCoordinateList
+     *         NOTE: the distance between the coordinateList[0] and coordinateList[1]
+     *         is distanceToNext[1].
      */
-    public HashMap<Integer, Shuttle> getShuttleList() {
-        return (HashMap<Integer, Shuttle>) Collections.unmodifiableMap(shuttleList);
+    public List<Double> getDistanceToNextCoordinateList() {
+        return Collections.unmodifiableList(distanceToNextCoordinateList);
     }
 
     /**
-     * @return the distanceToNextCoordinateList
-     *         NOTE: the distance between the coordinateList[0] and coordinateList[1]
-     *         is distanceToNext[1].
+     * Uses the route's spatial index to find the segment closest to a location.
+     * Segment i runs from coordinateList[i - 1] to coordinateList[i], segment 0 runs
+     * from the last route point to the first.
+     *
+     * @param location - location to snap to the route
+     * @return the index of the closest segment, or -1 if the route has no points.
+     */
+    public int findClosestSegment(Coordinate location) {
+        return this.segmentIndex.findClosestSegment(location);
+    }
+
+    /**
+     * @return the distance from location to the closest point on the given segment.
      */
-    public ArrayList<Double> getDistanceToNextCoordinateList() {
-        return (ArrayList<Double>) Collections.unmodifiableList(distanceToNextCoordinateList);
+    public double getDistanceToSegment(Coordinate location, int segment) {
+        return this.segmentIndex.distanceToSegment(location, segment);
+    }
+
+    /**
+     * @return the distance from location to the closest point on this route.
+     */
+    public double getDistanceToRoute(Coordinate location) {
+        int segment = this.findClosestSegment(location);
+        return (segment == -1) ? Double.MAX_VALUE : this.segmentIndex.distanceToSegment(location, segment);
+    }
+
+    /**
+     * @param index - index of a point in the coordinateList
+     * @return the distance along the route from the first route point to the given point.
+     */
+    public double getDistanceAlongRoute(int index) {
+        return this.cumulativeDistance[index];
+    }
+
+    /**
+     * Snaps a location to the closest point on the route.
+     *
+     * @return the distance along the route from the first route point to that
+     *         point, or -1 if the route has no points.
+     */
+    public double getDistanceAlongRoute(Coordinate location) {
+        int segment = this.findClosestSegment(location);
+        if (segment == -1)
+            return -1;
+        int previous = (segment == 0) ? (coordinateList.size() - 1) : segment - 1;
+        Coordinate c1 = coordinateList.get(previous);
+        Coordinate c2 = coordinateList.get(segment);
+        return this.cumulativeDistance[previous] + c1.distanceFromCoordiante(location.closestPoint(c1, c2));
+    }
+
+    /**
+     * @param from - distance along the route of the starting position
+     * @param to   - distance along the route of the destination
+     * @return the distance traveled going forward along the route from one position
+     *         to the other, wrapping around the end of the route if necessary.
+     */
+    public double getDistanceBetween(double from, double to) {
+        double distance = to - from;
+        if (distance < 0)
+            distance += this.roundTripDistance;
+        return distance;
     }
 
     /**
@@ -137,11 +214,28 @@ public class Route {
     /**
      * @return the stopList
      */
-    public HashMap<String, Stop> getStopList() {
-        return (HashMap<String, Stop>) Collections.unmodifiableMap(stopList);
+    public Map<String, Stop> getStopList() {
+        return Collections.unmodifiableMap(stopList);
+    }
+
+    /**
+     * @param index - between 0 and getStopCount() - 1
+     */
+    public Stop getStop(int index) {
+        return this.stops[index];
+    }
+
+    public int getStopCount() {
+        return this.stops.length;
     }
 
     public void addStop(Stop s) {
-        this.stopList.put(s.getShortName(), s);
+        Stop replaced = this.stopList.put(s.getShortName(), s);
+        if (replaced != null) {
+            this.stops[Arrays.asList(this.stops).indexOf(replaced)] = s;
+        } else {
+            this.stops = Arrays.copyOf(this.stops, this.stops.length + 1);
+            this.stops[this.stops.length - 1] = s;
+        }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.extractor.Netlink.RouteJson;
+import com.abstractedsheep.extractor.Netlink.RouteJson.RouteCoordinateJson;
+import com.abstractedsheep.extractor.Netlink.StopJson;
+import com.abstractedsheep.extractor.Netlink.StopJson.StopRouteJson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The routes and stops read from netlink.js, with every stop already snapped to
+ * its routes. A graph is fully built before it is handed out and is never changed
+ * afterwards, so it can be read from any thread while a newer one is being built.
+ * Each stop is also numbered in the order it was read, see {@link Stop#getIndex()}.
+ *
+ * @author saiumesh
+ */
+public final class RouteGraph {
+    public static final RouteGraph EMPTY = new RouteGraph(new HashMap<Integer, Route>(),
+            new HashMap<String, Stop>(), new Stop[0]);
+
+    private final Map<Integer, Route> routeList;
+    private final Map<String, Stop> stopList;
+    private final Stop[] stops;
+
+    private RouteGraph(HashMap<Integer, Route> routeList, HashMap<String, Stop> stopList, Stop[] stops) {
+        this.routeList = Collections.unmodifiableMap(routeList);
+        this.stopList = Collections.unmodifiableMap(stopList);
+        this.stops = stops;
+    }
+
+    /**
+     * Builds a new graph, computing the route distances and snapping each stop
+     * to the routes it is on.
+     */
+    public static RouteGraph build(List<RouteJson> routes, List<StopJson> stops) {
+        HashMap<Integer, Route> routeList = new HashMap<Integer, Route>();
+        HashMap<String, Stop> stopList = new HashMap<String, Stop>();
+        ArrayList<Stop> indexed = new ArrayList<Stop>();
+
+        for (RouteJson r : routes) {
+            Route route = createRoute(r);
+            routeList.put(route.getIdNum(), route);
+        }
+
+        for (StopJson stop : stops) {
+            Stop s = createStop(stop, routeList);
+            Stop replaced = stopList.put(s.getShortName(), s);
+            // a stop listed twice keeps its first number
+            if (replaced != null) {
+                s.setIndex(replaced.getIndex());
+                indexed.set(replaced.getIndex(), s);
+            } else {
+                s.setIndex(indexed.size());
+                indexed.add(s);
+            }
+        }
+
+        return new RouteGraph(routeList, stopList, indexed.toArray(new Stop[indexed.size()]));
+    }
+
+    private static Route createRoute(RouteJson r) {
+        ArrayList<Coordinate> coords = new ArrayList<Coordinate>();
+        for (RouteCoordinateJson rc : r.getCoords()) {
+            coords.add(new Coordinate(rc.getLatitude(), rc.getLongitude()));
+        }
+
+        return new Route(r.getId(), r.getName(), coords);
+    }
+
+    private static Stop createStop(StopJson stop, HashMap<Integer, Route> routeList) {
+        Stop s = new Stop(new Coordinate(stop.getLatitude(), stop.getLongitude()), stop.getShort_name(), stop.getName());
+        for (StopRouteJson sj : stop.getRoutes()) {
+            Route r = routeList.get(sj.getId());
+            s.addRoute(r);
+            r.addStop(s);
+            s.snapToRoute(r);
+        }
+        return s;
+    }
+
+    /**
+     * @return a read-only map of the routes, keyed by route id
+     */
+    public Map<Integer, Route> getRouteList() {
+        return routeList;
+    }
+
+    /**
+     * @return a read-only map of the stops, keyed by short name
+     */
+    public Map<String, Stop> getStopList() {
+        return stopList;
+    }
+
+    /**
+     * @param index - from {@link Stop#getIndex()}
+     */
+    public Stop getStop(int index) {
+        return stops[index];
+    }
+
+    public int getStopCount() {
+        return stops.length;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import java.util.ArrayList;
+
+/**
+ * A uniform grid laid over the bounding box of a route. Every segment of the route
+ * is registered in each grid cell that its bounding box overlaps, which lets the
+ * closest segment to a point be found by only examining the cells around that point
+ * instead of every segment on the route.
+ * <p/>
+ * Segments are numbered the same way as Route.getDistanceToNextCoordinateList(),
+ * that is segment i runs from coordinateList[i - 1] to coordinateList[i] and
+ * segment 0 closes the loop from the last point back to the first.
+ *
+ * @author saiumesh
+ */
+public class SegmentIndex {
+    private static final double MILES_PER_DEGREE = 69.09;
+    // cells smaller than this (about 50 feet) do not reduce the number of candidates
+    private static final double MIN_CELL_SIZE = 0.01;
+
+    private final ArrayList<Coordinate> coordinateList;
+    private double minLatitude, minLongitude;
+    private double cellHeight, cellWidth;
+    private double cellSize;
+    private int rows, columns;
+    // cellStart[c] to cellStart[c + 1] are the positions in cellSegments of the
+    // segments registered in cell c.
+    private int[] cellStart;
+    private int[] cellSegments;
+
+    public SegmentIndex(ArrayList<Coordinate> list) {
+        this.coordinateList = list;
+        this.buildIndex();
+    }
+
+    private void buildIndex() {
+        int size = coordinateList.size();
+        if (size == 0) {
+            this.rows = this.columns = 0;
+            this.cellStart = new int[1];
+            this.cellSegments = new int[0];
+            return;
+        }
+
+        double maxLatitude = -90, maxLongitude = -180;
+        minLatitude = 90;
+        minLongitude = 180;
+        for (Coordinate c : coordinateList) {
+            minLatitude = Math.min(minLatitude, c.getLatitude());
+            maxLatitude = Math.max(maxLatitude, c.getLatitude());
+            minLongitude = Math.min(minLongitude, c.getLongitude());
+            maxLongitude = Math.max(maxLongitude, c.getLongitude());
+        }
+
+        // use the latitude farthest from the equator so that the size of a cell in
+        // miles is never overestimated.
+        double milesPerLongitude = MILES_PER_DEGREE * Math.cos(Math.toRadians(
+                Math.max(Math.abs(minLatitude), Math.abs(maxLatitude))));
+        double height = (maxLatitude - minLatitude) * MILES_PER_DEGREE;
+        double width = (maxLongitude - minLongitude) * milesPerLongitude;
+
+        // aim for roughly one segment per cell
+        cellSize = Math.max(Math.sqrt(width * height / size), Math.max(width, height) / size);
+        cellSize = Math.max(cellSize, MIN_CELL_SIZE);
+        rows = (int) Math.floor(height / cellSize) + 1;
+        columns = (int) Math.floor(width / cellSize) + 1;
+        cellHeight = cellSize / MILES_PER_DEGREE;
+        cellWidth = cellSize / milesPerLongitude;
+
+        // count the segments in each cell, then fill them in
+        cellStart = new int[rows * columns + 1];
+        for (int i = 0; i < size; i++)
+            this.registerSegment(i, null);
+        for (int c = 0; c < rows * columns; c++)
+            cellStart[c + 1] += cellStart[c];
+        cellSegments = new int[cellStart[rows * columns]];
+        int[] fill = new int[rows * columns];
+        System.arraycopy(cellStart, 0, fill, 0, fill.length);
+        for (int i = 0; i < size; i++)
+            this.registerSegment(i, fill);
+    }
+
+    /**
+     * Counts the segment in every cell its bounding box overlaps when fill is null,
+     * otherwise stores it at the next free position of each of those cells.
+     */
+    private void registerSegment(int segment, int[] fill) {
+        Coordinate c1 = coordinateList.get((segment == 0) ? coordinateList.size() - 1 : segment - 1);
+        Coordinate c2 = coordinateList.get(segment);
+        int row1 = this.getRow(Math.min(c1.getLatitude(), c2.getLatitude()));
+        int row2 = this.getRow(Math.max(c1.getLatitude(), c2.getLatitude()));
+        int col1 = this.getColumn(Math.min(c1.getLongitude(), c2.getLongitude()));
+        int col2 = this.getColumn(Math.max(c1.getLongitude(), c2.getLongitude()));
+
+        for (int row = row1; row <= row2; row++) {
+            for (int col = col1; col <= col2; col++) {
+                int cell = row * columns + col;
+                if (fill == null)
+                    cellStart[cell + 1]++;
+                else
+                    cellSegments[fill[cell]++] = segment;
+            }
+        }
+    }
+
+    private int getRow(double latitude) {
+        int row = (int) Math.floor((latitude - minLatitude) / cellHeight);
+        return Math.max(0, Math.min(rows - 1, row));
+    }
+
+    private int getColumn(double longitude) {
+        int col = (int) Math.floor((longitude - minLongitude) / cellWidth);
+        return Math.max(0, Math.min(columns - 1, col));
+    }
+
+    /**
+     * Searches outward from the cell containing the given location one ring of cells
+     * at a time. A segment that has not been seen after searching ring r is at least
+     * r cells away, so the search stops once that distance exceeds the best match.
+     *
+     * @param location - the location to snap
+     * @return the index of the segment closest to location, or -1 if the route is empty.
+     */
+    public int findClosestSegment(Coordinate location) {
+        if (rows == 0)
+            return -1;
+
+        int row = this.getRow(location.getLatitude());
+        int col = this.getColumn(location.getLongitude());
+        int maxRing = Math.max(Math.max(row, rows - 1 - row), Math.max(col, columns - 1 - col));
+        int closestSegment = -1;
+        double shortestDistance = Double.MAX_VALUE;
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (closestSegment != -1 && (ring - 1) * cellSize > shortestDistance)
+                break;
+
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= rows)
+                    continue;
+                // only the border of the ring is new, the inside was searched already
+                int step = (r == row - ring || r == row + ring) ? 1 : Math.max(1, 2 * ring);
+                for (int c = col - ring; c <= col + ring; c += step) {
+                    if (c < 0 || c >= columns)
+                        continue;
+                    int cell = r * columns + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int segment = cellSegments[k];
+                        double distance = this.distanceToSegment(location, segment);
+                        if (distance < shortestDistance) {
+                            shortestDistance = distance;
+                            closestSegment = segment;
+                        }
+                    }
+                }
+            }
+        }
+        return closestSegment;
+    }
+
+    /**
+     * @return the distance in miles from location to the closest point on the segment.
+     */
+    public double distanceToSegment(Coordinate location, int segment) {
+        Coordinate c1 = coordinateList.get((segment == 0) ? coordinateList.size() - 1 : segment - 1);
+        Coordinate c2 = coordinateList.get(segment);
+        return location.distanceToLine(c1, c2);
+    }
+}
@@ -20,6 +20,7 @@
 package com.abstractedsheep.world;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -35,16 +36,27 @@ import java.util.HashMap;
  * @author wagnea
  */
 public class Shuttle implements IRouteFinder {
+    // how far (in miles) the shuttle may be from the route it is being tracked along
+    // before falling back to a search of every route
+    private static final double TRACKING_TOLERANCE = 0.03;
+    // the most segments to check in each direction when tracking the shuttle
+    private static final int TRACKING_WINDOW = 50;
+    // the slowest a shuttle is taken to travel, in miles per hour
+    private static final int MIN_SPEED = 10;
     private int shuttleId;
     private HashMap<String, Stop> stops;
-    private ArrayList<Integer> speedList;
+    private SpeedFilter speedFilter;
+    // the last speed read from the feed, before it is smoothed
+    private int reportedSpeed;
     private String cardinalPoint;
+    private int heading;
     private String shuttleName;
     private int speed;
     private Coordinate currentLocation;
     private long lastUpdateTime;
     private Coordinate SnappedCoordinate;
     private int NextRouteCoordinate;
+    private double distanceAlongRoute;
     private Route currentRoute;
 
     // Jackson requires a constructor with no parameters to be available
@@ -62,7 +74,7 @@ public class Shuttle implements IRouteFinder {
         this.cardinalPoint = "North";
         this.speed = 0;
         this.currentLocation = new Coordinate();
-        this.speedList = new ArrayList<Integer>();
+        this.speedFilter = new SpeedFilter();
         this.lastUpdateTime = System.currentTimeMillis();
         this.currentRoute = new Route();
     }
@@ -76,7 +88,7 @@ public class Shuttle implements IRouteFinder {
         this.shuttleId = shuttleId;
         this.stops = new HashMap<String, Stop>();
         new HashMap<String, ArrayList<Integer>>();
-        this.speedList = new ArrayList<Integer>();
+        this.speedFilter = new SpeedFilter();
         this.shuttleName = "Bus 42";
         this.cardinalPoint = "North";
         this.speed = 0;
@@ -86,17 +98,117 @@ public class Shuttle implements IRouteFinder {
     }
 
     /**
-     * updates the current state of the shuttle object.
+     * Copies another shuttle, so that the copy can be updated while the original
+     * is still being read.
      *
-     * @param newShuttle
+     * @param s - the shuttle to copy
      */
-    public void updateShuttle(Shuttle newShuttle) {
-        this.setCurrentLocation(newShuttle.getCurrentLocation(), System.currentTimeMillis());
+    public Shuttle(Shuttle s) {
+        this.shuttleId = s.shuttleId;
+        this.stops = new HashMap<String, Stop>(s.stops);
+        this.speedFilter = new SpeedFilter(s.speedFilter);
+        this.reportedSpeed = s.reportedSpeed;
+        this.cardinalPoint = s.cardinalPoint;
+        this.heading = s.heading;
+        this.shuttleName = s.shuttleName;
+        this.speed = s.speed;
+        this.currentLocation = s.currentLocation;
+        this.lastUpdateTime = s.lastUpdateTime;
+        this.SnappedCoordinate = s.SnappedCoordinate;
+        this.NextRouteCoordinate = s.NextRouteCoordinate;
+        this.distanceAlongRoute = s.distanceAlongRoute;
+        this.currentRoute = s.currentRoute;
+    }
+
+    /**
+     * updates the current state of the shuttle object. The shuttle is tracked along
+     * its current route starting from where it was last snapped, and only searches
+     * all of the routes when it can no longer be found close to that position.
+     *
+     * @param newShuttle - the shuttle as just read, with the time its position was taken
+     * @param routes     - routes to search if the shuttle has left its current route
+     */
+    public void updateShuttle(Shuttle newShuttle, Collection<Route> routes) {
+        this.setCurrentLocation(newShuttle.getCurrentLocation(), newShuttle.getLastUpdateTime());
+        this.setHeading(newShuttle.getHeading());
+        this.setCardinalPoint(newShuttle.getCardinalPoint());
+        this.setSpeed(newShuttle.reportedSpeed);
+
+        if (!this.trackAlongRoute())
+            this.snapToClosestRoute(routes);
+    }
 
-        if (newShuttle.getDistanceToClosestPoint() < this.getDistanceToClosestPoint()) {
-            this.setCurrentRoute(newShuttle.getCurrentRoute());
-            this.snapToRoute(newShuttle.getCurrentRoute());
+    /**
+     * Snaps the shuttle to whichever of the given routes it is closest to and makes
+     * that route the current route.
+     *
+     * @param routes - routes the shuttle could be on
+     */
+    public void snapToClosestRoute(Collection<Route> routes) {
+        Route closestRoute = null;
+        double shortestDistance = Double.MAX_VALUE;
+        for (Route r : routes) {
+            double distance = r.getDistanceToRoute(this.currentLocation);
+            if (distance < shortestDistance) {
+                closestRoute = r;
+                shortestDistance = distance;
+            }
         }
+        if (closestRoute != null)
+            this.setCurrentRoute(closestRoute);
+    }
+
+    /**
+     * Searches outward along the current route from the segment the shuttle was last
+     * snapped to. Each direction is followed until the distance to the shuttle starts
+     * increasing, so a shuttle that has only moved a short way is found in a few
+     * steps and is never snapped to an unrelated segment that runs parallel to it.
+     *
+     * @return false if the shuttle was not found within TRACKING_TOLERANCE of its
+     *         previous position on the route.
+     */
+    private boolean trackAlongRoute() {
+        Route r = this.currentRoute;
+        int size = r.getCoordinateList().size();
+        if (this.SnappedCoordinate == null || size == 0)
+            return false;
+
+        int start = this.NextRouteCoordinate;
+        int closestSegment = start;
+        double shortestDistance = r.getDistanceToSegment(this.currentLocation, start);
+        double lastForward = shortestDistance, lastBackward = shortestDistance;
+        boolean forward = true, backward = true;
+
+        for (int k = 1; k <= TRACKING_WINDOW && k < size && (forward || backward); k++) {
+            if (forward) {
+                int segment = (start + k) % size;
+                double distance = r.getDistanceToSegment(this.currentLocation, segment);
+                if (distance < shortestDistance) {
+                    shortestDistance = distance;
+                    closestSegment = segment;
+                } else if (distance > lastForward) {
+                    forward = false;
+                }
+                lastForward = distance;
+            }
+            if (backward) {
+                int segment = (start - k + size) % size;
+                double distance = r.getDistanceToSegment(this.currentLocation, segment);
+                if (distance < shortestDistance) {
+                    shortestDistance = distance;
+                    closestSegment = segment;
+                } else if (distance > lastBackward) {
+                    backward = false;
+                }
+                lastBackward = distance;
+            }
+        }
+
+        if (shortestDistance > TRACKING_TOLERANCE)
+            return false;
+
+        this.snapToSegment(r, closestSegment);
+        return true;
     }
 
     // Jackson will not work unless all of the variables have accessors and
@@ -128,21 +240,24 @@ public class Shuttle implements IRouteFinder {
     }
 
     /**
-     * given a new speed value, calculate the average speed by this shuttle
-     * and set that value as the speed of the shuttle.
+     * @return the last speed read from the feed, before it is smoothed or
+     *         raised to MIN_SPEED
+     */
+    public int getReportedSpeed() {
+        return reportedSpeed;
+    }
+
+    /**
+     * given a new speed value, smooth it with the speeds this shuttle reported
+     * before and set the result as the speed of the shuttle. Speeds below
+     * MIN_SPEED are taken as MIN_SPEED, so that a stopped shuttle still has an eta.
      *
      * @param newSpd - new instantaneous speed value.
      */
     public void setSpeed(int newSpd) {
-        if (speedList.size() > 10)
-            speedList.remove(0);
-        speedList.add((newSpd < 10) ? 10 : newSpd);
-        int count = 0;
-
-        for (int s : speedList) {
-            count += s;
-        }
-        this.speed = count / speedList.size();
+        this.reportedSpeed = newSpd;
+        speedFilter.add((newSpd < MIN_SPEED) ? MIN_SPEED : newSpd);
+        this.speed = Math.max(MIN_SPEED, speedFilter.get());
     }
 
     public Coordinate getCurrentLocation() {
@@ -175,6 +290,17 @@ public class Shuttle implements IRouteFinder {
         this.cardinalPoint = cardinalPoint;
     }
 
+    /**
+     * @return the direction the shuttle is heading in degrees from north
+     */
+    public int getHeading() {
+        return heading;
+    }
+
+    public void setHeading(int heading) {
+        this.heading = heading;
+    }
+
     public String getName() {
         return shuttleName;
     }
@@ -188,6 +314,8 @@ public class Shuttle implements IRouteFinder {
     }
 
     public double getDistanceToClosestPoint() {
+        if (this.SnappedCoordinate == null)
+            return Double.MAX_VALUE;
         return this.SnappedCoordinate.distanceFromCoordiante(currentLocation);
     }
 
@@ -198,6 +326,14 @@ public class Shuttle implements IRouteFinder {
         return NextRouteCoordinate;
     }
 
+    /**
+     * @return the distance from the first point of the current route to the
+     *         shuttle's snapped location.
+     */
+    public double getDistanceAlongRoute() {
+        return distanceAlongRoute;
+    }
+
     public void setCurrentRoute(Route rt) {
         this.currentRoute = rt;
         this.snapToRoute(rt);
@@ -225,35 +361,26 @@ public class Shuttle implements IRouteFinder {
 
     @Override
     public void snapToRoute(Route r) {
-        if (this.currentRoute != null && this.currentLocation != null) {
-            Coordinate c1, c2;
-            Coordinate closestPoint = null, tempClosestPoint;
-            int nextPointId = -1;
-            double shortestDistance = 10000, tempShortestDistance = 10000;
-            int size = this.currentRoute.getCoordinateList().size();
-            for (int i = 0; i < size; i++) {
-                if (i == 0)
-                    c1 = this.currentRoute.getCoordinateList().get(size - 1);
-                else
-                    c1 = this.currentRoute.getCoordinateList().get(i - 1);
-
-                c2 = this.currentRoute.getCoordinateList().get(i);
-
-                tempClosestPoint = this.currentLocation.closestPoint(c1, c2);
-                tempShortestDistance = tempClosestPoint.distanceFromCoordiante(this.currentLocation);
-
-                if (tempShortestDistance < shortestDistance) {
-                    shortestDistance = tempShortestDistance;
-                    closestPoint = tempClosestPoint;
-                    nextPointId = (size >= (i + 1)) ? 1 : i + 1;
-                }
-            }
-
-            this.SnappedCoordinate = closestPoint;
-            this.NextRouteCoordinate = nextPointId;
+        if (r != null && this.currentLocation != null) {
+            int segment = r.findClosestSegment(this.currentLocation);
+            if (segment != -1)
+                this.snapToSegment(r, segment);
         }
     }
 
+    private void snapToSegment(Route r, int segment) {
+        int size = r.getCoordinateList().size();
+        int previous = (segment == 0) ? (size - 1) : segment - 1;
+        Coordinate c1 = r.getCoordinateList().get(previous);
+        Coordinate c2 = r.getCoordinateList().get(segment);
+        Coordinate closestPoint = this.currentLocation.closestPoint(c1, c2);
+
+        this.SnappedCoordinate = closestPoint;
+        this.NextRouteCoordinate = segment;
+        this.distanceAlongRoute = r.getDistanceAlongRoute(previous)
+                + c1.distanceFromCoordiante(closestPoint);
+    }
+
     public long getLastUpdateTime() {
         return this.lastUpdateTime;
     }
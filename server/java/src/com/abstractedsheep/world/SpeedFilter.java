@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+/**
+ * Smooths the speeds a shuttle reports. The last WINDOW readings are kept in a
+ * ring buffer along with their running sum and a sorted copy, so a reading is
+ * added in time that does not depend on how many have been seen, and the mean,
+ * median or exponentially weighted mean of the window is read without summing
+ * or sorting it again.
+ * <p>
+ * Readings no shuttle could reach are dropped, and so is a reading far from the
+ * median of the window, which is most likely a GPS spike, unless the next reading
+ * is also far from it, in which case the shuttle really has changed speed.
+ *
+ * @author saiumesh
+ */
+public class SpeedFilter {
+    // the mean of the window, what shuttles have always reported
+    public static final int MEAN = 0;
+    // each reading moves the speed part of the way toward it
+    public static final int EWMA = 1;
+    // the median of the window, which a single bad reading does not move
+    public static final int MEDIAN = 2;
+
+    // number of readings kept
+    public static final int WINDOW = 10;
+    // how much of the way toward each new reading the EWMA moves
+    private static final double EWMA_WEIGHT = 0.3;
+    // no shuttle goes this fast, in miles per hour
+    private static final int MAX_SPEED = 80;
+    // a reading this far from the median of the window, in miles per hour, is
+    // a spike while the window holds at least MIN_READINGS readings
+    private static final int MAX_JUMP = 25;
+    private static final int MIN_READINGS = 3;
+    // a spike repeated this many times in a row is taken as a real change
+    private static final int CONFIRMATIONS = 2;
+
+    private static volatile int defaultMode = MEAN;
+
+    private final int mode;
+    private final int[] readings;
+    private final int[] sorted;
+    // position of the oldest reading
+    private int start;
+    private int count;
+    private long sum;
+    private double ewma;
+    // number of readings in a row far from the median
+    private int spikes;
+
+    /**
+     * Creates a filter using the mode set by {@link #setDefaultMode(int)}.
+     */
+    public SpeedFilter() {
+        this(defaultMode);
+    }
+
+    /**
+     * @param mode - MEAN, EWMA or MEDIAN
+     */
+    public SpeedFilter(int mode) {
+        this.mode = mode;
+        this.readings = new int[WINDOW];
+        this.sorted = new int[WINDOW];
+    }
+
+    /**
+     * Copies another filter, so that the copy can be updated while the original
+     * is still being read.
+     */
+    public SpeedFilter(SpeedFilter f) {
+        this.mode = f.mode;
+        this.readings = f.readings.clone();
+        this.sorted = f.sorted.clone();
+        this.start = f.start;
+        this.count = f.count;
+        this.sum = f.sum;
+        this.ewma = f.ewma;
+        this.spikes = f.spikes;
+    }
+
+    /**
+     * @param mode - the mode of every filter created from now on without one
+     */
+    public static void setDefaultMode(int mode) {
+        defaultMode = mode;
+    }
+
+    /**
+     * @param name - "mean", "ewma" or "median", in any case
+     * @return the mode, or MEAN if the name is not one of them
+     */
+    public static int parseMode(String name) {
+        if ("ewma".equalsIgnoreCase(name))
+            return EWMA;
+        if ("median".equalsIgnoreCase(name))
+            return MEDIAN;
+        if (!"mean".equalsIgnoreCase(name))
+            System.err.println("Unknown speed filter " + name + ", using mean");
+        return MEAN;
+    }
+
+    /**
+     * @param speed - a reading in miles per hour
+     * @return false if the reading was dropped as an error
+     */
+    public boolean add(int speed) {
+        if (speed < 0 || speed > MAX_SPEED)
+            return false;
+        // once a spike has been confirmed, readings far from the median are taken
+        // until the median has caught up with them
+        if (count >= MIN_READINGS && Math.abs(speed - median()) > MAX_JUMP) {
+            if (++spikes < CONFIRMATIONS)
+                return false;
+        } else {
+            spikes = 0;
+        }
+
+        if (count == WINDOW) {
+            int oldest = readings[start];
+            readings[start] = speed;
+            start = (start + 1) % WINDOW;
+            sum -= oldest;
+            removeSorted(oldest);
+        } else {
+            readings[(start + count) % WINDOW] = speed;
+            count++;
+        }
+        sum += speed;
+        insertSorted(speed);
+        ewma = (count == 1) ? speed : ewma + EWMA_WEIGHT * (speed - ewma);
+        return true;
+    }
+
+    /**
+     * @return the smoothed speed in miles per hour, or -1 if no reading has been kept
+     */
+    public int get() {
+        if (count == 0)
+            return -1;
+        switch (mode) {
+            case EWMA:
+                return (int) Math.round(ewma);
+            case MEDIAN:
+                return median();
+            default:
+                return (int) (sum / count);
+        }
+    }
+
+    /**
+     * @return the number of readings in the window
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param i - 0 for the oldest reading kept, up to getCount() - 1 for the newest
+     */
+    public int getReading(int i) {
+        return readings[(start + i) % WINDOW];
+    }
+
+    private int median() {
+        int middle = count / 2;
+        return (count % 2 == 1) ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Inserts a reading into the first count - 1 sorted readings.
+     */
+    private void insertSorted(int speed) {
+        int i = count - 1;
+        while (i > 0 && sorted[i - 1] > speed) {
+            sorted[i] = sorted[i - 1];
+            i--;
+        }
+        sorted[i] = speed;
+    }
+
+    /**
+     * Removes a reading from the count sorted readings, leaving count - 1.
+     */
+    private void removeSorted(int speed) {
+        int i = 0;
+        while (sorted[i] != speed)
+            i++;
+        System.arraycopy(sorted, i + 1, sorted, i, count - 1 - i);
+    }
+}
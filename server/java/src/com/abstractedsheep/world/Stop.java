@@ -19,8 +19,10 @@
 
 package com.abstractedsheep.world;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class is designed to hold information about a stop from netlink.js.
@@ -39,36 +41,81 @@ public class Stop implements IRouteFinder {
      * West Route)
      */
     private HashMap<Integer, Route> routeMap;
-    private HashMap<Integer, Coordinate> snappedCoordinate;
-    private HashMap<Integer, Double> precedingCoordinateDistance;
-    private HashMap<Integer, Integer> precedingCoordinate;
+    /**
+     * Where the stop is on each route it has been snapped to, one entry per route
+     * at the same position in each array. A stop is on a few routes at most, so
+     * the route ids are scanned rather than hashed, and nothing is boxed.
+     */
+    private int[] routeIds = new int[0];
+    private Coordinate[] snappedCoordinate = new Coordinate[0];
+    private double[] precedingCoordinateDistance = new double[0];
+    private int[] precedingCoordinate = new int[0];
+    private double[] distanceAlongRoute = new double[0];
+    // position of the stop in its RouteGraph, -1 if it is not in one
+    private int index = -1;
+
+    /**
+     * @return the position of this stop among the stops of its {@link RouteGraph},
+     *         so that it can be stored as a small number, or -1 if it is not in one.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the position of the route in the per-route arrays, or -1 if the
+     *         stop has not been snapped to it.
+     */
+    private int slotOf(int routeId) {
+        for (int i = 0; i < routeIds.length; i++) {
+            if (routeIds[i] == routeId)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the closest point to the stop on the route, or null if the stop
+     *         has not been snapped to it.
+     */
+    public Coordinate getSnappedCoordinate(int routeId) {
+        int slot = slotOf(routeId);
+        return (slot == -1) ? null : snappedCoordinate[slot];
+    }
 
     /**
-     * @return the snappedCoordinate
+     * @return the distance from the stop to the route point before it, or -1 if
+     *         the stop has not been snapped to the route.
      */
-    public HashMap<Integer, Coordinate> getSnappedCoordinate() {
-        return snappedCoordinate;
+    public double getPrecedingCoordinateDistance(int routeId) {
+        int slot = slotOf(routeId);
+        return (slot == -1) ? -1 : precedingCoordinateDistance[slot];
     }
 
     /**
-     * @return the precedingCoordinateDistance
+     * @return the index of the route point before the stop, or -1 if the stop
+     *         has not been snapped to the route.
      */
-    public HashMap<Integer, Double> getPrecedingCoordinateDistance() {
-        return precedingCoordinateDistance;
+    public int getPrecedingCoordinate(int routeId) {
+        int slot = slotOf(routeId);
+        return (slot == -1) ? -1 : precedingCoordinate[slot];
     }
 
     /**
-     * @return the precedingCoordinate
+     * @return the distance from the first point of the route to this stop's
+     *         snapped location on it, or -1 if the stop has not been snapped to it.
      */
-    public HashMap<Integer, Integer> getPrecedingCoordinate() {
-        return precedingCoordinate;
+    public double getDistanceAlongRoute(int routeId) {
+        int slot = slotOf(routeId);
+        return (slot == -1) ? -1 : distanceAlongRoute[slot];
     }
 
     public Stop(double longitude, double latitude, String fullName,
                 String shortN, HashMap<Integer, Route> map) {
-        snappedCoordinate = new HashMap<Integer, Coordinate>();
-        precedingCoordinateDistance = new HashMap<Integer, Double>();
-        precedingCoordinate = new HashMap<Integer, Integer>();
         this.location = new Coordinate(latitude, longitude);
         this.name = fullName;
         this.shortName = shortN;
@@ -79,9 +126,6 @@ public class Stop implements IRouteFinder {
     }
 
     public Stop(Coordinate coordinate, String shortName, String fullName) {
-        snappedCoordinate = new HashMap<Integer, Coordinate>();
-        precedingCoordinateDistance = new HashMap<Integer, Double>();
-        precedingCoordinate = new HashMap<Integer, Integer>();
         this.location = coordinate;
         this.name = fullName;
         this.shortName = shortName;
@@ -149,10 +193,10 @@ public class Stop implements IRouteFinder {
     }
 
     /**
-     * @return the routeMap
+     * @return the routes this stop is on, keyed by route id, which may not be modified
      */
-    public HashMap<Integer, Route> getRouteMap() {
-        return (HashMap<Integer, Route>) Collections.unmodifiableMap(routeMap);
+    public Map<Integer, Route> getRouteMap() {
+        return Collections.unmodifiableMap(routeMap);
     }
 
     public void addRoute(Route r) {
@@ -161,30 +205,28 @@ public class Stop implements IRouteFinder {
 
     @Override
     public void snapToRoute(Route r) {
-        Coordinate c1, c2;
-        Coordinate closestPoint = null, tempClosestPoint = null;
-        int precedingPointId = -1;
-        double shortestDistance = 10000, tempShortestDistance = 10000;
         int size = r.getCoordinateList().size();
-        for (int i = 0; i < r.getCoordinateList().size(); i++) {
-            if (i == 0)
-                c1 = r.getCoordinateList().get(size - 1);
-            else
-                c1 = r.getCoordinateList().get(i - 1);
-
-            c2 = r.getCoordinateList().get(size - 1);
-
-            tempClosestPoint = location.closestPoint(c1, c2);
-            tempShortestDistance = tempClosestPoint.distanceFromCoordiante(location);
-
-            if (tempShortestDistance < shortestDistance) {
-                shortestDistance = tempShortestDistance;
-                closestPoint = tempClosestPoint;
-                precedingPointId = (i == 0) ? (size - 1) : i;
-            }
+        int segment = r.findClosestSegment(location);
+        if (segment == -1)
+            return;
+
+        int precedingPointId = (segment == 0) ? (size - 1) : segment - 1;
+        Coordinate precedingPoint = r.getCoordinateList().get(precedingPointId);
+        Coordinate closestPoint = location.closestPoint(precedingPoint, r.getCoordinateList().get(segment));
+        int slot = slotOf(r.getIdNum());
+        if (slot == -1) {
+            slot = routeIds.length;
+            routeIds = Arrays.copyOf(routeIds, slot + 1);
+            snappedCoordinate = Arrays.copyOf(snappedCoordinate, slot + 1);
+            precedingCoordinateDistance = Arrays.copyOf(precedingCoordinateDistance, slot + 1);
+            precedingCoordinate = Arrays.copyOf(precedingCoordinate, slot + 1);
+            distanceAlongRoute = Arrays.copyOf(distanceAlongRoute, slot + 1);
+            routeIds[slot] = r.getIdNum();
         }
-        this.snappedCoordinate.put(r.getIdNum(), closestPoint);
-        this.precedingCoordinate.put(r.getIdNum(), precedingPointId);
-        this.precedingCoordinateDistance.put(r.getIdNum(), r.getCoordinateList().get(precedingPointId).distanceFromCoordiante(location));
+        snappedCoordinate[slot] = closestPoint;
+        precedingCoordinate[slot] = precedingPointId;
+        precedingCoordinateDistance[slot] = precedingPoint.distanceFromCoordiante(location);
+        distanceAlongRoute[slot] = r.getDistanceAlongRoute(precedingPointId)
+                + precedingPoint.distanceFromCoordiante(closestPoint);
     }
 }
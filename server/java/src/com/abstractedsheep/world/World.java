@@ -20,22 +20,19 @@
 package com.abstractedsheep.world;
 
 import com.abstractedsheep.extractor.DynamicJSONExtractor;
-import com.abstractedsheep.extractor.Netlink.RouteJson;
-import com.abstractedsheep.extractor.Netlink.RouteJson.RouteCoordinateJson;
-import com.abstractedsheep.extractor.Netlink.StopJson;
-import com.abstractedsheep.extractor.Netlink.StopJson.StopRouteJson;
 import com.abstractedsheep.extractor.StaticJSONExtractor;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class houses all of the dynamic (Shuttle) and static (Route and Stop) data.
  * Virtually data modification and manipulation occurs within this class, excluding ETA
- * calculations. The dynamic and static data is stored in final HashMaps and only have
- * read-only access.
+ * calculations. Each update publishes a new {@link WorldSnapshot} rather than
+ * modifying the last one, so other threads only ever have read-only access to a
+ * consistent view of the world.
  *
  * @author saiumesh
  */
@@ -43,18 +40,17 @@ public class World {
     //this value is in milliseconds
     private static final int SHUTTLE_LIFE_SPAN = (1000 * 45);
 
-    //XXX These collections should ONLY be maintained and ONLY modified by this class
-    private HashMap<Integer, Route> routeList;
-    private HashMap<Integer, Shuttle> shuttleList;
-    private HashMap<String, Stop> stopList;
+    //XXX These are ONLY replaced by this class, the objects they hold are never modified
+    private final AtomicReference<WorldSnapshot> snapshot;
+    // the newest routes and stops, taken up by the next update
+    private final AtomicReference<RouteGraph> routeGraph;
     private final StaticJSONExtractor staticExtractor;
     private final DynamicJSONExtractor dynamicExtractor;
 
 
     public World(StaticJSONExtractor staticData, DynamicJSONExtractor dynamicData) {
-        this.routeList = new HashMap<Integer, Route>();
-        this.shuttleList = new HashMap<Integer, Shuttle>();
-        this.stopList = new HashMap<String, Stop>();
+        this.snapshot = new AtomicReference<WorldSnapshot>(WorldSnapshot.EMPTY);
+        this.routeGraph = new AtomicReference<RouteGraph>(RouteGraph.EMPTY);
         this.staticExtractor = staticData;
         this.dynamicExtractor = dynamicData;
     }
@@ -62,89 +58,158 @@ public class World {
     //TODO staticExtractor does not need to be global
     public void generateWorld() {
         staticExtractor.readDataFromURL();
+        this.publishRouteGraph();
+        snapshot.set(new WorldSnapshot(routeGraph.get(), new HashMap<Integer, Shuttle>(),
+                snapshot.get().getVersion() + 1));
+    }
 
-        for (RouteJson r : staticExtractor.getRouteList()) {
-            this.addRoute(r);
-        }
-
-        for (StopJson stop : staticExtractor.getStopList()) {
-            this.addStop(stop);
-        }
+    /**
+     * Reads the routes and stops again and, if they have changed, builds a new
+     * graph from them and swaps it in. The graph is built entirely on the calling
+     * thread, so updateWorld() keeps using the old graph until the new one is done,
+     * and the new graph only shows up in the snapshot published by the next update.
+     *
+     * @return true if a new graph was published.
+     */
+    public boolean reloadRouteGraph() {
+        staticExtractor.readDataFromURL();
+        if (!staticExtractor.hasChanged())
+            return false;
+        this.publishRouteGraph();
+        System.out.println("Reloaded " + staticExtractor.getRouteList().size() + " routes and "
+                + staticExtractor.getStopList().size() + " stops");
+        return true;
     }
 
-    private void addStop(StopJson stop) {
-        List<Integer> routes = new ArrayList<Integer>();
-        for (StopRouteJson sj : stop.getRoutes()) {
-            routes.add(sj.getId());
-        }
+    private void publishRouteGraph() {
+        RouteGraph graph = RouteGraph.build(staticExtractor.getRouteList(), staticExtractor.getStopList());
+        routeGraph.set(graph);
+        dynamicExtractor.setRouteList(graph.getRouteList());
+    }
 
-        Stop s = new Stop(new Coordinate(stop.getLatitude(), stop.getLongitude()), stop.getShort_name(), stop.getName());
-        HashMap<Integer, Route> tempRouteList = this.routeList;
-        for (Integer i : routes) {
-            Route r = tempRouteList.get(i);
-            s.addRoute(r);
-            r.addStop(s);
-            s.snapToRoute(r);
-            routeList.put(i, r);
-        }
-        stopList.put(s.getShortName(), s);
+    public void updateWorld() {
+        HashMap<Integer, Shuttle> shuttles = this.fetchShuttles();
+        if (shuttles != null)
+            this.updateWorld(shuttles);
     }
 
-    private void addRoute(RouteJson r) {
-        List<Coordinate> coords = new ArrayList<Coordinate>();
-        for (RouteCoordinateJson rc : r.getCoords()) {
-            coords.add(new Coordinate(rc.getLatitude(), rc.getLongitude()));
-        }
+    /**
+     * Downloads the current shuttle positions without applying them to the world.
+     *
+     * @return a new map of the shuttles that were read, keyed by shuttle id, or
+     *         null if the positions have not changed since the last fetch.
+     */
+    public HashMap<Integer, Shuttle> fetchShuttles() {
+        dynamicExtractor.readDataFromURL();
+        if (!dynamicExtractor.hasChanged())
+            return null;
+        return dynamicExtractor.getDynamicData();
+    }
 
-        Route route = new Route(r.getId(), r.getName(), (ArrayList<Coordinate>) coords);
-        routeList.put(route.getIdNum(), route);
+    /**
+     * Applies shuttle positions returned by fetchShuttles() to the world and
+     * publishes the result as a new snapshot. Shuttles in the previous snapshot are
+     * copied before they are changed, so readers of that snapshot are unaffected.
+     * Only one thread may update the world at a time.
+     *
+     * @param updatedShuttleList - the most recently fetched shuttles
+     */
+    public void updateWorld(HashMap<Integer, Shuttle> updatedShuttleList) {
+        this.updateWorld(updatedShuttleList, true);
     }
 
-    public void updateWorld() {
-        dynamicExtractor.readDataFromURL();
-        HashMap<Integer, Shuttle> updatedShuttleList = dynamicExtractor.getDynamicData();
+    /**
+     * Applies shuttle positions to the world as updateWorld() does, or, if they
+     * are the same positions as the last ones applied, only marks those shuttles
+     * as still present. Present shuttles are carried over as they were, so their
+     * speeds and update times are untouched, and they are never aged out however
+     * long they have been standing still.
+     *
+     * @param updatedShuttleList - the shuttles the feed lists
+     * @param changed            - false if the feed has not changed since the
+     *                           last of these shuttles were applied
+     */
+    public void updateWorld(HashMap<Integer, Shuttle> updatedShuttleList, boolean changed) {
+        WorldSnapshot last = snapshot.get();
+        RouteGraph graph = routeGraph.get();
+        Collection<Route> routes = graph.getRouteList().values();
+        //shuttles still refer to the routes they were snapped to before a reload
+        boolean reloaded = (graph != last.getRouteGraph());
+        HashMap<Integer, Shuttle> shuttles = new HashMap<Integer, Shuttle>();
 
         //update current shuttle list
-        for (Integer shuttleId : updatedShuttleList.keySet()) {
-            if (this.shuttleList.containsKey(shuttleId)) {
-                Shuttle temp = shuttleList.get(shuttleId);
-                temp.updateShuttle(updatedShuttleList.get(shuttleId));
-                this.shuttleList.put(shuttleId, temp);
+        for (Shuttle updated : updatedShuttleList.values()) {
+            Shuttle current = last.getShuttleList().get(updated.getShuttleId());
+            if (current != null && !changed) {
+                if (reloaded) {
+                    current = new Shuttle(current);
+                    current.snapToClosestRoute(routes);
+                }
+                shuttles.put(current.getShuttleId(), current);
+            } else if (current != null) {
+                Shuttle temp = new Shuttle(current);
+                if (reloaded)
+                    temp.snapToClosestRoute(routes);
+                temp.updateShuttle(updated, routes);
+                shuttles.put(temp.getShuttleId(), temp);
             } else {
-                this.shuttleList.put(shuttleId, updatedShuttleList.get(shuttleId));
+                // an unchanged payload's shuttles may already be in an older snapshot
+                Shuttle added = changed ? updated : new Shuttle(updated);
+                added.snapToClosestRoute(routes);
+                shuttles.put(added.getShuttleId(), added);
             }
         }
 
-        //remove all shuttles that have not been update for a while.
-        HashMap<Integer, Shuttle> tempList = shuttleList;
-        for (Integer shuttleId : tempList.keySet()) {
-            long age = tempList.get(shuttleId).getAge();
-
-            if (age >= SHUTTLE_LIFE_SPAN) {
-                shuttleList.remove(shuttleId);
+        //keep the shuttles that were not in this update unless they have not been
+        //updated for a while.
+        for (Shuttle s : last.getShuttleList().values()) {
+            if (shuttles.containsKey(s.getShuttleId()) || s.getAge() >= SHUTTLE_LIFE_SPAN)
+                continue;
+            if (reloaded) {
+                s = new Shuttle(s);
+                s.snapToClosestRoute(routes);
             }
+            shuttles.put(s.getShuttleId(), s);
         }
+
+        snapshot.set(new WorldSnapshot(graph, shuttles, last.getVersion() + 1));
+    }
+
+    /**
+     * @return the most recently published state of the world, which is never
+     *         modified and so can be read without locking.
+     */
+    public WorldSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * @return the newest graph of the routes and stops, which only shows up in
+     *         the snapshot once the next update has been made with it.
+     */
+    public RouteGraph getRouteGraph() {
+        return routeGraph.get();
     }
 
     /**
      * @return a read-only version of the routeList
      */
-    public HashMap<Integer, Route> getRouteList() {
-        return (HashMap<Integer, Route>) Collections.unmodifiableMap(routeList);
+    public Map<Integer, Route> getRouteList() {
+        return snapshot.get().getRouteList();
     }
 
     /**
      * @return a read-only version of the shuttleList
      */
-    public HashMap<Integer, Shuttle> getShuttleList() {
-        return (HashMap<Integer, Shuttle>) Collections.unmodifiableMap(shuttleList);
+    public Map<Integer, Shuttle> getShuttleList() {
+        return snapshot.get().getShuttleList();
     }
 
     /**
      * @return a read-only version of the stopList
      */
-    public HashMap<String, Stop> getStopList() {
-        return (HashMap<String, Stop>) Collections.unmodifiableMap(stopList);
+    public Map<String, Stop> getStopList() {
+        return snapshot.get().getStopList();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of the world after one update: the routes and stops along with every
+ * shuttle snapped to them. A snapshot and the shuttles in it are never changed once
+ * published, each update produces a new snapshot instead, so any number of threads
+ * can read a snapshot without locking and always see shuttles, routes and stops
+ * that belong together.
+ *
+ * @author saiumesh
+ */
+public final class WorldSnapshot {
+    public static final WorldSnapshot EMPTY = new WorldSnapshot(RouteGraph.EMPTY,
+            new HashMap<Integer, Shuttle>(), 0);
+
+    private final RouteGraph routeGraph;
+    private final Map<Integer, Shuttle> shuttleList;
+    private final long version;
+    private final long time;
+
+    /**
+     * @param routeGraph  - routes and stops the shuttles are snapped to
+     * @param shuttleList - shuttles keyed by id, must not be modified afterwards
+     * @param version     - number of updates applied to the world so far
+     */
+    WorldSnapshot(RouteGraph routeGraph, HashMap<Integer, Shuttle> shuttleList, long version) {
+        this.routeGraph = routeGraph;
+        this.shuttleList = Collections.unmodifiableMap(shuttleList);
+        this.version = version;
+        this.time = System.currentTimeMillis();
+    }
+
+    public RouteGraph getRouteGraph() {
+        return routeGraph;
+    }
+
+    /**
+     * @return a read-only map of the routes, keyed by route id
+     */
+    public Map<Integer, Route> getRouteList() {
+        return routeGraph.getRouteList();
+    }
+
+    /**
+     * @return a read-only map of the stops, keyed by short name
+     */
+    public Map<String, Stop> getStopList() {
+        return routeGraph.getStopList();
+    }
+
+    /**
+     * @return a read-only map of the shuttles, keyed by shuttle id
+     */
+    public Map<Integer, Shuttle> getShuttleList() {
+        return shuttleList;
+    }
+
+    /**
+     * @return the number of updates applied to the world when this snapshot was
+     *         taken, higher versions are newer.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time this snapshot was taken in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep;
+
+/**
+ * What the tests share for checking their results. There is no test framework,
+ * each test is a class with a main method, run from server/java with:
+ * <pre>
+ *   javac -cp "lib/*" -sourcepath ../../android/shuttle-tracker-android/src -d out $(find src test -name '*.java')
+ *   java -cp "out:lib/*" com.abstractedsheep.dataservice.BinaryUpdateWriterTest
+ * </pre>
+ * The source path lets the tests of the update protocol use the Android
+ * client's classes for reading updates. The few Android classes those refer to
+ * are stood in for under test.
+ * Every failed check is printed, and a test with any failures exits with status 1.
+ *
+ * @author saiumesh
+ */
+public final class Check {
+    private static int checks;
+    private static int failures;
+
+    private Check() {
+    }
+
+    public static void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failures++;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    public static void equal(long expected, long actual, String what) {
+        check(expected == actual, what + ": expected " + expected + " but was " + actual);
+    }
+
+    public static void equal(Object expected, Object actual, String what) {
+        check((expected == null) ? actual == null : expected.equals(actual),
+                what + ": expected " + expected + " but was " + actual);
+    }
+
+    /**
+     * Reports the result of the test and exits with status 1 if any check failed.
+     */
+    public static void done() {
+        System.out.println(checks + " checks, " + failures + " failed");
+        if (failures > 0)
+            System.exit(1);
+    }
+}
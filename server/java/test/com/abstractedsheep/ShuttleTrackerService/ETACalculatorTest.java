@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.TestWorld;
+import com.abstractedsheep.world.WorldSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Calculates the etas of one fleet on one thread and split over several, and
+ * checks that the tables come out the same, row for row. The fleet is built
+ * from a fixed seed, with shuttle ids out of order and some of them negative,
+ * and is large enough to be split into many tasks.
+ *
+ * @author saiumesh
+ */
+public class ETACalculatorTest {
+    private static final int SHUTTLES = 100;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) {
+        RouteGraph graph = TestData.graph();
+        WorldSnapshot snapshot = TestWorld.snapshot(graph, fleet(graph), 1);
+        EtaTable serial = calculate(snapshot, null, 1);
+        int stops = graph.getRouteList().get(1).getStopCount() + graph.getRouteList().get(2).getStopCount();
+        Check.equal(SHUTTLES / 2 * stops * ETACalculator.ARRIVALS_PER_STOP, serial.size(),
+                "etas for a fleet split evenly over two routes");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            compare(serial, calculate(snapshot, pool, 4), "four tasks");
+            // more tasks than there are runs of shuttles worth splitting off
+            compare(serial, calculate(snapshot, pool, 64), "as many tasks as possible");
+        } finally {
+            pool.shutdown();
+        }
+        // every task is run on the calling thread when the executor is full
+        compare(serial, calculate(snapshot, new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, 4), "rejected tasks");
+        Check.done();
+    }
+
+    /**
+     * Half the fleet is on each route, at random places along it.
+     */
+    private static HashMap<Integer, Shuttle> fleet(RouteGraph graph) {
+        Random random = new Random(SEED);
+        Route[] routes = { graph.getRouteList().get(1), graph.getRouteList().get(2) };
+        HashMap<Integer, Shuttle> shuttles = new HashMap<Integer, Shuttle>();
+        for (int i = 0; i < SHUTTLES; i++) {
+            Route route = routes[i % 2];
+            ArrayList<Coordinate> coordinates = route.getCoordinateList();
+            int segment = random.nextInt(coordinates.size() - 1);
+            Coordinate from = coordinates.get(segment);
+            Coordinate to = coordinates.get(segment + 1);
+            double t = random.nextDouble();
+
+            Shuttle s = new Shuttle(new ArrayList<Route>());
+            s.setShuttleId((i * 37) % SHUTTLES - 10);
+            s.setCurrentLocation(new Coordinate(
+                    from.getLatitude() + t * (to.getLatitude() - from.getLatitude()),
+                    from.getLongitude() + t * (to.getLongitude() - from.getLongitude())));
+            s.setCurrentRoute(route);
+            s.setSpeed(10 + random.nextInt(20));
+            shuttles.put(s.getShuttleId(), s);
+        }
+        return shuttles;
+    }
+
+    private static EtaTable calculate(WorldSnapshot snapshot, Executor executor, int parallelism) {
+        ETACalculator calculator = new ETACalculator();
+        calculator.setExecutor(executor, parallelism);
+        calculator.updateWorld(snapshot);
+        return calculator.getEtaTable();
+    }
+
+    private static void compare(EtaTable expected, EtaTable actual, String what) {
+        Check.equal(expected.size(), actual.size(), what + ": etas");
+        int rows = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < rows; i++) {
+            String row = what + ": row " + i;
+            Check.equal(expected.getShuttleId(i), actual.getShuttleId(i), row + " shuttle");
+            Check.equal(expected.getRouteId(i), actual.getRouteId(i), row + " route");
+            Check.equal(expected.getStopIndex(i), actual.getStopIndex(i), row + " stop");
+            Check.equal(expected.getEtaId(i), actual.getEtaId(i), row + " eta id");
+            Check.equal(expected.getTime(i), actual.getTime(i), row + " time");
+            // arrival times count from when each table was calculated, which
+            // may fall in the next second
+            Check.check(Math.abs(expected.getArrivalTime(i) - actual.getArrivalTime(i)) <= 1,
+                    row + " arrival time: expected " + expected.getArrivalTime(i) + " but was "
+                            + actual.getArrivalTime(i));
+        }
+    }
+}
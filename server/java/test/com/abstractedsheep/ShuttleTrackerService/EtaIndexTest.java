@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.world.RouteGraph;
+
+/**
+ * Indexes a table of etas and looks every eta up again, from the same table,
+ * from a table with the etas in another order, and from a table of a graph
+ * with the stops numbered differently. Etas that differ from an indexed one in
+ * any of the shuttle, route, stop or eta id must not be found.
+ *
+ * @author saiumesh
+ */
+public class EtaIndexTest {
+    // enough etas that many of them share a slot
+    private static final int SHUTTLES = 40;
+
+    public static void main(String[] args) {
+        RouteGraph graph = TestData.graph();
+        EtaTable table = fill(graph, new EtaTable(graph, 0), false);
+        EtaIndex index = new EtaIndex(table);
+
+        for (int row = 0; row < table.size(); row++)
+            Check.equal(row, index.find(table, row), "row " + row + " in its own table");
+
+        EtaTable reversed = fill(graph, new EtaTable(graph, 0), true);
+        for (int row = 0; row < reversed.size(); row++)
+            Check.equal(table.size() - 1 - row, index.find(reversed, row), "row " + row + " of the reversed table");
+
+        // the same etas against a graph of the same stops with other indices
+        RouteGraph renumbered = TestData.renumberedGraph();
+        Check.check(renumbered.getStopList().get("union").getIndex() != graph.getStopList().get("union").getIndex(),
+                "the union has another index in the renumbered graph");
+        EtaTable reloaded = fill(renumbered, new EtaTable(renumbered, 0), false);
+        for (int row = 0; row < reloaded.size(); row++)
+            Check.equal(row, index.find(reloaded, row), "row " + row + " after the stops are renumbered");
+
+        int union = graph.getStopList().get("union").getIndex();
+        int blitman = graph.getStopList().get("blitman").getIndex();
+        int colonie = graph.getStopList().get("colonie").getIndex();
+        EtaTable missing = new EtaTable(graph, 0);
+        missing.add(SHUTTLES + 1, 1, union, 0, 0, 0);
+        missing.add(1, 1, union, ETACalculator.ARRIVALS_PER_STOP, 0, 0);
+        missing.add(2, 2, blitman, 0, 0, 0);
+        missing.add(-1, 1, colonie, 0, 0, 0);
+        missing.add(0, 1, union, 0, 0, 0);
+        for (int row = 0; row < missing.size(); row++)
+            Check.equal(-1, index.find(missing, row), "missing eta " + row);
+
+        EtaIndex empty = new EtaIndex(EtaTable.EMPTY);
+        Check.equal(-1, empty.find(table, 0), "an eta in an empty index");
+        Check.done();
+    }
+
+    /**
+     * Adds an eta for every arrival of every shuttle at every stop of its route,
+     * half the shuttles on each route, with ids from -1 up.
+     */
+    private static EtaTable fill(RouteGraph graph, EtaTable table, boolean reversed) {
+        int count = SHUTTLES * 5 / 2 * ETACalculator.ARRIVALS_PER_STOP;
+        for (int n = 0; n < count; n++) {
+            int i = reversed ? count - 1 - n : n;
+            int arrival = i % ETACalculator.ARRIVALS_PER_STOP;
+            int stop = i / ETACalculator.ARRIVALS_PER_STOP;
+            int shuttle = stop / 5 * 2;
+            stop %= 5;
+            // the west route has three stops and the east route two
+            int routeId = (stop < 3) ? 1 : 2;
+            if (routeId == 2)
+                shuttle++;
+            String stopId = (stop < 3) ? new String[] { "union", "blitman", "polytech" }[stop]
+                    : new String[] { "union", "colonie" }[stop - 3];
+            table.add(shuttle - 1, routeId, graph.getStopList().get(stopId).getIndex(), arrival, i, i);
+        }
+        return table;
+    }
+}
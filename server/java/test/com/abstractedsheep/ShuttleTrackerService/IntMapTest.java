@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Check;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks {@link IntMap} on a few cases worked out by hand, then runs it side by
+ * side with a HashMap through a long run of random puts, gets and removes. The
+ * keys are drawn from a small range, with some of them multiples of 65536 and
+ * some negative, so that many of them share slots and removing one has to move
+ * the entries probed past it.
+ *
+ * @author saiumesh
+ */
+public class IntMapTest {
+    private static final int OPERATIONS = 200000;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) {
+        IntMap<String> map = new IntMap<String>();
+        Check.equal(0, map.size(), "empty size");
+        Check.equal(null, map.get(0), "missing key 0");
+        Check.equal(null, map.put(0, "zero"), "first put of 0");
+        Check.equal("zero", map.put(0, "nothing"), "second put of 0");
+        Check.equal(1, map.size(), "size after putting one key twice");
+        Check.equal(null, map.put(Integer.MIN_VALUE, "min"), "put of MIN_VALUE");
+        Check.equal(null, map.put(-1, "minus one"), "put of -1");
+        Check.equal("min", map.get(Integer.MIN_VALUE), "get of MIN_VALUE");
+        Check.equal("minus one", map.remove(-1), "remove of -1");
+        Check.equal(null, map.remove(-1), "second remove of -1");
+        Check.check(!map.containsKey(-1), "-1 is gone");
+        Check.equal(2, map.size(), "size after the remove");
+        try {
+            map.put(1, null);
+            Check.check(false, "null values are refused");
+        } catch (NullPointerException e) {
+        }
+        map.clear();
+        Check.equal(0, map.size(), "size after clear");
+        Check.equal(-1, map.nextSlot(0), "no slots after clear");
+        Check.equal(null, map.get(0), "0 is gone after clear");
+
+        // grows from its smallest size, keeping every entry
+        IntMap<Integer> small = new IntMap<Integer>(1);
+        for (int i = 0; i < 1000; i++)
+            small.put(i * 65536, i);
+        Check.equal(1000, small.size(), "size after growing");
+        for (int i = 0; i < 1000; i++)
+            Check.equal(Integer.valueOf(i), small.get(i * 65536), "key " + i * 65536 + " after growing");
+
+        random();
+        Check.done();
+    }
+
+    private static void random() {
+        Random random = new Random(SEED);
+        IntMap<Integer> map = new IntMap<Integer>();
+        HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int key = random.nextInt(300) - 150;
+            if (random.nextInt(3) == 0)
+                key *= 65536;
+            String what = "operation " + i + " on key " + key;
+            switch (random.nextInt(3)) {
+            case 0:
+                Check.equal(expected.put(key, i), map.put(key, i), what + ": put");
+                break;
+            case 1:
+                Check.equal(expected.remove(key), map.remove(key), what + ": remove");
+                break;
+            default:
+                Check.equal(expected.get(key), map.get(key), what + ": get");
+                Check.check(expected.containsKey(key) == map.containsKey(key), what + ": containsKey");
+            }
+            Check.equal(expected.size(), map.size(), what + ": size");
+            if (i % 1000 == 0)
+                visit(map, expected, what);
+        }
+        visit(map, expected, "the end");
+    }
+
+    /**
+     * Checks that visiting the map by slot finds every entry once.
+     */
+    private static void visit(IntMap<Integer> map, HashMap<Integer, Integer> expected, String what) {
+        HashMap<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        for (int slot = map.nextSlot(0); slot != -1; slot = map.nextSlot(slot + 1))
+            Check.equal(null, seen.put(map.keyAt(slot), map.valueAt(slot)), what + ": key visited twice");
+        Check.equal(expected, seen, what + ": entries visited");
+    }
+}
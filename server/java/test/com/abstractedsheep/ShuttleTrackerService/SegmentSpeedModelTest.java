@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.history.PositionSample;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks the buckets against a Calendar in zones with daylight saving, with
+ * offsets of half and three quarters of an hour, and at times before 1970.
+ * Then drives a shuttle around a route slowly on one half and quickly on the
+ * other, and checks that the model learns how long each half takes at that
+ * hour, and nothing at other hours.
+ *
+ * @author saiumesh
+ */
+public class SegmentSpeedModelTest {
+    private static final String[] ZONES = { "UTC", "America/New_York", "Asia/Kolkata", "Pacific/Chatham",
+            "Australia/Lord_Howe", "Pacific/Kiritimati" };
+    // the speeds driven on the first and the second half of the route, in miles per hour
+    private static final double SLOW = 10;
+    private static final double FAST = 30;
+    private static final long SAMPLE_INTERVAL = 5000;
+
+    public static void main(String[] args) {
+        Random random = new Random(18);
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            for (int i = 0; i < 20000; i++) {
+                // from 1900 to 2100
+                long time = (long) ((random.nextDouble() * 200 - 70) * 365.25 * 24 * 60 * 60 * 1000);
+                Check.equal(calendarBucket(time, zone), SegmentSpeedModel.getBucket(time, zone),
+                        id + " bucket at " + time);
+            }
+            // every hour of 2011, across both changes of the clocks
+            long start = time(zone, 2011, Calendar.JANUARY, 1, 0);
+            for (long time = start; time < start + 366L * 24 * 60 * 60 * 1000; time += 15 * 60 * 1000)
+                Check.equal(calendarBucket(time, zone), SegmentSpeedModel.getBucket(time, zone),
+                        id + " bucket at " + time);
+        }
+
+        RouteGraph graph = TestData.graph();
+        Route route = graph.getRouteList().get(1);
+        double length = route.getRoundTripDistance();
+        // a Wednesday from ten in the morning
+        long start = time(TimeZone.getDefault(), 2011, Calendar.SEPTEMBER, 14, 10);
+        ArrayList<PositionSample> samples = new ArrayList<PositionSample>();
+        double position = 0;
+        for (long time = start; time < start + 50 * 60 * 1000; time += SAMPLE_INTERVAL) {
+            Coordinate c = at(route, position);
+            samples.add(new PositionSample(7, time, (int) Math.round(c.getLatitude() * 1E6),
+                    (int) Math.round(c.getLongitude() * 1E6), 0, 0));
+            double speed = (position < length / 2) ? SLOW : FAST;
+            position = (position + speed * SAMPLE_INTERVAL / (60 * 60 * 1000)) % length;
+        }
+        SegmentSpeedModel.Builder builder = new SegmentSpeedModel.Builder(graph);
+        builder.add(samples);
+        SegmentSpeedModel model = builder.build();
+
+        int bucket = SegmentSpeedModel.getBucket(start);
+        Check.equal(10, bucket, "bucket of a weekday at ten");
+        Check.equal(1, model.getRouteCount(), "routes learned");
+        // away from the middle and the ends, where a sample spans both speeds
+        close(hours(0.3 * length, SLOW), model.getTravelTime(route, 0.1 * length, 0.4 * length, bucket),
+                "time over the slow half");
+        close(hours(0.3 * length, FAST), model.getTravelTime(route, 0.6 * length, 0.9 * length, bucket),
+                "time over the fast half");
+        close(hours(length / 2, SLOW) + hours(length / 2, FAST), model.getLoopTime(route, bucket), "loop time");
+        close(hours(0.2 * length, FAST) + hours(0.1 * length, SLOW),
+                model.getTravelTime(route, 0.8 * length, 0.1 * length, bucket), "time around the end of the route");
+        Check.equal(-1, model.getLoopTime(route, bucket + 1), "loop time an hour later");
+        Check.equal(-1, model.getLoopTime(route, bucket + 24), "loop time at ten on a weekend");
+        Check.equal(-1, model.getLoopTime(graph.getRouteList().get(2), bucket), "loop time of a route not driven");
+        Check.done();
+    }
+
+    private static int calendarBucket(long time, TimeZone zone) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(time);
+        int day = calendar.get(Calendar.DAY_OF_WEEK);
+        boolean weekend = day == Calendar.SATURDAY || day == Calendar.SUNDAY;
+        return (weekend ? 24 : 0) + calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    private static long time(TimeZone zone, int year, int month, int day, int hour) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long hours(double miles, double speed) {
+        return Math.round(miles / speed * 60 * 60 * 1000);
+    }
+
+    private static void close(long expected, long actual, String what) {
+        Check.check(Math.abs(expected - actual) <= expected * 0.03,
+                what + ": expected about " + expected + " but was " + actual);
+    }
+
+    /**
+     * @return the point the distance along the route, the last segment running
+     *         back to the first point
+     */
+    private static Coordinate at(Route route, double distance) {
+        ArrayList<Coordinate> points = route.getCoordinateList();
+        int i = 1;
+        while (i < points.size() && route.getDistanceAlongRoute(i) <= distance)
+            i++;
+        Coordinate from = points.get(i - 1);
+        Coordinate to = points.get(i % points.size());
+        double start = route.getDistanceAlongRoute(i - 1);
+        double end = (i < points.size()) ? route.getDistanceAlongRoute(i) : route.getRoundTripDistance();
+        double t = (distance - start) / (end - start);
+        return new Coordinate(from.getLatitude() + t * (to.getLatitude() - from.getLatitude()),
+                from.getLongitude() + t * (to.getLongitude() - from.getLongitude()));
+    }
+}
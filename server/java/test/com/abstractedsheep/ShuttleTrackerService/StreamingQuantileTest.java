@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.ShuttleTrackerService;
+
+import com.abstractedsheep.Check;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link StreamingQuantile} gives the exact quantile of its first
+ * few values, and that its estimates of the median and 90th percentile of
+ * longer streams fall close to the true ones. How close is measured by rank:
+ * the fraction of the values below the estimate should be near the quantile,
+ * which holds whatever the spread of the values.
+ *
+ * @author saiumesh
+ */
+public class StreamingQuantileTest {
+    private static final double[] QUANTILES = { 0.5, 0.9 };
+    private static final int SEEDS = 10;
+
+    public static void main(String[] args) {
+        StreamingQuantile empty = new StreamingQuantile(0.5);
+        Check.check(empty.get() == 0, "an empty stream is 0");
+        Check.equal(0, empty.getCount(), "nothing counted");
+
+        StreamingQuantile median = new StreamingQuantile(0.5);
+        StreamingQuantile p90 = new StreamingQuantile(0.9);
+        for (double value : new double[] { 3, 1, 2 }) {
+            median.add(value);
+            p90.add(value);
+        }
+        Check.equal(3, median.getCount(), "three values counted");
+        Check.check(median.get() == 2, "median of three values: " + median.get());
+        Check.check(p90.get() == 3, "90th percentile of three values: " + p90.get());
+        for (double value : new double[] { 5, 4 })
+            median.add(value);
+        Check.check(median.get() == 3, "median of five values: " + median.get());
+
+        StreamingQuantile same = new StreamingQuantile(0.9);
+        for (int i = 0; i < 1000; i++)
+            same.add(42000);
+        Check.check(same.get() == 42000, "the same value over and over: " + same.get());
+
+        for (double quantile : QUANTILES) {
+            double[] ascending = new double[10000];
+            for (int i = 0; i < ascending.length; i++)
+                ascending[i] = i;
+            check(quantile, ascending, 0.01, "ascending values");
+            double[] descending = new double[10000];
+            for (int i = 0; i < descending.length; i++)
+                descending[i] = descending.length - i;
+            check(quantile, descending, 0.01, "descending values");
+
+            for (long seed = 1; seed <= SEEDS; seed++) {
+                Random random = new Random(seed);
+                double[] uniform = new double[20000];
+                double[] normal = new double[20000];
+                double[] exponential = new double[20000];
+                // about as many visits as a stop sees in a few days
+                double[] dwells = new double[200];
+                for (int i = 0; i < uniform.length; i++) {
+                    uniform[i] = random.nextDouble() * 1000;
+                    normal[i] = 20000 + 5000 * random.nextGaussian();
+                    exponential[i] = -Math.log(1 - random.nextDouble()) * 30000;
+                }
+                for (int i = 0; i < dwells.length; i++)
+                    dwells[i] = -Math.log(1 - random.nextDouble()) * 30000;
+                check(quantile, uniform, 0.01, "uniform values, seed " + seed);
+                check(quantile, normal, 0.01, "normal values, seed " + seed);
+                check(quantile, exponential, 0.01, "exponential values, seed " + seed);
+                check(quantile, dwells, 0.05, "200 dwell times, seed " + seed);
+            }
+        }
+        Check.done();
+    }
+
+    /**
+     * Checks that the fraction of the values below the estimate is within
+     * tolerance of the quantile.
+     */
+    private static void check(double quantile, double[] values, double tolerance, String what) {
+        StreamingQuantile estimate = new StreamingQuantile(quantile);
+        for (double value : values)
+            estimate.add(value);
+        Check.equal(values.length, estimate.getCount(), what + ": values counted");
+
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int rank = Arrays.binarySearch(sorted, estimate.get());
+        if (rank < 0)
+            rank = -rank - 1;
+        double fraction = (double) rank / sorted.length;
+        Check.check(Math.abs(fraction - quantile) <= tolerance, what + ": the " + quantile
+                + " quantile was estimated as " + estimate.get() + ", which " + fraction
+                + " of the values are below");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep;
+
+import com.abstractedsheep.extractor.Netlink;
+import com.abstractedsheep.world.RouteGraph;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collections;
+
+/**
+ * A small graph for the tests, in the format of netlink.js: a west loop with
+ * three stops and an east loop that shares the union with it.
+ *
+ * @author saiumesh
+ */
+public final class TestData {
+    private static final String NETLINK = "{\"stops\":["
+            + "{\"latitude\":\"42.7302\",\"longitude\":\"-73.6765\",\"name\":\"Student Union\",\"short_name\":\"union\","
+            + "\"routes\":[{\"id\":1,\"name\":\"West\"},{\"id\":2,\"name\":\"East\"}]},"
+            + "{\"latitude\":\"42.7314\",\"longitude\":\"-73.6860\",\"name\":\"Blitman\",\"short_name\":\"blitman\","
+            + "\"routes\":[{\"id\":1,\"name\":\"West\"}]},"
+            + "{\"latitude\":\"42.7227\",\"longitude\":\"-73.6799\",\"name\":\"Polytech\",\"short_name\":\"polytech\","
+            + "\"routes\":[{\"id\":1,\"name\":\"West\"}]},"
+            + "{\"latitude\":\"42.7363\",\"longitude\":\"-73.6705\",\"name\":\"Colonie\",\"short_name\":\"colonie\","
+            + "\"routes\":[{\"id\":2,\"name\":\"East\"}]}],"
+            + "\"routes\":["
+            + "{\"color\":\"#E1501B\",\"id\":1,\"name\":\"West\",\"width\":4,\"coords\":["
+            + "{\"latitude\":\"42.7302\",\"longitude\":\"-73.6765\"},{\"latitude\":\"42.7314\",\"longitude\":\"-73.6860\"},"
+            + "{\"latitude\":\"42.7227\",\"longitude\":\"-73.6872\"},{\"latitude\":\"42.7227\",\"longitude\":\"-73.6799\"},"
+            + "{\"latitude\":\"42.7302\",\"longitude\":\"-73.6765\"}]},"
+            + "{\"color\":\"#96C03A\",\"id\":2,\"name\":\"East\",\"width\":4,\"coords\":["
+            + "{\"latitude\":\"42.7302\",\"longitude\":\"-73.6765\"},{\"latitude\":\"42.7363\",\"longitude\":\"-73.6705\"},"
+            + "{\"latitude\":\"42.7345\",\"longitude\":\"-73.6634\"},{\"latitude\":\"42.7302\",\"longitude\":\"-73.6765\"}]}]}";
+
+    private TestData() {
+    }
+
+    /**
+     * @return a new graph of the routes and stops, built the way the server builds netlink.js
+     */
+    public static RouteGraph graph() {
+        Netlink link = netlink();
+        return RouteGraph.build(link.getRoutes(), link.getStops());
+    }
+
+    /**
+     * @return a new graph of the same routes and stops, with the stops listed in
+     *         the opposite order, so that every stop has another index, as can
+     *         happen when the routes are reloaded
+     */
+    public static RouteGraph renumberedGraph() {
+        Netlink link = netlink();
+        Collections.reverse(link.getStops());
+        return RouteGraph.build(link.getRoutes(), link.getStops());
+    }
+
+    /**
+     * @return a file URL the routes and stops can be read from, the way the server
+     *         reads netlink.js
+     */
+    public static URL netlinkUrl() {
+        try {
+            File file = File.createTempFile("netlink", ".js");
+            file.deleteOnExit();
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(NETLINK);
+            } finally {
+                out.close();
+            }
+            return file.toURI().toURL();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Netlink netlink() {
+        try {
+            return new ObjectMapper().readValue(NETLINK, Netlink.class);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
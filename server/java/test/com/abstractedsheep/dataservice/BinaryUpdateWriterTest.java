@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Writes updates with {@link BinaryUpdateWriter} and reads them back field by
+ * field, the way the Android BinaryUpdateReader does. Negative and multi-byte
+ * numbers are used on purpose: a shuttle with no id is -1, and epochs and
+ * arrival times need more than 32 bits.
+ *
+ * @author saiumesh
+ */
+public class BinaryUpdateWriterTest {
+    private static final long EPOCH = 1310000000000L;
+
+    private final byte[] bytes;
+    private int pos;
+
+    private BinaryUpdateWriterTest(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        RouteGraph graph = TestData.graph();
+        int union = graph.getStopList().get("union").getIndex();
+        int blitman = graph.getStopList().get("blitman").getIndex();
+        Route west = graph.getRouteList().get(1);
+
+        Shuttle noId = shuttle(-1, west, 42.7302, -73.6765);
+        Shuttle bus = shuttle(300, west, 42.7314, -73.6860);
+
+        EtaTable etas = new EtaTable(graph, 0);
+        etas.add(-1, 1, union, 0, 65000, 1310000065L);
+        etas.add(300, 1, blitman, 2, 1234567, 1310001234L);
+        EtaTable removedEtas = new EtaTable(graph, 0);
+        removedEtas.add(-1, -1, blitman, 1, 0, 0);
+
+        byte[] delta = BinaryUpdateWriter.write(EPOCH, 41, 40, Arrays.asList(noId, bus), etas,
+                Arrays.asList(-1, 300), removedEtas);
+        BinaryUpdateWriterTest r = new BinaryUpdateWriterTest(delta);
+        r.readHeader(41, 40);
+        String[] stops = r.readStops();
+        Check.equal(2, stops.length, "stops in the dictionary");
+        Check.equal(2, r.readVarint(), "shuttle count");
+        r.readShuttle(noId);
+        r.readShuttle(bus);
+        Check.equal(2, r.readVarint(), "eta count");
+        for (int i = 0; i < etas.size(); i++) {
+            r.readEtaKey(etas, i, stops);
+            Check.equal(etas.getTime(i), r.readVarint(), "eta " + i + " time");
+            Check.equal(etas.getArrivalTime(i), r.readVarint(), "eta " + i + " arrival time");
+        }
+        Check.equal(2, r.readVarint(), "removed shuttle count");
+        Check.equal(-1, r.readSignedVarint(), "removed shuttle with no id");
+        Check.equal(300, r.readSignedVarint(), "removed shuttle 300");
+        Check.equal(1, r.readVarint(), "removed eta count");
+        r.readEtaKey(removedEtas, 0, stops);
+        Check.equal(delta.length, r.pos, "bytes read");
+
+        Collection<Integer> none = Collections.emptyList();
+        byte[] full = BinaryUpdateWriter.write(EPOCH, 41, -1, Collections.singletonList(noId), etas, none, removedEtas);
+        r = new BinaryUpdateWriterTest(full);
+        r.readHeader(41, -1);
+        stops = r.readStops();
+        Check.equal(1, r.readVarint(), "shuttle count of the full update");
+        r.readShuttle(noId);
+        Check.equal(2, r.readVarint(), "eta count of the full update");
+        for (int i = 0; i < etas.size(); i++) {
+            r.readEtaKey(etas, i, stops);
+            r.readVarint();
+            r.readVarint();
+        }
+        // a full update has no removed sections
+        Check.equal(full.length, r.pos, "bytes read of the full update");
+
+        Check.done();
+    }
+
+    private static Shuttle shuttle(int id, Route route, double lat, double lon) {
+        Shuttle s = new Shuttle(new ArrayList<Route>());
+        s.setShuttleId(id);
+        s.setCurrentRoute(route);
+        s.setCurrentLocation(new Coordinate(lat, lon), 1310000042000L);
+        s.setHeading(270);
+        s.setSpeed(20);
+        s.setName("Bus " + id);
+        return s;
+    }
+
+    private void readHeader(long version, long since) {
+        Check.equal('S', readByte(), "first magic byte");
+        Check.equal('T', readByte(), "second magic byte");
+        Check.equal(BinaryUpdateWriter.FORMAT_VERSION, readByte(), "format version");
+        Check.equal(EPOCH, readVarint(), "epoch");
+        Check.equal(version, readVarint(), "version");
+        Check.equal(since, readVarint() - 1, "since");
+    }
+
+    private String[] readStops() throws UnsupportedEncodingException {
+        String[] ids = new String[(int) readVarint()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = readString();
+            readString();
+        }
+        return ids;
+    }
+
+    private void readShuttle(Shuttle s) throws UnsupportedEncodingException {
+        String what = "shuttle " + s.getShuttleId();
+        Check.equal(s.getShuttleId(), readSignedVarint(), what + " id");
+        Check.equal(Math.round(s.getCurrentLocation().getLatitude() * 1E6), readSignedVarint(), what + " latitude");
+        Check.equal(Math.round(s.getCurrentLocation().getLongitude() * 1E6), readSignedVarint(), what + " longitude");
+        Check.equal(s.getHeading(), readVarint(), what + " heading");
+        Check.equal(s.getSpeed(), readVarint(), what + " speed");
+        Check.equal(s.getRouteId(), readSignedVarint(), what + " route");
+        Check.equal(s.getLastUpdateTime() / 1000, readVarint(), what + " update time");
+        Check.equal(s.getCardinalPoint(), readString(), what + " cardinal point");
+        Check.equal(s.getName(), readString(), what + " name");
+    }
+
+    private void readEtaKey(EtaTable etas, int row, String[] stops) {
+        String what = "eta key " + row;
+        Check.equal(etas.getShuttleId(row), readSignedVarint(), what + " shuttle");
+        Check.equal(etas.getStopId(row), stops[(int) readVarint()], what + " stop");
+        Check.equal(etas.getRouteId(row), readSignedVarint(), what + " route");
+        Check.equal(etas.getEtaId(row), readVarint(), what + " eta id");
+    }
+
+    private int readByte() {
+        return bytes[pos++] & 0xff;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private long readSignedVarint() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String readString() throws UnsupportedEncodingException {
+        int length = (int) readVarint() - 1;
+        if (length < 0)
+            return null;
+        String s = new String(bytes, pos, length, "UTF-8");
+        pos += length;
+        return s;
+    }
+}
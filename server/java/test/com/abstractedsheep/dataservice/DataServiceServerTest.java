@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.Check;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+/**
+ * Sends a cached response to clients that do and do not accept gzip. The two
+ * bodies must go out with different tags, and a tag sent back only matches the
+ * body it was sent with, so that a cache that ignores Vary is never handed the
+ * gzipped body for a client that cannot read it.
+ *
+ * @author saiumesh
+ */
+public class DataServiceServerTest {
+    public static void main(String[] args) throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++)
+            json.append("{\"shuttle\":").append(i).append(",\"stop\":\"union\"},");
+        byte[] body = json.append("{}]").toString().getBytes("UTF-8");
+        CachedResponse response = new CachedResponse(body, "application/json", "\"0123abcd\"", 1);
+        Check.check(response.getGzippedBody() != null, "the body is compressed");
+        String plainTag = response.getETag();
+        String gzipTag = response.getGzippedETag();
+        Check.check(!plainTag.equals(gzipTag), "each encoding has its own tag");
+        Check.check(gzipTag.startsWith("\"") && gzipTag.endsWith("\""), "the gzip tag is quoted: " + gzipTag);
+
+        FakeExchange plain = send(response, null, null);
+        Check.equal(HttpURLConnection.HTTP_OK, plain.status, "plain status");
+        Check.equal(plainTag, plain.responseHeaders.getFirst("ETag"), "plain tag");
+        Check.equal(null, plain.responseHeaders.getFirst("Content-Encoding"), "plain encoding");
+        Check.equal("Accept-Encoding", plain.responseHeaders.getFirst("Vary"), "plain Vary");
+        Check.equal(body.length, plain.body.size(), "plain body length");
+
+        FakeExchange gzipped = send(response, "gzip, deflate", null);
+        Check.equal(HttpURLConnection.HTTP_OK, gzipped.status, "gzip status");
+        Check.equal(gzipTag, gzipped.responseHeaders.getFirst("ETag"), "gzip tag");
+        Check.equal("gzip", gzipped.responseHeaders.getFirst("Content-Encoding"), "gzip encoding");
+        Check.equal("Accept-Encoding", gzipped.responseHeaders.getFirst("Vary"), "gzip Vary");
+        Check.equal(response.getGzippedBody().length, gzipped.body.size(), "gzip body length");
+
+        Check.equal(HttpURLConnection.HTTP_NOT_MODIFIED, send(response, null, plainTag).status,
+                "plain revalidated with the plain tag");
+        Check.equal(HttpURLConnection.HTTP_NOT_MODIFIED, send(response, "gzip", gzipTag).status,
+                "gzip revalidated with the gzip tag");
+        FakeExchange crossed = send(response, null, gzipTag);
+        Check.equal(HttpURLConnection.HTTP_OK, crossed.status, "plain revalidated with the gzip tag");
+        Check.equal(null, crossed.responseHeaders.getFirst("Content-Encoding"), "crossed plain encoding");
+        crossed = send(response, "gzip", plainTag);
+        Check.equal(HttpURLConnection.HTTP_OK, crossed.status, "gzip revalidated with the plain tag");
+        Check.equal("gzip", crossed.responseHeaders.getFirst("Content-Encoding"), "crossed gzip encoding");
+
+        // too small to gain from gzip, so every client gets the plain body and tag
+        CachedResponse small = new CachedResponse("{}".getBytes("UTF-8"), "application/json", "\"ff\"", 2);
+        Check.equal(null, small.getGzippedETag(), "small gzip tag");
+        FakeExchange smallGzip = send(small, "gzip", null);
+        Check.equal("\"ff\"", smallGzip.responseHeaders.getFirst("ETag"), "small tag");
+        Check.equal(null, smallGzip.responseHeaders.getFirst("Content-Encoding"), "small encoding");
+        Check.equal(HttpURLConnection.HTTP_NOT_MODIFIED, send(small, "gzip", "\"ff\"").status,
+                "small revalidated");
+        Check.done();
+    }
+
+    private static FakeExchange send(CachedResponse response, String acceptEncoding, String ifNoneMatch)
+            throws Exception {
+        FakeExchange exchange = new FakeExchange();
+        if (acceptEncoding != null)
+            exchange.requestHeaders.set("Accept-Encoding", acceptEncoding);
+        if (ifNoneMatch != null)
+            exchange.requestHeaders.set("If-None-Match", ifNoneMatch);
+        DataServiceServer.sendCached(exchange, response);
+        return exchange;
+    }
+
+    /**
+     * An exchange that keeps the status and body it is sent.
+     */
+    private static class FakeExchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int status;
+
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public URI getRequestURI() {
+            return URI.create("/");
+        }
+
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        public void close() {
+        }
+
+        public InputStream getRequestBody() {
+            return null;
+        }
+
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            status = rCode;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        public int getResponseCode() {
+            return status;
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        public void setAttribute(String name, Object value) {
+        }
+
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.TestWorld;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Streams updates to a client that reads them and to one that never reads
+ * again. The second falls MAX_PENDING writes behind and is dropped: its write
+ * must fail, the way the connection under it does when the writer thread is
+ * interrupted, so that its exchange is closed and the thread is free again,
+ * while the first client is still sent every update.
+ *
+ * @author saiumesh
+ */
+public class UpdateChannelTest {
+    private static final int UPDATES = 12;
+
+    public static void main(String[] args) throws Exception {
+        DataService service = new DataService();
+        ThreadPoolExecutor writers = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        UpdateChannel channel = new UpdateChannel(service, writers);
+        channel.start();
+
+        FakeExchange reading = new FakeExchange(false);
+        FakeExchange stuck = new FakeExchange(true);
+        channel.openStream(reading);
+        channel.openStream(stuck);
+        for (int version = 1; version <= UPDATES; version++) {
+            service.worldUpdated(TestWorld.snapshot(RouteGraph.EMPTY, new HashMap<Integer, Shuttle>(), version),
+                    new EtaTable(RouteGraph.EMPTY, 0));
+            channel.worldUpdated(null, null);
+            // the reading client keeps up, so only the stuck one falls behind
+            waitFor(reading, version);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!stuck.closed || writers.getActiveCount() > 0) && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        Check.check(stuck.closed, "the exchange of the dropped client is closed");
+        Check.equal(0, writers.getActiveCount(), "writer threads still busy");
+        Check.check(!reading.closed, "the reading client stays open");
+        Check.check(reading.events >= UPDATES, "every update is written to the reading client");
+        Check.check(!reading.interrupted, "writes to the reading client are not interrupted");
+
+        channel.stop();
+        writers.shutdownNow();
+        Check.done();
+    }
+
+    private static void waitFor(FakeExchange exchange, int events) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (exchange.events < events && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+    }
+
+    /**
+     * An exchange whose body either takes every write, counting them, or
+     * blocks in its first write until the writer thread is interrupted.
+     */
+    private static class FakeExchange extends HttpExchange {
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private final OutputStream body;
+        private int status;
+        volatile boolean closed;
+        volatile int events;
+        volatile boolean interrupted;
+
+        FakeExchange(final boolean stuck) {
+            body = new OutputStream() {
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (Thread.currentThread().isInterrupted())
+                        interrupted = true;
+                    if (stuck) {
+                        try {
+                            Thread.sleep(Long.MAX_VALUE);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("closed by interrupt");
+                        }
+                    }
+                    events++;
+                }
+            };
+        }
+
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        public URI getRequestURI() {
+            return URI.create("/");
+        }
+
+        public String getRequestMethod() {
+            return "GET";
+        }
+
+        public HttpContext getHttpContext() {
+            return null;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        public InputStream getRequestBody() {
+            return null;
+        }
+
+        public OutputStream getResponseBody() {
+            return body;
+        }
+
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            status = rCode;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        public int getResponseCode() {
+            return status;
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        public Object getAttribute(String name) {
+            return null;
+        }
+
+        public void setAttribute(String name, Object value) {
+        }
+
+        public void setStreams(InputStream i, OutputStream o) {
+        }
+
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.dataservice;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.ShuttleTrackerService.EtaTable;
+import com.abstractedsheep.shuttletracker.json.BinaryUpdateReader;
+import com.abstractedsheep.shuttletracker.json.EtaJson;
+import com.abstractedsheep.shuttletracker.json.UpdateJson;
+import com.abstractedsheep.shuttletracker.json.UpdateState;
+import com.abstractedsheep.shuttletracker.json.VehicleJson;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.TestWorld;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs the update protocol end to end: the data service writes binary updates,
+ * and the Android client's BinaryUpdateReader and UpdateState read and apply
+ * them. After each delta the client must hold exactly what a full update of
+ * the same version gives it. A delta made from another version, or by a server
+ * that has restarted since, must not be applied, and must leave the client
+ * asking for a full update.
+ * <p>
+ * The client classes are compiled from the Android tree, so this test is
+ * compiled with it on the source path, see {@link Check}.
+ *
+ * @author saiumesh
+ */
+public class UpdateProtocolTest {
+    public static void main(String[] args) throws Exception {
+        RouteGraph graph = TestData.graph();
+        Route west = graph.getRouteList().get(1);
+        Route east = graph.getRouteList().get(2);
+        int union = graph.getStopList().get("union").getIndex();
+        int blitman = graph.getStopList().get("blitman").getIndex();
+        int polytech = graph.getStopList().get("polytech").getIndex();
+        int colonie = graph.getStopList().get("colonie").getIndex();
+        DataService service = new DataService();
+        UpdateState client = new UpdateState();
+
+        HashMap<Integer, Shuttle> shuttles = new HashMap<Integer, Shuttle>();
+        shuttles.put(-1, shuttle(-1, west, 42.7302, -73.6765, 1310000042000L));
+        shuttles.put(5, shuttle(5, west, 42.7314, -73.6860, 1310000042000L));
+        shuttles.put(300, shuttle(300, east, 42.7290, -73.6700, 1310000042000L));
+        EtaTable etas = new EtaTable(graph, 0);
+        etas.add(-1, 1, union, 0, 65000, 1310000107L);
+        etas.add(-1, 1, union, 1, 965000, 1310001007L);
+        etas.add(5, 1, blitman, 0, 120000, 1310000162L);
+        etas.add(300, 2, colonie, 0, 30000, 1310000072L);
+        update(service, graph, shuttles, etas, 1);
+
+        Check.check(apply(client, service.getUpdate(client.getVersion(), true)), "the first update is applied");
+        Check.equal(1, client.getVersion(), "version after the first update");
+        Check.equal(service.getEpoch(), client.getEpoch(), "epoch after the first update");
+        same(full(service), client, "after the first update");
+
+        // shuttle 300 stops running, shuttle 5 moves, -1 drops its second eta and
+        // its first arrives later, and shuttle 5 gets an eta to another stop
+        shuttles.remove(300);
+        shuttles.put(5, shuttle(5, west, 42.7320, -73.6870, 1310000047000L));
+        etas = new EtaTable(graph, 0);
+        etas.add(-1, 1, union, 0, 80000, 1310000127L);
+        etas.add(5, 1, blitman, 0, 115000, 1310000162L);
+        etas.add(5, 1, polytech, 0, 300000, 1310000347L);
+        update(service, graph, shuttles, etas, 2);
+
+        UpdateJson delta = read(service.getUpdate(client.getVersion(), true));
+        Check.check(!delta.isFull(), "the second update is a delta");
+        Check.equal(1, delta.getSince(), "the version the delta is from");
+        Check.equal(1, delta.getShuttles().size(), "shuttles changed in the delta");
+        Check.equal(2, delta.getEtas().size(), "etas changed in the delta");
+        Check.equal(Collections.singletonList(300), delta.getRemoved_shuttles(), "shuttles removed in the delta");
+        Check.equal(2, delta.getRemoved_etas().size(), "etas removed in the delta");
+        Check.check(client.apply(delta), "the delta is applied");
+        Check.equal(2, client.getVersion(), "version after the delta");
+        same(full(service), client, "after the delta");
+
+        // a delta from a version the client does not have
+        update(service, graph, shuttles, etas, 3);
+        shuttles.put(-1, shuttle(-1, west, 42.7305, -73.6770, 1310000052000L));
+        update(service, graph, shuttles, etas, 4);
+        Check.check(!apply(client, service.getUpdate(3, true)), "a delta from another version is not applied");
+        Check.equal(-1, client.getVersion(), "version after a delta from another version");
+        Check.equal(0, client.getShuttles().size(), "shuttles after a delta from another version");
+        Check.equal(0, client.getEtas().size(), "etas after a delta from another version");
+        Check.check(apply(client, service.getUpdate(client.getVersion(), true)), "the full update is applied");
+        Check.equal(4, client.getVersion(), "version after the full update");
+        same(full(service), client, "after the full update");
+
+        // the server restarts and counts its versions again from 1, so a delta
+        // from the version the client has is of another epoch
+        long epoch = service.getEpoch() + 1;
+        List<Shuttle> noShuttles = Collections.emptyList();
+        List<Integer> noIds = Collections.emptyList();
+        byte[] restarted = BinaryUpdateWriter.write(epoch, 5, 4, noShuttles, EtaTable.EMPTY, noIds, EtaTable.EMPTY);
+        Check.check(!client.apply(read(restarted)), "a delta from another epoch is not applied");
+        Check.equal(-1, client.getVersion(), "version after a delta from another epoch");
+        Check.equal(0, client.getShuttles().size(), "shuttles after a delta from another epoch");
+        byte[] reloaded = BinaryUpdateWriter.write(epoch, 1, -1, shuttles.values(), etas, noIds, EtaTable.EMPTY);
+        Check.check(client.apply(read(reloaded)), "a full update from the restarted server is applied");
+        Check.equal(epoch, client.getEpoch(), "epoch after the restart");
+        Check.equal(1, client.getVersion(), "version after the restart");
+        same(full(service), client, "after the restart");
+        Check.done();
+    }
+
+    private static void update(DataService service, RouteGraph graph, HashMap<Integer, Shuttle> shuttles,
+                               EtaTable etas, long version) {
+        service.worldUpdated(TestWorld.snapshot(graph, new HashMap<Integer, Shuttle>(shuttles), version), etas);
+    }
+
+    private static boolean apply(UpdateState client, CachedResponse response) throws IOException {
+        return client.apply(read(response.getBody()));
+    }
+
+    private static UpdateJson read(CachedResponse response) throws IOException {
+        return read(response.getBody());
+    }
+
+    private static UpdateJson read(byte[] body) throws IOException {
+        return BinaryUpdateReader.read(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return a new client that has been sent the full update of the latest version
+     */
+    private static UpdateState full(DataService service) throws IOException {
+        UpdateState state = new UpdateState();
+        Check.check(apply(state, service.getUpdate(-1, true)), "a full update is applied");
+        return state;
+    }
+
+    private static void same(UpdateState expected, UpdateState actual, String when) {
+        Check.equal(describe(expected), describe(actual), "what the client holds " + when);
+    }
+
+    /**
+     * The time until each arrival is left out. It is only sent again once the
+     * arrival time moves, and a client counts down to the arrival time.
+     *
+     * @return every other field of every shuttle and eta held, in an order that
+     *         does not depend on the order they were sent in
+     */
+    private static List<String> describe(UpdateState state) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (VehicleJson v : state.getShuttles())
+            lines.add("shuttle " + v.getShuttle_id() + " " + v.getLatitude() + " " + v.getLongitude() + " "
+                    + v.getHeading() + " " + v.getSpeed() + " " + v.getRoute_id() + " " + v.getUpdate_time()
+                    + " " + v.getCardinal_point() + " " + v.getName());
+        for (EtaJson e : state.getEtas())
+            lines.add("eta " + e.getShuttle_id() + " " + e.getRoute() + " " + e.getStop_id() + " "
+                    + e.getEta_id() + " " + e.getName() + " " + e.getArrival_time());
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static Shuttle shuttle(int id, Route route, double lat, double lon, long time) {
+        Shuttle s = new Shuttle(new ArrayList<Route>());
+        s.setShuttleId(id);
+        s.setCurrentRoute(route);
+        s.setCurrentLocation(new Coordinate(lat, lon), time);
+        s.setHeading(270);
+        s.setSpeed(20);
+        s.setName("Bus " + id);
+        return s;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.history;
+
+import com.abstractedsheep.Check;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes segments of samples and reads them back through the memory map. The
+ * samples are chosen to stress the delta columns: ids that are negative or
+ * the largest an int can be, coordinates that jump from one end of the world
+ * to the other, speeds that drop to zero, headings that wrap around, and
+ * times a millisecond apart or years apart.
+ *
+ * @author saiumesh
+ */
+public class HistorySegmentTest {
+    private static final int[] SHUTTLES = { -1, 0, 7, 300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+    public static void main(String[] args) throws Exception {
+        File directory = File.createTempFile("history", "");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+
+        Random random = new Random(14);
+        ArrayList<PositionSample> samples = new ArrayList<PositionSample>();
+        for (int shuttleId : SHUTTLES) {
+            long time = 1316001600000L + random.nextInt(1000);
+            for (int i = 0; i < 200; i++) {
+                samples.add(new PositionSample(shuttleId, time, latitude(random), longitude(random),
+                        random.nextBoolean() ? 0 : random.nextInt(200), random.nextInt(360)));
+                int step = random.nextInt(10);
+                time += (step == 0) ? 1 : (step == 1) ? 3L * 365 * 24 * 60 * 60 * 1000 : random.nextInt(60000);
+            }
+        }
+        ArrayList<PositionSample> shuffled = new ArrayList<PositionSample>(samples);
+        Collections.shuffle(shuffled, random);
+        HistorySegment segment = write(directory, "stress.seg", shuffled);
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (PositionSample sample : samples) {
+            first = Math.min(first, sample.getTime());
+            last = Math.max(last, sample.getTime());
+        }
+        Check.equal(first, segment.getFirstTime(), "first time");
+        Check.equal(last, segment.getLastTime(), "last time");
+
+        ArrayList<PositionSample> all = new ArrayList<PositionSample>();
+        segment.queryAll(Long.MIN_VALUE, Long.MAX_VALUE, all);
+        Check.equal(samples.size(), all.size(), "samples of every shuttle");
+        for (int shuttleId : SHUTTLES) {
+            List<PositionSample> expected = of(samples, shuttleId, Long.MIN_VALUE, Long.MAX_VALUE);
+            ArrayList<PositionSample> read = new ArrayList<PositionSample>();
+            segment.query(shuttleId, Long.MIN_VALUE, Long.MAX_VALUE, read);
+            same(expected, read, "shuttle " + shuttleId);
+
+            // a window starting and ending on sample times takes the first and not the last
+            long from = expected.get(50).getTime();
+            long to = expected.get(150).getTime();
+            read.clear();
+            segment.query(shuttleId, from, to, read);
+            same(of(samples, shuttleId, from, to), read, "shuttle " + shuttleId + " from " + from + " to " + to);
+        }
+
+        ArrayList<PositionSample> none = new ArrayList<PositionSample>();
+        segment.query(5, Long.MIN_VALUE, Long.MAX_VALUE, none);
+        segment.queryAll(Long.MIN_VALUE, first, none);
+        segment.queryAll(last + 1, Long.MAX_VALUE, none);
+        Check.equal(0, none.size(), "samples of a shuttle not in the segment and outside of its times");
+
+        // a shuttle driving its route every few seconds, as the deltas are meant for
+        ArrayList<PositionSample> track = new ArrayList<PositionSample>();
+        long time = 1316001600000L;
+        int latitudeE6 = 42730200;
+        int longitudeE6 = -73676500;
+        for (int i = 0; i < 1000; i++) {
+            track.add(new PositionSample(9, time, latitudeE6, longitudeE6, 20 + random.nextInt(5), 90));
+            time += 4000 + random.nextInt(2000);
+            latitudeE6 += random.nextInt(201) - 100;
+            longitudeE6 += random.nextInt(201) - 100;
+        }
+        segment = write(directory, "track.seg", track);
+        ArrayList<PositionSample> read = new ArrayList<PositionSample>();
+        segment.query(9, Long.MIN_VALUE, Long.MAX_VALUE, read);
+        same(track, read, "track");
+        long bytes = new File(directory, "track.seg").length();
+        Check.check(bytes < track.size() * 8, "a track takes less than 8 bytes a sample, took " + bytes);
+
+        Check.done();
+    }
+
+    private static HistorySegment write(File directory, String name, List<PositionSample> samples) throws Exception {
+        File file = new File(directory, name);
+        file.deleteOnExit();
+        HistorySegment.write(file, samples);
+        return HistorySegment.open(file);
+    }
+
+    private static int latitude(Random random) {
+        return random.nextBoolean() ? (random.nextBoolean() ? 90000000 : -90000000)
+                : random.nextInt(180000001) - 90000000;
+    }
+
+    private static int longitude(Random random) {
+        return random.nextBoolean() ? (random.nextBoolean() ? 180000000 : -180000000)
+                : random.nextInt(360000001) - 180000000;
+    }
+
+    /**
+     * @return the samples of the shuttle between the two times, in the order they were made
+     */
+    private static List<PositionSample> of(List<PositionSample> samples, int shuttleId, long from, long to) {
+        ArrayList<PositionSample> of = new ArrayList<PositionSample>();
+        for (PositionSample sample : samples) {
+            if (sample.getShuttleId() == shuttleId && sample.getTime() >= from && sample.getTime() < to)
+                of.add(sample);
+        }
+        return of;
+    }
+
+    private static void same(List<PositionSample> expected, List<PositionSample> read, String what) {
+        Check.equal(expected.size(), read.size(), what + ": samples");
+        for (int i = 0; i < Math.min(expected.size(), read.size()); i++)
+            Check.equal(expected.get(i).toString(), read.get(i).toString(), what + ": sample " + i);
+    }
+}
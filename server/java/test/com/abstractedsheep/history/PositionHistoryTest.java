@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.history;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.world.Coordinate;
+import com.abstractedsheep.world.Route;
+import com.abstractedsheep.world.RouteGraph;
+import com.abstractedsheep.world.Shuttle;
+import com.abstractedsheep.world.TestWorld;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Samples a shuttle the feed has no id for, which is -1, beside a numbered
+ * one, and queries them before and after they are written out. A query of
+ * the shuttle -1 must only see that shuttle, and a shuttle that leaves and
+ * comes back must not be seen twice.
+ *
+ * @author saiumesh
+ */
+public class PositionHistoryTest {
+    private static final long NOW = System.currentTimeMillis();
+
+    public static void main(String[] args) throws Exception {
+        File directory = File.createTempFile("history", "");
+        directory.delete();
+
+        PositionHistory history = new PositionHistory(directory);
+        Shuttle noId = shuttle(-1, 42.7302, -73.6765, NOW - 2000, 0);
+        Shuttle bus = shuttle(5, 42.7314, -73.6860, NOW - 1000, 25);
+        update(history, 1, noId, bus);
+        // the shuttle with no id leaves and comes back as it was
+        update(history, 2, bus);
+        update(history, 3, noId, bus);
+
+        check(history, "held in memory");
+        history.stop();
+        check(history, "written out");
+
+        for (File day : directory.listFiles()) {
+            for (File segment : day.listFiles())
+                segment.delete();
+            day.delete();
+        }
+        directory.delete();
+        Check.done();
+    }
+
+    private static void check(PositionHistory history, String when) {
+        List<PositionSample> noId = history.getSamples(-1, NOW - 60000, NOW);
+        Check.equal(1, noId.size(), "samples of the shuttle with no id, " + when);
+        Check.equal(-1, noId.get(0).getShuttleId(), "id of the shuttle with no id, " + when);
+        Check.equal(0, noId.get(0).getSpeed(), "the speed the feed reported, " + when);
+        Check.equal(1, history.getSamples(5, NOW - 60000, NOW).size(), "samples of shuttle 5, " + when);
+        Check.equal(2, history.getAllSamples(NOW - 60000, NOW).size(), "samples of every shuttle, " + when);
+        Check.equal(0, history.getAllSamples(NOW, NOW + 60000).size(), "samples after the last, " + when);
+    }
+
+    private static void update(PositionHistory history, long version, Shuttle... shuttles) {
+        HashMap<Integer, Shuttle> map = new HashMap<Integer, Shuttle>();
+        for (Shuttle s : shuttles)
+            map.put(s.getShuttleId(), s);
+        history.worldUpdated(TestWorld.snapshot(RouteGraph.EMPTY, map, version), null);
+    }
+
+    private static Shuttle shuttle(int id, double latitude, double longitude, long time, int speed) {
+        Shuttle s = new Shuttle(new ArrayList<Route>());
+        s.setShuttleId(id);
+        s.setCurrentLocation(new Coordinate(latitude, longitude), time);
+        s.setSpeed(speed);
+        return s;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.shuttletracker.mapoverlay;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * Stands in for the client's map marker, which is drawn with Android classes,
+ * so that the client's update code can be compiled and tested along with the
+ * server. Nothing is done with it.
+ *
+ * @author saiumesh
+ */
+public class DirectionalOverlayItem {
+    public DirectionalOverlayItem(GeoPoint point, int heading, String title, String snippet) {
+    }
+}
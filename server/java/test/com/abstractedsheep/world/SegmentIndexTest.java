@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.Check;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the segments the grid finds with a scan of every segment, for
+ * points inside a route's bounding box, on its points, and outside of it in
+ * every direction, where the search starts from the closest cell on the edge.
+ * The routes are a winding loop, a straight line along one row of cells, a
+ * route of two points and a route of one point. Closest segments are compared
+ * by distance, since two segments can be as close as each other.
+ *
+ * @author saiumesh
+ */
+public class SegmentIndexTest {
+    private static final double LATITUDE = 42.73;
+    private static final double LONGITUDE = -73.68;
+
+    public static void main(String[] args) {
+        Random random = new Random(2);
+
+        // a loop that wanders around a few miles of town, doubling back on itself
+        ArrayList<Coordinate> loop = new ArrayList<Coordinate>();
+        double latitude = LATITUDE;
+        double longitude = LONGITUDE;
+        for (int i = 0; i < 400; i++) {
+            loop.add(new Coordinate(latitude, longitude));
+            latitude += (random.nextDouble() - 0.5) * 0.002;
+            longitude += (random.nextDouble() - 0.5) * 0.002;
+        }
+        compare(loop, random, "loop");
+
+        ArrayList<Coordinate> line = new ArrayList<Coordinate>();
+        for (int i = 0; i < 50; i++)
+            line.add(new Coordinate(LATITUDE, LONGITUDE + i * 0.001));
+        compare(line, random, "line");
+
+        ArrayList<Coordinate> pair = new ArrayList<Coordinate>();
+        pair.add(new Coordinate(LATITUDE, LONGITUDE));
+        pair.add(new Coordinate(LATITUDE + 0.01, LONGITUDE + 0.01));
+        compare(pair, random, "two points");
+
+        ArrayList<Coordinate> single = new ArrayList<Coordinate>();
+        single.add(new Coordinate(LATITUDE, LONGITUDE));
+        compare(single, random, "one point");
+        SegmentIndex index = new SegmentIndex(single);
+        Check.equal(0, index.findClosestSegment(new Coordinate(LATITUDE + 1, LONGITUDE - 1)),
+                "the only segment of a route of one point");
+
+        Check.equal(-1, new SegmentIndex(new ArrayList<Coordinate>()).findClosestSegment(
+                new Coordinate(LATITUDE, LONGITUDE)), "segment of a route with no points");
+        Check.done();
+    }
+
+    private static void compare(ArrayList<Coordinate> route, Random random, String name) {
+        SegmentIndex index = new SegmentIndex(route);
+        double minLatitude = 90, maxLatitude = -90, minLongitude = 180, maxLongitude = -180;
+        for (Coordinate c : route) {
+            minLatitude = Math.min(minLatitude, c.getLatitude());
+            maxLatitude = Math.max(maxLatitude, c.getLatitude());
+            minLongitude = Math.min(minLongitude, c.getLongitude());
+            maxLongitude = Math.max(maxLongitude, c.getLongitude());
+        }
+        double height = maxLatitude - minLatitude;
+        double width = maxLongitude - minLongitude;
+
+        for (int i = 0; i < 2000; i++) {
+            Coordinate inside = new Coordinate(minLatitude + random.nextDouble() * height,
+                    minLongitude + random.nextDouble() * width);
+            check(index, route, inside, name + " inside the box");
+        }
+        for (Coordinate c : route)
+            check(index, route, c, name + " on a point");
+        for (int i = 0; i < 2000; i++) {
+            // up to a few times the size of the box away, or a few miles for a small box
+            double reach = Math.max(Math.max(height, width), 0.05) * 3;
+            double lat = minLatitude - reach + random.nextDouble() * (height + 2 * reach);
+            double lon = minLongitude - reach + random.nextDouble() * (width + 2 * reach);
+            if (lat >= minLatitude && lat <= maxLatitude && lon >= minLongitude && lon <= maxLongitude)
+                continue;
+            check(index, route, new Coordinate(lat, lon), name + " outside the box");
+        }
+    }
+
+    private static void check(SegmentIndex index, ArrayList<Coordinate> route, Coordinate location, String what) {
+        double closest = Double.MAX_VALUE;
+        for (int segment = 0; segment < route.size(); segment++)
+            closest = Math.min(closest, index.distanceToSegment(location, segment));
+        int found = index.findClosestSegment(location);
+        Check.check(found >= 0 && found < route.size() && index.distanceToSegment(location, found) == closest,
+                what + ": " + location + " found segment " + found + " at "
+                        + ((found == -1) ? "none" : index.distanceToSegment(location, found)) + " not " + closest);
+    }
+}
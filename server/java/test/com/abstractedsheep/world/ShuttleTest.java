@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.Check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives a shuttle along a route that comes back down the same street, with
+ * the way back a few dozen feet from the way out. Each position is closer to
+ * the way back, as a GPS reading drifting across the street would be, so the
+ * shuttle only stays on the way out because it is tracked along the route
+ * from where it was. A shuttle that jumps further than the tracking window
+ * must be snapped again from scratch, to its own route or another one.
+ *
+ * @author saiumesh
+ */
+public class ShuttleTest {
+    private static final double LATITUDE = 42.73;
+    private static final double LONGITUDE = -73.68;
+    // points each way, and the space between them in degrees of longitude
+    private static final int POINTS = 150;
+    private static final double STEP = 0.0002;
+    // the way back is this far north of the way out, about 70 feet
+    private static final double STREET = 0.0002;
+
+    public static void main(String[] args) {
+        ArrayList<Coordinate> points = new ArrayList<Coordinate>();
+        for (int i = 0; i < POINTS; i++)
+            points.add(new Coordinate(LATITUDE, LONGITUDE + i * STEP));
+        for (int i = POINTS - 1; i >= 0; i--)
+            points.add(new Coordinate(LATITUDE + STREET, LONGITUDE + i * STEP));
+        Route street = new Route(1, "Street", points);
+        ArrayList<Coordinate> farPoints = new ArrayList<Coordinate>();
+        farPoints.add(new Coordinate(LATITUDE + 0.05, LONGITUDE));
+        farPoints.add(new Coordinate(LATITUDE + 0.05, LONGITUDE + 0.01));
+        farPoints.add(new Coordinate(LATITUDE + 0.06, LONGITUDE + 0.01));
+        Route far = new Route(2, "Far", farPoints);
+        List<Route> routes = Arrays.asList(street, far);
+
+        Shuttle shuttle = new Shuttle(new ArrayList<Route>());
+        // exactly on the way out, so it is snapped there from scratch
+        shuttle.setCurrentLocation(new Coordinate(LATITUDE, LONGITUDE + 5.5 * STEP), 1000);
+        shuttle.setCurrentRoute(street);
+        Check.equal(6, shuttle.getNextRouteCoordinate(), "segment of the first position");
+
+        double last = shuttle.getDistanceAlongRoute();
+        long time = 1000;
+        for (double longitude = LONGITUDE + 6 * STEP; longitude < LONGITUDE + (POINTS - 2) * STEP;
+                longitude += STEP * 0.7) {
+            // nearer the way back than the way out
+            Coordinate location = new Coordinate(LATITUDE + STREET * 0.6, longitude);
+            time += 5000;
+            shuttle.updateShuttle(reading(location, time), routes);
+            int segment = shuttle.getNextRouteCoordinate();
+            Check.check(shuttle.getCurrentRoute() == street, "route at " + longitude);
+            Check.check(segment >= 1 && segment < POINTS, "segment " + segment + " on the way out at " + longitude);
+            Check.check(shuttle.getDistanceAlongRoute() > last, "distance along the route grows at " + longitude);
+            last = shuttle.getDistanceAlongRoute();
+        }
+        // what the test relies on: snapped from scratch, the shuttle would be on the way back
+        Coordinate drifting = new Coordinate(LATITUDE + STREET * 0.6, LONGITUDE + POINTS / 2 * STEP);
+        Check.check(street.findClosestSegment(drifting) >= POINTS, "a drifting position is closest to the way back");
+
+        // a jump back to the start of the way back, further than the window reaches
+        Coordinate start = new Coordinate(LATITUDE + STREET, LONGITUDE + 10 * STEP);
+        time += 5000;
+        shuttle.updateShuttle(reading(start, time), routes);
+        Check.equal(street.findClosestSegment(start), shuttle.getNextRouteCoordinate(),
+                "segment after a jump along the route");
+        Check.check(shuttle.getNextRouteCoordinate() >= POINTS, "on the way back after the jump");
+
+        // and a jump to another route
+        Coordinate away = new Coordinate(LATITUDE + 0.05, LONGITUDE + 0.005);
+        time += 5000;
+        shuttle.updateShuttle(reading(away, time), routes);
+        Check.check(shuttle.getCurrentRoute() == far, "route after a jump to another route");
+        Check.equal(1, shuttle.getNextRouteCoordinate(), "segment after a jump to another route");
+        Check.done();
+    }
+
+    private static Shuttle reading(Coordinate location, long time) {
+        Shuttle s = new Shuttle(new ArrayList<Route>());
+        s.setCurrentLocation(location, time);
+        s.setSpeed(20);
+        return s;
+    }
+}
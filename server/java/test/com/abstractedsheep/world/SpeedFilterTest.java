@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.Check;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks which readings {@link SpeedFilter} drops, then runs each mode side by
+ * side with the mean, median and exponentially weighted mean worked out from
+ * scratch over the same window, through a long seeded run of readings that are
+ * never far enough apart to be dropped.
+ *
+ * @author saiumesh
+ */
+public class SpeedFilterTest {
+    private static final int READINGS = 20000;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) {
+        SpeedFilter filter = new SpeedFilter(SpeedFilter.MEAN);
+        Check.equal(-1, filter.get(), "no readings");
+        Check.check(!filter.add(-1), "a negative speed is dropped");
+        Check.check(!filter.add(81), "a speed no shuttle reaches is dropped");
+        Check.equal(0, filter.getCount(), "nothing kept");
+
+        // too few readings to tell a spike from a change of speed
+        Check.check(filter.add(10), "first reading");
+        Check.check(filter.add(60), "a jump before the window has a few readings");
+        filter = new SpeedFilter(SpeedFilter.MEAN);
+        for (int speed : new int[] { 12, 14, 15, 13 })
+            filter.add(speed);
+        Check.check(!filter.add(60), "a single spike is dropped");
+        Check.equal(13, filter.get(), "the spike does not move the mean");
+        Check.check(filter.add(16), "a normal reading after a spike");
+        Check.check(!filter.add(45), "a new spike is dropped");
+        Check.check(filter.add(45), "the same jump twice in a row is kept");
+        Check.check(filter.add(44), "and so is the next reading at the new speed");
+        int[] kept = { 12, 14, 15, 13, 16, 45, 44 };
+        Check.equal(kept.length, filter.getCount(), "readings kept");
+        for (int i = 0; i < kept.length; i++)
+            Check.equal(kept[i], filter.getReading(i), "reading " + i + ", oldest first");
+
+        SpeedFilter copy = new SpeedFilter(filter);
+        copy.add(40);
+        Check.equal(kept.length, filter.getCount(), "adding to a copy leaves the original");
+        Check.equal(kept.length + 1, copy.getCount(), "the copy keeps its own readings");
+
+        Check.equal(SpeedFilter.EWMA, SpeedFilter.parseMode("EWMA"), "ewma by name");
+        Check.equal(SpeedFilter.MEDIAN, SpeedFilter.parseMode("median"), "median by name");
+        Check.equal(SpeedFilter.MEAN, SpeedFilter.parseMode("mean"), "mean by name");
+
+        random();
+        Check.done();
+    }
+
+    private static void random() {
+        Random random = new Random(SEED);
+        SpeedFilter mean = new SpeedFilter(SpeedFilter.MEAN);
+        SpeedFilter median = new SpeedFilter(SpeedFilter.MEDIAN);
+        SpeedFilter ewma = new SpeedFilter(SpeedFilter.EWMA);
+        ArrayDeque<Integer> window = new ArrayDeque<Integer>();
+        double expectedEwma = 0;
+        for (int i = 0; i < READINGS; i++) {
+            // never more than MAX_JUMP from any other reading
+            int speed = 20 + random.nextInt(20);
+            String what = "reading " + i + " of " + speed;
+            Check.check(mean.add(speed) && median.add(speed) && ewma.add(speed), what + ": kept");
+            window.addLast(speed);
+            if (window.size() > SpeedFilter.WINDOW)
+                window.removeFirst();
+            expectedEwma = (i == 0) ? speed : expectedEwma + 0.3 * (speed - expectedEwma);
+
+            int sum = 0;
+            for (int s : window)
+                sum += s;
+            Integer[] sorted = window.toArray(new Integer[window.size()]);
+            Arrays.sort(sorted);
+            int n = sorted.length;
+            int expectedMedian = (n % 2 == 1) ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+
+            Check.equal(sum / n, mean.get(), what + ": mean");
+            Check.equal(expectedMedian, median.get(), what + ": median");
+            Check.equal(Math.round(expectedEwma), ewma.get(), what + ": ewma");
+            Check.equal(window.getFirst().intValue(), median.getReading(0), what + ": oldest reading");
+            Check.equal(window.getLast().intValue(), median.getReading(median.getCount() - 1),
+                    what + ": newest reading");
+            if (i % 1000 == 0) {
+                SpeedFilter copy = new SpeedFilter(median);
+                Check.equal(median.get(), copy.get(), what + ": copy");
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import java.util.HashMap;
+
+/**
+ * Lets tests outside of this package build snapshots of the world without
+ * downloading anything.
+ *
+ * @author saiumesh
+ */
+public final class TestWorld {
+    private TestWorld() {
+    }
+
+    /**
+     * @param shuttles - shuttles keyed by id, already snapped to their routes
+     * @return a snapshot of the shuttles on the graph
+     */
+    public static WorldSnapshot snapshot(RouteGraph graph, HashMap<Integer, Shuttle> shuttles, long version) {
+        return new WorldSnapshot(graph, shuttles, version);
+    }
+}
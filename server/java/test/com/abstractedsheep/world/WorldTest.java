@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011
+ *
+ *   This file is part of Mobile Shuttle Tracker.
+ *
+ *   Mobile Shuttle Tracker is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Mobile Shuttle Tracker is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Mobile Shuttle Tracker.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.abstractedsheep.world;
+
+import com.abstractedsheep.Check;
+import com.abstractedsheep.TestData;
+import com.abstractedsheep.extractor.DynamicJSONExtractor;
+import com.abstractedsheep.extractor.StaticJSONExtractor;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Updates a world the way the polling pipeline does: with a changed payload,
+ * with the same payload again, and with nothing after a failed fetch. A shuttle
+ * standing still for longer than shuttles live must stay for as long as the
+ * feed lists it, and only be aged out once the feed stops listing it.
+ *
+ * @author saiumesh
+ */
+public class WorldTest {
+    public static void main(String[] args) {
+        URL netlink = TestData.netlinkUrl();
+        World world = new World(new StaticJSONExtractor(netlink), new DynamicJSONExtractor(netlink));
+        world.generateWorld();
+        long parked = System.currentTimeMillis() - 60 * 1000;
+
+        HashMap<Integer, Shuttle> payload = new HashMap<Integer, Shuttle>();
+        payload.put(5, shuttle(5, 42.7302, -73.6765, parked));
+        payload.put(7, shuttle(7, 42.7314, -73.6860, System.currentTimeMillis()));
+        world.updateWorld(payload, true);
+        Shuttle first = world.getShuttleList().get(5);
+        Check.check(first != null, "a shuttle last seen moving a minute ago is added");
+        Check.equal(2, world.getShuttleList().size(), "shuttles after the first payload");
+
+        for (int i = 0; i < 3; i++) {
+            world.updateWorld(payload, false);
+            Check.check(world.getShuttleList().get(5) == first,
+                    "the parked shuttle is carried over as it was, update " + i);
+            Check.equal(parked, world.getShuttleList().get(5).getLastUpdateTime(),
+                    "the parked shuttle's update time, update " + i);
+        }
+        Check.check(world.getShuttleList().get(5).getCurrentRoute() != null, "the parked shuttle keeps its route");
+
+        // a changed payload that no longer lists the parked shuttle
+        HashMap<Integer, Shuttle> moved = new HashMap<Integer, Shuttle>();
+        moved.put(7, shuttle(7, 42.7227, -73.6872, System.currentTimeMillis()));
+        world.updateWorld(moved, true);
+        Check.check(!world.getShuttleList().containsKey(5), "a shuttle the feed stops listing is aged out");
+        Check.check(world.getShuttleList().containsKey(7), "the shuttle that moved is kept");
+
+        // a failed fetch lists nothing, so only shuttles seen recently are kept
+        world.updateWorld(new HashMap<Integer, Shuttle>(), true);
+        Check.check(world.getShuttleList().containsKey(7), "a recent shuttle outlasts a failed fetch");
+        Check.done();
+    }
+
+    private static Shuttle shuttle(int id, double latitude, double longitude, long time) {
+        Shuttle s = new Shuttle(new ArrayList<Route>());
+        s.setShuttleId(id);
+        s.setCurrentLocation(new Coordinate(latitude, longitude), time);
+        s.setSpeed(15);
+        return s;
+    }
+}
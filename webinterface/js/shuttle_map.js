@@ -1,3 +1,6 @@
+    /* the shuttle tracker server pushes each update down this stream as it is made */
+    var UPDATES_URL = 'http://' + window.location.hostname + ':8080/data_service.php?action=stream_updates';
+
     function ShuttleMap() {
         var routes;
         var routeOptions;
@@ -57,10 +60,63 @@
 
     ShuttleMap.prototype = {
         refresh: function() {
-            this.refreshShuttles();
+            this.startUpdates();
             this.resizeMapToMarkers();        
         }
         ,
+        startUpdates: function() {
+            /* browsers without EventSource, or that cannot reach the stream, poll instead */
+            if (this.updates || this.refreshCycling)
+                return;
+            if (!window.EventSource) {
+                this.refreshShuttles();
+                return;
+            }
+            this.updates = new EventSource(UPDATES_URL);
+            this.updates.addEventListener('update', function(e) {
+                shuttleMap.applyUpdate(JSON.parse(e.data));
+            }, false);
+            this.updates.onerror = function() {
+                /* the browser reconnects by itself unless the stream was refused */
+                if (shuttleMap.updates.readyState == EventSource.CLOSED) {
+                    shuttleMap.updates = null;
+                    shuttleMap.refreshShuttles();
+                }
+            };
+        }
+        ,
+        applyUpdate: function(update) {
+            /* a delta only applies to the version it was made from, by the same run of the server */
+            if (!update.full && (update.epoch != this.epoch || update.since != this.version)) {
+                /* a new stream starts with everything */
+                this.updates.close();
+                this.updates = null;
+                this.startUpdates();
+                return;
+            }
+            this.epoch = update.epoch;
+            this.version = update.version;
+
+            /* a full update holds every shuttle, a delta only those that changed or went away */
+            if (update.full) {
+                var current = {};
+                $.each(update.shuttles, function(shuttleIdx,shuttleInfoObj) {
+                    current[shuttleInfoObj.shuttle_id] = true;
+                });
+                for (id in this.shuttles) {
+                    if (!current[id])
+                        this.shutdownShuttle(id);
+                }
+            } else {
+                $.each(update.removed_shuttles, function(idx,shuttleId) {
+                    shuttleMap.shutdownShuttle(shuttleId);
+                });
+            }
+            $.each(update.shuttles, function(shuttleIdx,shuttleInfoObj) {
+                shuttleMap.setShuttle(shuttleInfoObj);
+            });
+        }
+        ,
         resizeMapToMarkers: function() {
             //  Fit these bounds to the map
             this.map.fitBounds(this.bounds);    
@@ -138,7 +194,7 @@
         }
         ,
         refreshShuttles: function() {
-            /* RUN EVERY 5 SECONDS TO UPDATE SHUTTLES */
+            /* RUN EVERY 5 SECONDS TO UPDATE SHUTTLES WHEN UPDATES CANNOT BE STREAMED */
             /* load shuttle positions from database (ajax) */
             if (false) {
                 var data = eval('[{"shuttle_id":"6","heading":"180","latitude":"42.72795","longitude":"-73.67632","speed":"0","cardinal_point":"South","update_time":"2011-04-27 16:16:37","route_id":"1","name":"Bus 97"},{"shuttle_id":"2","heading":"0","latitude":"42.72807","longitude":"-73.67607","speed":"11","cardinal_point":"North","update_time":"2011-04-27 16:20:47","route_id":"1","name":"Bus 85"},{"shuttle_id":"3","heading":"280","latitude":"42.72867","longitude":"-73.67627","speed":"0","cardinal_point":"West","update_time":"2011-04-27 19:20:32","route_id":"1","name":"Bus 95"},{"shuttle_id":"5","heading":"190","latitude":"42.72791","longitude":"-73.67617","speed":"0","cardinal_point":"South","update_time":"2011-04-27 20:57:27","route_id":"1","name":"Bus 91"},{"shuttle_id":"4","heading":"130","latitude":"42.72889","longitude":"-73.67632","speed":"9","cardinal_point":"South-East","update_time":"2011-04-27 22:59:32","route_id":"1","name":"Bus 93"},{"shuttle_id":"8","heading":"280","latitude":"42.73161","longitude":"-73.67004","speed":"16","cardinal_point":"West","update_time":"2011-04-27 23:10:01","route_id":"2","name":"Bus 92"},{"shuttle_id":"1","heading":"200","latitude":"42.72873","longitude":"-73.67612","speed":"0","cardinal_point":"South","update_time":"2011-04-27 23:14:26","route_id":"1","name":"Bus 94"}]');